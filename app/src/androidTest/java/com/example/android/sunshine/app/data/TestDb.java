@@ -55,6 +55,8 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.CurrentEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -91,6 +93,10 @@ public class TestDb extends AndroidTestCase {
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_CITY_ID);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_ETAG);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_FINGERPRINT);
 
         int columnNameIndex = c.getColumnIndex("name");
         do {
@@ -16,6 +16,7 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderClient;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
@@ -26,10 +27,15 @@ import android.net.Uri;
 import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
+import android.util.Pair;
 
+import com.example.android.sunshine.app.data.WeatherContract.CurrentEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.Iterator;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,6 +62,16 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
+        mContext.getContentResolver().delete(
+                CurrentEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -287,6 +303,103 @@ public class TestProvider extends AndroidTestCase {
     }
 
 
+    /*
+        This test makes sure the location upsert adds a location once, refreshes it in place
+        after that, and doesn't trust a cached row ID once the location is gone.
+     */
+    public void testUpsertLocation() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        Uri upsertUri = LocationEntry.buildLocationUpsertUri();
+
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(upsertUri, values));
+        assertTrue(locationRowId != -1);
+        assertEquals("Error: The new location should be cached",
+                locationRowId, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+
+        ContentValues updatedValues = new ContentValues(values);
+        updatedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        assertEquals("Error: Upserting a stored location should keep its row ID",
+                locationRowId, ContentUris.parseId(
+                        mContext.getContentResolver().insert(upsertUri, updatedValues)));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: Upserting twice should leave one location", 1, cursor.getCount());
+        updatedValues.put(LocationEntry._ID, locationRowId);
+        TestUtilities.validateCursor("testUpsertLocation.  Error validating refreshed location.",
+                cursor, updatedValues);
+        cursor.close();
+
+        deleteAllRecordsFromProvider();
+        assertEquals("Error: Deleting locations should empty the cache",
+                -1, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+
+        // Stored behind the provider's back, so only a lookup by setting can find it
+        long directRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        assertEquals("Error: Upsert should find an uncached location by its setting",
+                directRowId, ContentUris.parseId(
+                        mContext.getContentResolver().insert(upsertUri, values)));
+    }
+
+    /*
+        This test makes sure a location upsert streamed into bulkWrite is written with the rows
+        that follow it, which can point at it, and is counted so the one notification at the
+        end covers it.
+     */
+    public void testBulkWriteUpsertsLocation() {
+        final ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        final ContentValues weatherValues = TestUtilities.createWeatherValues(-1);
+        Iterator<Pair<Uri, ContentValues>> rows = new Iterator<Pair<Uri, ContentValues>>() {
+            private int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < 2;
+            }
+
+            @Override
+            public Pair<Uri, ContentValues> next() {
+                if (mNext++ == 0) {
+                    return Pair.create(LocationEntry.buildLocationUpsertUri(), locationValues);
+                }
+                weatherValues.put(WeatherEntry.COLUMN_LOC_KEY,
+                        locationValues.getAsLong(LocationEntry._ID));
+                return Pair.create(WeatherEntry.CONTENT_URI, weatherValues);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true, tco);
+        try {
+            WeatherProvider provider = (WeatherProvider) client.getLocalContentProvider();
+            WeatherProvider.WriteCounts counts = provider.bulkWrite(rows, false);
+            assertEquals("Error: The location upsert should have been counted", 1, counts.location);
+            assertEquals(1, counts.weather);
+
+            provider.notifyChange(counts);
+            tco.waitForNotificationOrFail();
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(tco);
+            client.release();
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: The weather row should point at the upserted location",
+                1, cursor.getCount());
+        cursor.close();
+    }
+
+
     // Make sure we can still delete after adding/updating stuff
     //
     // Student: Uncomment this test after you have completed writing the insert functionality
@@ -512,4 +625,207 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        This test makes sure a repeated bulkInsert of the same forecast leaves the stored rows
+        alone, and that a changed day is updated in place rather than replaced.
+     */
+    public void testBulkInsertSkipsUnchangedRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToFirst());
+        long firstRowId = cursor.getLong(0);
+        cursor.close();
+
+        // The same forecast again changes nothing
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: Unchanged rows should not be rewritten", 0, insertCount);
+
+        // A different forecast for the first day updates just that row
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[0].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                changedValues);
+        assertEquals("Error: Only the changed row should be written", 1, insertCount);
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: The changed row should keep its _id",
+                firstRowId, cursor.getLong(cursor.getColumnIndex(WeatherEntry._ID)));
+        TestUtilities.validateCurrentRecord("testBulkInsertSkipsUnchangedRows", cursor,
+                changedValues[0]);
+        cursor.close();
+    }
+
+    /*
+        This test makes sure a forecast covering only the first few days, as most syncs fetch,
+        updates those days and leaves the far days already stored in place.
+     */
+    public void testBulkInsertShortForecastKeepsFarDays() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] fullValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, fullValues);
+
+        ContentValues[] shortValues = new ContentValues[3];
+        for (int i = 0; i < shortValues.length; i++) {
+            shortValues[i] = new ContentValues(fullValues[i]);
+            shortValues[i].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                shortValues);
+        assertEquals(shortValues.length, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: The days past the short forecast should have been kept",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertTrue(cursor.moveToPosition(i));
+            TestUtilities.validateCurrentRecord("testBulkInsertShortForecastKeepsFarDays",
+                    cursor, i < shortValues.length ? shortValues[i] : fullValues[i]);
+        }
+        cursor.close();
+    }
+
+    static ContentValues[] createBulkInsertHourlyValues(long locationRowId, int firstHour,
+                                                        int count) {
+        long millisecondsInThreeHours = 1000 * 60 * 60 * 3;
+        ContentValues[] returnContentValues = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            // Values depend only on the hour, so overlapping forecasts agree
+            int hour = firstHour + i;
+            ContentValues hourlyValues = new ContentValues();
+            hourlyValues.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            hourlyValues.put(HourlyEntry.COLUMN_TIMESTAMP,
+                    TestUtilities.TEST_DATE * 1000 + hour * millisecondsInThreeHours);
+            hourlyValues.put(HourlyEntry.COLUMN_TEMP, -10.5 + hour);
+            hourlyValues.put(HourlyEntry.COLUMN_HUMIDITY, 80.0 + hour);
+            hourlyValues.put(HourlyEntry.COLUMN_PRESSURE, 1020.25);
+            hourlyValues.put(HourlyEntry.COLUMN_WIND_SPEED, 4.5);
+            hourlyValues.put(HourlyEntry.COLUMN_DEGREES, 232.5);
+            hourlyValues.put(HourlyEntry.COLUMN_SHORT_DESC, "Snow");
+            hourlyValues.put(HourlyEntry.COLUMN_WEATHER_ID, 600);
+            returnContentValues[i] = hourlyValues;
+        }
+        return returnContentValues;
+    }
+
+    /*
+        This test makes sure hourly bulk inserts skip hours that are already stored, and prune
+        the hours a newer forecast no longer covers.
+     */
+    public void testBulkInsertHourly() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                createBulkInsertHourlyValues(locationRowId, 0, 8));
+        assertEquals(8, insertCount);
+
+        // Honeycomb is needed to tell an unchanged hour from an updated one
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                    createBulkInsertHourlyValues(locationRowId, 0, 8));
+            assertEquals("Error: Unchanged hours should not be rewritten", 0, insertCount);
+        }
+
+        // A forecast two periods later drops the first two hours and adds two new ones
+        ContentValues[] laterValues = createBulkInsertHourlyValues(locationRowId, 2, 8);
+        insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                laterValues);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            assertEquals("Error: Only the new hours should be written", 2, insertCount);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, HourlyEntry.COLUMN_TIMESTAMP + " ASC");
+        assertEquals("Error: Past hours should have been pruned", 8, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < laterValues.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testBulkInsertHourly.  Error validating hour " + i,
+                    cursor, laterValues[i]);
+        }
+        cursor.close();
+    }
+
+    static ContentValues createCurrentValues(long locationRowId, long fetchedAt, double temp) {
+        ContentValues currentValues = new ContentValues();
+        currentValues.put(CurrentEntry.COLUMN_LOC_KEY, locationRowId);
+        currentValues.put(CurrentEntry.COLUMN_FETCHED_AT, fetchedAt);
+        currentValues.put(CurrentEntry.COLUMN_TEMP, temp);
+        currentValues.put(CurrentEntry.COLUMN_HUMIDITY, 1.2);
+        currentValues.put(CurrentEntry.COLUMN_PRESSURE, 1.3);
+        currentValues.put(CurrentEntry.COLUMN_WIND_SPEED, 5.5);
+        currentValues.put(CurrentEntry.COLUMN_DEGREES, 1.1);
+        currentValues.put(CurrentEntry.COLUMN_SHORT_DESC, "Asteroids");
+        currentValues.put(CurrentEntry.COLUMN_WEATHER_ID, 321);
+        return currentValues;
+    }
+
+    /*
+        This test makes sure a delete with a limit removes no more than that many of the
+        matching rows, so retention can prune a large table in short chunks.
+     */
+    public void testLimitedDelete() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        Uri limitedUri = WeatherContract.buildLimitedUri(WeatherEntry.CONTENT_URI, 3);
+        String cutoff = Long.toString(Long.MAX_VALUE);
+        assertEquals(3, mContext.getContentResolver().delete(limitedUri,
+                WeatherEntry.COLUMN_DATE + " < ?", new String[]{cutoff}));
+        assertEquals(3, mContext.getContentResolver().delete(limitedUri,
+                WeatherEntry.COLUMN_DATE + " < ?", new String[]{cutoff}));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 6, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        This test makes sure a location keeps a single row of current conditions, replaced by
+        each fetch, and that it can be read back by location setting along with its fetch time.
+     */
+    public void testCurrentConditionsReplaced() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        long fetchedAt = System.currentTimeMillis();
+        mContext.getContentResolver().insert(CurrentEntry.CONTENT_URI,
+                createCurrentValues(locationRowId, fetchedAt - 1000 * 60 * 30, -3.5));
+        ContentValues newerValues = createCurrentValues(locationRowId, fetchedAt, -2.0);
+        mContext.getContentResolver().insert(CurrentEntry.CONTENT_URI, newerValues);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                CurrentEntry.buildCurrentLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: A location should have one row of current conditions",
+                1, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testCurrentConditionsReplaced", cursor, newerValues);
+        long age = CurrentEntry.getAgeMillis(
+                cursor.getLong(cursor.getColumnIndex(CurrentEntry.COLUMN_FETCHED_AT)));
+        assertTrue("Error: Fresh conditions should be young", age < 1000 * 60);
+        cursor.close();
+    }
 }
@@ -36,6 +36,11 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_LOCATION_UPSERT_ITEM = WeatherContract.LocationEntry.buildLocationUpsertUri();
+    private static final Uri TEST_CURRENT_DIR = WeatherContract.CurrentEntry.CONTENT_URI;
+    private static final Uri TEST_CURRENT_WITH_LOCATION_ITEM = WeatherContract.CurrentEntry.buildCurrentLocation(LOCATION_QUERY);
+    private static final Uri TEST_HOURLY_DIR = WeatherContract.HourlyEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WITH_LOCATION_DIR = WeatherContract.HourlyEntry.buildHourlyLocation(LOCATION_QUERY);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +58,15 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The LOCATION UPSERT URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_UPSERT_ITEM), WeatherProvider.LOCATION_UPSERT);
+        assertEquals("Error: The HOURLY URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DIR), WeatherProvider.HOURLY);
+        assertEquals("Error: The HOURLY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WITH_LOCATION_DIR), WeatherProvider.HOURLY_WITH_LOCATION);
+        assertEquals("Error: The CURRENT URI was matched incorrectly.",
+                testMatcher.match(TEST_CURRENT_DIR), WeatherProvider.CURRENT);
+        assertEquals("Error: The CURRENT WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_CURRENT_WITH_LOCATION_ITEM), WeatherProvider.CURRENT_WITH_LOCATION);
     }
 }
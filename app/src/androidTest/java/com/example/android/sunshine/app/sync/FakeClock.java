@@ -0,0 +1,13 @@
+package com.example.android.sunshine.app.sync;
+
+/*
+    A Clock that only moves when a test moves it.
+ */
+class FakeClock implements Clock {
+    long now = 1419033600000L;  // December 20th, 2014
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A stand-in for OpenWeatherMap on the loopback interface, so the whole sync can run and be
+    timed without a network.
+
+    It answers the daily, 3 hourly and current conditions endpoints with synthetic responses
+    built from the query, or with a recorded body registered for the endpoint.  Latency, extra
+    body size, the share of requests that fail with a 503, whether ETags are honoured with a
+    304, and the Cache-Control header are all set by the test.  Connections are kept alive the
+    way OWM keeps them, so connection reuse is measured too.
+
+    Plain Java, so it runs the same on a device and on a desktop JVM.
+ */
+class FakeOwmServer {
+
+    static final String DAILY_PATH = "/data/2.5/forecast/daily";
+    static final String HOURLY_PATH = "/data/2.5/forecast";
+    static final String CURRENT_PATH = "/data/2.5/weather";
+
+    private static final long DAY_IN_SECONDS = 60 * 60 * 24;
+    private static final long START_SECONDS = 1419033600L;  // December 20th, 2014
+    private static final int HOURLY_PERIODS = 40;
+    private static final int DEFAULT_DAYS = 14;
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mConnections = Executors.newCachedThreadPool();
+    private final Map<String, String> mRecorded = new ConcurrentHashMap<String, String>();
+    private final Random mRandom = new Random(42);
+
+    private volatile long mLatencyMillis;
+    private volatile int mPaddingBytes;
+    private volatile double mErrorRate;
+    private volatile boolean mEtagsEnabled = true;
+    private volatile boolean mChangeEveryResponse;
+    private volatile String mCacheControl = "no-store";
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    FakeOwmServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "FakeOwmServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /*
+        The endpoint to give a FetchHedger to send requests here.
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/";
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /*
+        Pads every body with a field of this many bytes, which parsers skip.
+     */
+    void setPaddingBytes(int paddingBytes) {
+        mPaddingBytes = paddingBytes;
+    }
+
+    /*
+        The share of requests, from 0 to 1, answered with a 503 instead.
+     */
+    void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    void setEtagsEnabled(boolean etagsEnabled) {
+        mEtagsEnabled = etagsEnabled;
+    }
+
+    /*
+        Makes every response differ from the last one for the same location, so nothing the
+        sync stored can be reused.  Otherwise a location always gets the same forecast.
+     */
+    void setChangeEveryResponse(boolean changeEveryResponse) {
+        mChangeEveryResponse = changeEveryResponse;
+    }
+
+    /*
+        @param cacheControl the Cache-Control header to send, or null for none
+     */
+    void setCacheControl(String cacheControl) {
+        mCacheControl = cacheControl;
+    }
+
+    /*
+        Answers every request for the path with this body rather than a synthetic one.
+     */
+    void record(String path, String body) {
+        mRecorded.put(path, body);
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+        mConnections.shutdownNow();
+        try {
+            mConnections.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mConnections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // Closed by shutdown()
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                respond(out, requestLine.split(" ")[1], headers, keepAlive);
+            }
+        } catch (IOException e) {
+            // The client hung up, or shutdown() closed the socket
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String target, Map<String, String> headers,
+                         boolean keepAlive) throws IOException, InterruptedException {
+        mRequestCount.incrementAndGet();
+        if (mLatencyMillis > 0) {
+            Thread.sleep(mLatencyMillis);
+        }
+
+        boolean fail;
+        synchronized (mRandom) {
+            fail = mRandom.nextDouble() < mErrorRate;
+        }
+        if (fail) {
+            mErrorCount.incrementAndGet();
+            write(out, "503 Service Unavailable", null, null, "", keepAlive);
+            return;
+        }
+
+        int queryStart = target.indexOf('?');
+        String path = queryStart == -1 ? target : target.substring(0, queryStart);
+        Map<String, String> query =
+                parseQuery(queryStart == -1 ? "" : target.substring(queryStart + 1));
+        String body = mRecorded.get(path);
+        if (body == null) {
+            body = synthesize(path, query);
+        }
+        if (body == null) {
+            write(out, "404 Not Found", null, null, "", keepAlive);
+            return;
+        }
+
+        String etag = null;
+        if (mEtagsEnabled) {
+            etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+            if (etag.equals(headers.get("if-none-match"))) {
+                mNotModifiedCount.incrementAndGet();
+                write(out, "304 Not Modified", etag, mCacheControl, null, keepAlive);
+                return;
+            }
+        }
+        write(out, "200 OK", etag, mCacheControl, body, keepAlive);
+    }
+
+    private String synthesize(String path, Map<String, String> query) {
+        String location = query.containsKey("id") ? query.get("id") : query.get("q");
+        if (location == null) {
+            return null;
+        }
+        long cityId = query.containsKey("id")
+                ? Long.parseLong(query.get("id")) : (location.hashCode() & 0xffffff) + 1;
+        // Varies the temperatures from response to response when asked to
+        double offset = mChangeEveryResponse ? mGeneration.incrementAndGet() % 100 / 10.0 : 0;
+        double base = (cityId % 30) + offset;
+
+        StringBuilder json = new StringBuilder(4096 + mPaddingBytes);
+        json.append('{');
+        if (DAILY_PATH.equals(path)) {
+            int days = query.containsKey("cnt")
+                    ? Integer.parseInt(query.get("cnt")) : DEFAULT_DAYS;
+            appendCity(json, cityId);
+            json.append(",\"cod\":\"200\",\"message\":0.01,\"cnt\":").append(days)
+                    .append(",\"list\":[");
+            for (int i = 0; i < days; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"dt\":").append(START_SECONDS + i * DAY_IN_SECONDS)
+                        .append(",\"temp\":{\"day\":").append(base + i % 5)
+                        .append(",\"min\":").append(base + i % 5 - 4)
+                        .append(",\"max\":").append(base + i % 5 + 3)
+                        .append(",\"night\":").append(base - 5)
+                        .append(",\"eve\":").append(base)
+                        .append(",\"morn\":").append(base - 3)
+                        .append("},\"pressure\":").append(1013.25 + i)
+                        .append(",\"humidity\":").append(60 + i % 30)
+                        .append(',');
+                appendWeather(json, i);
+                json.append(",\"speed\":").append(2.5 + i % 4)
+                        .append(",\"deg\":").append(i * 25 % 360)
+                        .append(",\"clouds\":").append(i * 7 % 100)
+                        .append('}');
+            }
+            json.append(']');
+        } else if (HOURLY_PATH.equals(path)) {
+            json.append("\"cod\":\"200\",\"message\":0.01,\"cnt\":").append(HOURLY_PERIODS)
+                    .append(",\"list\":[");
+            for (int i = 0; i < HOURLY_PERIODS; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('{');
+                appendPeriod(json, START_SECONDS + i * 3 * 60 * 60, base + i % 8, i);
+                json.append('}');
+            }
+            json.append("],");
+            appendCity(json, cityId);
+        } else if (CURRENT_PATH.equals(path)) {
+            appendPeriod(json, START_SECONDS, base, 0);
+            json.append(",\"id\":").append(cityId).append(",\"cod\":200");
+        } else {
+            return null;
+        }
+        if (mPaddingBytes > 0) {
+            json.append(",\"padding\":\"");
+            for (int i = 0; i < mPaddingBytes; i++) {
+                json.append('x');
+            }
+            json.append('"');
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendCity(StringBuilder json, long cityId) {
+        // Named after the id, so asking by name or by id gets the same response
+        json.append("\"city\":{\"id\":").append(cityId)
+                .append(",\"name\":\"City ").append(cityId)
+                .append("\",\"coord\":{\"lon\":").append(cityId % 360 - 180)
+                .append(",\"lat\":").append(cityId % 180 - 90)
+                .append("},\"country\":\"XX\",\"population\":0}");
+    }
+
+    private static void appendPeriod(StringBuilder json, long time, double temperature, int i) {
+        json.append("\"dt\":").append(time)
+                .append(",\"main\":{\"temp\":").append(temperature)
+                .append(",\"pressure\":").append(1013.25 + i % 10)
+                .append(",\"humidity\":").append(60 + i % 30)
+                .append("},");
+        appendWeather(json, i);
+        json.append(",\"wind\":{\"speed\":").append(2.5 + i % 4)
+                .append(",\"deg\":").append(i * 25 % 360)
+                .append('}');
+    }
+
+    private static void appendWeather(StringBuilder json, int i) {
+        // Cycles through clear, clouds, rain and snow
+        int[] ids = {800, 803, 500, 601};
+        String[] names = {"Clear", "Clouds", "Rain", "Snow"};
+        String name = names[i % names.length];
+        json.append("\"weather\":[{\"id\":").append(ids[i % ids.length])
+                .append(",\"main\":\"").append(name)
+                .append("\",\"description\":\"").append(name.toLowerCase(Locale.US))
+                .append("\",\"icon\":\"01d\"}]");
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void write(OutputStream out, String status, String etag, String cacheControl,
+                              String body, boolean keepAlive) throws IOException {
+        byte[] bodyBytes = body != null ? body.getBytes("UTF-8") : new byte[0];
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Type: application/json; charset=utf-8\r\n");
+        head.append("Content-Length: ").append(bodyBytes.length).append("\r\n");
+        if (etag != null) {
+            head.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (cacheControl != null) {
+            head.append("Cache-Control: ").append(cacheControl).append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+        out.write(bodyBytes);
+        out.flush();
+    }
+
+    /*
+        Reads a header line without its CRLF, or returns null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/*
+    DataBudget holds no Android state, so these run as plain JUnit tests against a fake clock.
+ */
+public class TestDataBudget extends TestCase {
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final long BUDGET = 100 * 1024;
+    private static final String LOCATION = "99705";
+    private static final String OTHER_LOCATION = "London,UK";
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private FakeClock mClock;
+    private DataBudget mBudget;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mBudget = new DataBudget(mClock, UTC, null);
+    }
+
+    public void testCountsByNetworkAndLocation() {
+        Map<String, Long> bytes = new HashMap<String, Long>();
+        bytes.put(LOCATION, 1000L);
+        bytes.put(OTHER_LOCATION, 500L);
+        mBudget.recordSync(SyncScheduler.NETWORK_METERED, bytes);
+        mBudget.recordSync(SyncScheduler.NETWORK_UNMETERED, bytes);
+
+        assertEquals(1500, mBudget.getBytes(SyncScheduler.NETWORK_METERED, 1));
+        assertEquals(1500, mBudget.getBytes(SyncScheduler.NETWORK_UNMETERED, 1));
+        assertEquals(2000, mBudget.getLocationBytesToday(LOCATION));
+        assertEquals(1000, mBudget.getLocationBytesToday(OTHER_LOCATION));
+        assertEquals(2, mBudget.getSyncCountToday());
+    }
+
+    public void testLedgerRollsOverDaily() {
+        record(SyncScheduler.NETWORK_METERED, 1000);
+        mClock.now += DAY_IN_MILLIS;
+        record(SyncScheduler.NETWORK_METERED, 300);
+
+        assertEquals("Error: Yesterday's use shouldn't count against today's budget",
+                300, mBudget.getBytes(SyncScheduler.NETWORK_METERED, 1));
+        assertEquals(1300, mBudget.getBytes(SyncScheduler.NETWORK_METERED, 7));
+        assertEquals(300, mBudget.getLocationBytesToday(LOCATION));
+        assertEquals(1, mBudget.getSyncCountToday());
+
+        // Long enough for the first day to drop out of the ledger
+        mClock.now += DataBudget.LEDGER_DAYS * DAY_IN_MILLIS;
+        assertEquals(0, mBudget.getBytes(SyncScheduler.NETWORK_METERED,
+                DataBudget.LEDGER_DAYS));
+    }
+
+    public void testModeStepsDownAsBudgetIsUsed() {
+        assertEquals(DataBudget.MODE_FULL,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, BUDGET, false));
+
+        record(SyncScheduler.NETWORK_METERED, (long) (BUDGET * DataBudget.REDUCED_SHARE));
+        assertEquals(DataBudget.MODE_REDUCED,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, BUDGET, false));
+
+        record(SyncScheduler.NETWORK_METERED,
+                (long) (BUDGET * (DataBudget.MINIMAL_SHARE - DataBudget.REDUCED_SHARE)) + 1);
+        assertEquals(DataBudget.MODE_MINIMAL,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, BUDGET, false));
+
+        record(SyncScheduler.NETWORK_METERED, BUDGET);
+        assertEquals(DataBudget.MODE_OFF,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, BUDGET, false));
+        assertEquals("Error: A manual refresh should still get through, as cheaply as possible",
+                DataBudget.MODE_MINIMAL,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, BUDGET, true));
+
+        mClock.now += DAY_IN_MILLIS;
+        assertEquals("Error: A new day should bring a new budget", DataBudget.MODE_FULL,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, BUDGET, false));
+    }
+
+    public void testUnmeteredAndUnlimitedAreNeverLimited() {
+        record(SyncScheduler.NETWORK_METERED, 2 * BUDGET);
+        assertEquals(DataBudget.MODE_FULL,
+                mBudget.getMode(SyncScheduler.NETWORK_UNMETERED, BUDGET, false));
+        assertEquals(DataBudget.MODE_FULL,
+                mBudget.getMode(SyncScheduler.NETWORK_METERED, 0, false));
+    }
+
+    public void testSaveAndRestore() {
+        Map<String, Long> bytes = new HashMap<String, Long>();
+        bytes.put(LOCATION, 1000L);
+        bytes.put(OTHER_LOCATION, 500L);
+        mBudget.recordSync(SyncScheduler.NETWORK_METERED, bytes);
+        mClock.now += DAY_IN_MILLIS;
+        mBudget.recordSync(SyncScheduler.NETWORK_UNMETERED, bytes);
+
+        DataBudget restored = new DataBudget(mClock, UTC, mBudget.save());
+        assertEquals(1500, restored.getBytes(SyncScheduler.NETWORK_METERED, 2));
+        assertEquals(1500, restored.getBytes(SyncScheduler.NETWORK_UNMETERED, 1));
+        assertEquals(1, restored.getSyncCountToday());
+        assertEquals("Error: A location with a comma in it should survive the round trip",
+                500, restored.getLocationBytesToday(OTHER_LOCATION));
+        assertEquals(mBudget.save(), restored.save());
+    }
+
+    public void testUnreadableLedgerStartsEmpty() {
+        DataBudget restored = new DataBudget(mClock, UTC, "16424:x:1|=");
+        assertEquals(0, restored.getBytes(SyncScheduler.NETWORK_METERED, 1));
+        assertEquals("|", restored.save());
+    }
+
+    private void record(@SyncScheduler.NetworkType int network, long bytes) {
+        mBudget.recordSync(network, Collections.singletonMap(LOCATION, bytes));
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/*
+    FetchCircuitBreaker holds no Android state, so these run as plain JUnit tests against a fake
+    clock.  The Random is seeded so the jitter is repeatable.
+ */
+public class TestFetchCircuitBreaker extends TestCase {
+
+    private FakeClock mClock;
+    private FetchCircuitBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mBreaker = new FetchCircuitBreaker(mClock, new Random(42));
+    }
+
+    private void failUntilOpen() {
+        for (int i = 0; i < FetchCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+        }
+        assertEquals(FetchCircuitBreaker.STATE_OPEN, mBreaker.getState());
+    }
+
+    public void testOpensAfterRepeatedFailures() {
+        for (int i = 0; i < FetchCircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+        }
+        assertEquals("Error: The breaker opened too early",
+                FetchCircuitBreaker.STATE_CLOSED, mBreaker.getState());
+
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.recordFailure();
+        assertEquals(FetchCircuitBreaker.STATE_OPEN, mBreaker.getState());
+        assertFalse("Error: An open breaker should refuse requests", mBreaker.allowRequest());
+    }
+
+    public void testSuccessResetsFailureCount() {
+        for (int i = 0; i < FetchCircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+            mBreaker.recordFailure();
+        }
+        mBreaker.recordSuccess();
+        mBreaker.recordFailure();
+        assertEquals("Error: Only failures in a row should open the breaker",
+                FetchCircuitBreaker.STATE_CLOSED, mBreaker.getState());
+    }
+
+    public void testBackoffIsJitteredWithinBounds() {
+        failUntilOpen();
+        long delay = mBreaker.getRetryAtMillis() - mClock.now;
+        assertTrue(delay >= FetchCircuitBreaker.BASE_BACKOFF_MILLIS / 2);
+        assertTrue(delay <= FetchCircuitBreaker.BASE_BACKOFF_MILLIS);
+    }
+
+    public void testHalfOpenLetsOneProbeThrough() {
+        failUntilOpen();
+        mClock.now = mBreaker.getRetryAtMillis();
+
+        assertTrue("Error: The probe should be let through", mBreaker.allowRequest());
+        assertEquals(FetchCircuitBreaker.STATE_HALF_OPEN, mBreaker.getState());
+        assertFalse("Error: Only one probe at a time", mBreaker.allowRequest());
+
+        mBreaker.recordSuccess();
+        assertEquals(FetchCircuitBreaker.STATE_CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    public void testFailedProbeDoublesBackoff() {
+        failUntilOpen();
+        for (int i = 1; i < 4; i++) {
+            mClock.now = mBreaker.getRetryAtMillis();
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+            assertEquals(FetchCircuitBreaker.STATE_OPEN, mBreaker.getState());
+
+            long delay = mBreaker.getRetryAtMillis() - mClock.now;
+            long expected = FetchCircuitBreaker.BASE_BACKOFF_MILLIS << i;
+            assertTrue("Error: Backoff " + delay + " below " + expected / 2,
+                    delay >= expected / 2);
+            assertTrue("Error: Backoff " + delay + " above " + expected, delay <= expected);
+        }
+    }
+
+    public void testBackoffIsCapped() {
+        failUntilOpen();
+        for (int i = 0; i < 40; i++) {
+            mClock.now = mBreaker.getRetryAtMillis();
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+        }
+        assertTrue(mBreaker.getRetryAtMillis() - mClock.now
+                <= FetchCircuitBreaker.MAX_BACKOFF_MILLIS);
+    }
+
+    public void testLateFailuresDoNotExtendBackoff() {
+        failUntilOpen();
+        long retryAt = mBreaker.getRetryAtMillis();
+        // Requests that were already running when the breaker opened report in afterwards
+        mBreaker.recordFailure();
+        mBreaker.recordFailure();
+        assertEquals(retryAt, mBreaker.getRetryAtMillis());
+    }
+
+    public void testCancelledProbeFreesTheSlot() {
+        failUntilOpen();
+        mClock.now = mBreaker.getRetryAtMillis();
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.recordCancelled();
+        assertTrue("Error: Another probe should be allowed", mBreaker.allowRequest());
+    }
+
+    public void testRestoredBreakerStaysOpen() {
+        failUntilOpen();
+        FetchCircuitBreaker restored = new FetchCircuitBreaker(mClock, new Random(42),
+                mBreaker.getState(), mBreaker.getConsecutiveFailures(),
+                mBreaker.getOpenCount(), mBreaker.getRetryAtMillis());
+        assertFalse("Error: A restarted process should still respect the backoff",
+                restored.allowRequest());
+
+        mClock.now = mBreaker.getRetryAtMillis();
+        assertTrue(restored.allowRequest());
+        FetchCircuitBreaker restoredMidProbe = new FetchCircuitBreaker(mClock, new Random(42),
+                restored.getState(), restored.getConsecutiveFailures(),
+                restored.getOpenCount(), restored.getRetryAtMillis());
+        assertTrue("Error: A probe lost with the old process should not block new ones",
+                restoredMidProbe.allowRequest());
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Runs the hedger against two local stand-ins for OpenWeatherMap, a primary and a mirror,
+    with different delays.
+ */
+public class TestFetchHedger extends TestCase {
+
+    private static final long SLOW_MILLIS = 3000;
+
+    private FakeOwmServer mPrimary;
+    private FakeOwmServer mMirror;
+    private ExecutorService mExecutor;
+    private FetchHedger mHedger;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrimary = new FakeOwmServer();
+        mMirror = new FakeOwmServer();
+        mExecutor = Executors.newCachedThreadPool();
+        mHedger = new FetchHedger(
+                new String[]{mPrimary.getBaseUrl(), mMirror.getBaseUrl()}, mExecutor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrimary.shutdown();
+        mMirror.shutdown();
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testFastPrimaryIsNotHedged() throws IOException {
+        warmUp();
+        HttpURLConnection connection = fetch(true);
+        connection.disconnect();
+
+        assertEquals(mPrimary.getBaseUrl(), endpointOf(connection));
+        assertEquals("Error: A primary within its usual time shouldn't be hedged",
+                0, mMirror.getRequestCount());
+        assertEquals(0, mHedger.getHedgedCount());
+    }
+
+    public void testSlowPrimaryIsHedged() throws IOException {
+        warmUp();
+        mPrimary.setLatencyMillis(SLOW_MILLIS);
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = fetch(true);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        connection.disconnect();
+
+        assertEquals("Error: The mirror should have answered first",
+                mMirror.getBaseUrl(), endpointOf(connection));
+        assertTrue("Error: The hedged request took " + elapsedMillis + " ms",
+                elapsedMillis < SLOW_MILLIS);
+        assertEquals(1, mHedger.getHedgedCount());
+        assertEquals(1, mHedger.getMirrorWinCount());
+    }
+
+    public void testFailingPrimaryFailsOverAtOnce() throws IOException {
+        mPrimary.setErrorRate(1.0);
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = fetch(true);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        connection.disconnect();
+
+        assertEquals(mMirror.getBaseUrl(), endpointOf(connection));
+        assertTrue("Error: A failed primary shouldn't wait out the hedge delay, but took "
+                        + elapsedMillis + " ms",
+                elapsedMillis < FetchHedger.DEFAULT_HEDGE_DELAY_MILLIS);
+    }
+
+    public void testAllEndpointsFailing() {
+        mPrimary.setErrorRate(1.0);
+        mMirror.setErrorRate(1.0);
+        try {
+            fetch(true);
+            fail("Error: Should have failed when every endpoint did");
+        } catch (IOException expected) {
+            // as intended
+        }
+    }
+
+    public void testUnhedgedStaysOnPrimary() {
+        mPrimary.setErrorRate(1.0);
+        try {
+            fetch(false);
+            fail("Error: An unhedged request should fail with the primary");
+        } catch (IOException expected) {
+            // as intended
+        }
+        assertEquals(0, mMirror.getRequestCount());
+    }
+
+    public void testHedgeDelayIsP95() {
+        assertEquals(FetchHedger.DEFAULT_HEDGE_DELAY_MILLIS, mHedger.getHedgeDelayMillis());
+
+        for (int i = 1; i <= 100; i++) {
+            mHedger.recordSample(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        // Only the most recent 64 count, 37 to 100 ms, and the 61st of those is 97 ms
+        assertEquals(97, mHedger.getHedgeDelayMillis());
+
+        for (int i = 0; i < FetchHedger.SAMPLE_COUNT; i++) {
+            mHedger.recordSample(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertEquals(FetchHedger.MIN_HEDGE_DELAY_MILLIS, mHedger.getHedgeDelayMillis());
+    }
+
+    /*
+        Gives the hedger enough quick answers from the primary to bring its delay down from
+        the default to the minimum.
+     */
+    private void warmUp() throws IOException {
+        for (int i = 0; i < FetchHedger.MIN_SAMPLES; i++) {
+            fetch(false).disconnect();
+        }
+        assertEquals(FetchHedger.MIN_HEDGE_DELAY_MILLIS, mHedger.getHedgeDelayMillis());
+    }
+
+    private HttpURLConnection fetch(boolean hedge) throws IOException {
+        return mHedger.execute(new FetchHedger.Request<HttpURLConnection>() {
+            @Override
+            public FetchHedger.Attempt<HttpURLConnection> newAttempt(String endpoint)
+                    throws IOException {
+                final HttpURLConnection connection = (HttpURLConnection)
+                        new URL(endpoint + "forecast/daily?id=1&cnt=14").openConnection();
+                return new FetchHedger.Attempt<HttpURLConnection>() {
+                    @Override
+                    public HttpURLConnection call() throws IOException {
+                        int code = connection.getResponseCode();
+                        if (FetchCircuitBreaker.isServerError(code)) {
+                            throw new IOException("Server error " + code);
+                        }
+                        return connection;
+                    }
+
+                    @Override
+                    public void cancel() {
+                        connection.disconnect();
+                    }
+                };
+            }
+        }, hedge);
+    }
+
+    private static String endpointOf(HttpURLConnection connection) {
+        String url = connection.getURL().toString();
+        return url.substring(0, url.indexOf("forecast/"));
+    }
+}
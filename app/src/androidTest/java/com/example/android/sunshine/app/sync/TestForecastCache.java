@@ -0,0 +1,229 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+    Stores responses in a temporary directory and looks them up as a FakeClock moves on.
+ */
+public class TestForecastCache extends TestCase {
+
+    private static final String FORECAST_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?cnt=14&q=";
+    private static final String KEY = FORECAST_URL + "94043";
+    private static final String OTHER_KEY = FORECAST_URL + "10001";
+    private static final long SECOND = 1000;
+    private static final long DEFAULT_STALE_WHILE_REVALIDATE = 60 * SECOND;
+
+    private File mDirectory;
+    private FakeClock mClock;
+    private ForecastCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("cache", null);
+        mDirectory.delete();
+        mClock = new FakeClock();
+        mCache = new ForecastCache(mDirectory, 64 * 1024,
+                ForecastCache.EVICT_LEAST_RECENTLY_USED, DEFAULT_STALE_WHILE_REVALIDATE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testFreshEntryIsHit() throws IOException {
+        byte[] body = body('a', 100);
+        store(KEY, body, "max-age=600");
+        mClock.now += 599 * SECOND;
+
+        ForecastCache.Entry entry = mCache.get(KEY, mClock.now);
+        assertNotNull("Error: A fresh entry should have been found", entry);
+        assertTrue(entry.isFresh(mClock.now));
+        assertTrue(Arrays.equals(body, readFully(entry.openBody())));
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(0, mCache.getStaleCount());
+        assertEquals(0, mCache.getMissCount());
+    }
+
+    public void testStaleEntryIsServedWithinItsWindow() {
+        store(KEY, body('a', 100), "max-age=600, stale-while-revalidate=300");
+        mClock.now += 800 * SECOND;
+
+        ForecastCache.Entry entry = mCache.get(KEY, mClock.now);
+        assertNotNull("Error: A stale entry inside its window should have been served", entry);
+        assertFalse(entry.isFresh(mClock.now));
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(1, mCache.getStaleCount());
+    }
+
+    public void testExpiredEntryIsMiss() {
+        store(KEY, body('a', 100), "max-age=600, stale-while-revalidate=300");
+        mClock.now += 900 * SECOND;
+
+        assertNull("Error: An entry past its window should not have been served",
+                mCache.get(KEY, mClock.now));
+        assertEquals(0, mCache.getStaleCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    public void testDefaultWindowAppliesWhenServerDoesNotSay() {
+        store(KEY, body('a', 100), "max-age=600");
+
+        mClock.now += 600 * SECOND + DEFAULT_STALE_WHILE_REVALIDATE - 1;
+        assertNotNull(mCache.get(KEY, mClock.now));
+        mClock.now += 1;
+        assertNull(mCache.get(KEY, mClock.now));
+        assertEquals(1, mCache.getStaleCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    public void testNoStoreIsNotCached() {
+        InputStream body = new ByteArrayInputStream(body('a', 100));
+        assertSame("Error: A no-store response should have been read as it is",
+                body, mCache.put(KEY, body, "no-store", mClock.now));
+        assertNull(mCache.complete(body));
+        assertNull(mCache.get(KEY, mClock.now));
+    }
+
+    public void testCopyIsHiddenUntilPublished() throws IOException {
+        byte[] body = body('a', 100);
+        InputStream in = mCache.put(KEY, new ByteArrayInputStream(body), "max-age=600",
+                mClock.now);
+        // The parser needn't read to the end; completing the copy drains the rest
+        assertEquals('a', in.read());
+        ForecastCache.PendingEntry pending = mCache.complete(in);
+        in.close();
+        assertNotNull(pending);
+        assertNull("Error: A copy should not be served before its forecast is stored",
+                mCache.get(KEY, mClock.now));
+
+        mCache.publish(pending);
+        ForecastCache.Entry entry = mCache.get(KEY, mClock.now);
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(body, readFully(entry.openBody())));
+        assertTrue("Error: A published copy came from the database, so it is applied",
+                mCache.isApplied(entry));
+    }
+
+    public void testDiscardedCopyLeavesNothingBehind() {
+        InputStream in = mCache.put(KEY, new ByteArrayInputStream(body('a', 100)),
+                "max-age=600", mClock.now);
+        ForecastCache.PendingEntry pending = mCache.complete(in);
+        mCache.discard(pending);
+
+        assertNull(mCache.get(KEY, mClock.now));
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    public void testClosingBeforeCompletingDiscardsCopy() throws IOException {
+        InputStream in = mCache.put(KEY, new ByteArrayInputStream(body('a', 100)),
+                "max-age=600", mClock.now);
+        in.read(new byte[10]);
+        in.close();
+
+        assertNull(mCache.complete(in));
+        assertNull(mCache.get(KEY, mClock.now));
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    public void testOnlyTheEntryStoredIsApplied() {
+        store(KEY, body('a', 100), "max-age=600");
+        ForecastCache.Entry older = mCache.get(KEY, mClock.now);
+        assertTrue(mCache.isApplied(older));
+
+        // A new process knows nothing of what the last one stored
+        mCache = new ForecastCache(mDirectory, 64 * 1024,
+                ForecastCache.EVICT_LEAST_RECENTLY_USED, DEFAULT_STALE_WHILE_REVALIDATE);
+        assertFalse(mCache.isApplied(older));
+        mCache.markApplied(older);
+        assertTrue(mCache.isApplied(older));
+
+        mClock.now += 10 * SECOND;
+        store(KEY, body('b', 100), "max-age=600");
+        ForecastCache.Entry newer = mCache.get(KEY, mClock.now);
+        assertTrue(mCache.isApplied(newer));
+        assertFalse("Error: The replaced entry should no longer count as applied",
+                mCache.isApplied(older));
+
+        mCache.remove(KEY);
+        assertFalse(mCache.isApplied(newer));
+    }
+
+    public void testFreshenRestartsLifetime() {
+        store(KEY, body('a', 100), "max-age=600");
+        mClock.now += 630 * SECOND;
+        assertFalse(mCache.get(KEY, mClock.now).isFresh(mClock.now));
+
+        mCache.freshen(KEY, "max-age=600", mClock.now);
+        mClock.now += 500 * SECOND;
+        assertTrue("Error: A 304 should have made the entry fresh again",
+                mCache.get(KEY, mClock.now).isFresh(mClock.now));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        // Room for two entries of 100 bytes plus their headers, but not three
+        mCache = new ForecastCache(mDirectory, 300, ForecastCache.EVICT_LEAST_RECENTLY_USED,
+                DEFAULT_STALE_WHILE_REVALIDATE);
+        String thirdKey = FORECAST_URL + "98101";
+        store(KEY, body('a', 100), "max-age=600");
+        mClock.now += 10 * SECOND;
+        store(OTHER_KEY, body('b', 100), "max-age=600");
+        mClock.now += 10 * SECOND;
+        assertNotNull(mCache.get(KEY, mClock.now));
+        mClock.now += 10 * SECOND;
+        store(thirdKey, body('c', 100), "max-age=600");
+
+        assertNotNull("Error: The entry read last should have been kept",
+                mCache.get(KEY, mClock.now));
+        assertNull(mCache.get(OTHER_KEY, mClock.now));
+        assertNotNull(mCache.get(thirdKey, mClock.now));
+    }
+
+    /**
+     * Copies a response into the cache the way a sync does: read, completed, then published
+     * once its forecast would have been stored.
+     */
+    private void store(String key, byte[] body, String cacheControl) {
+        InputStream in = mCache.put(key, new ByteArrayInputStream(body), cacheControl,
+                mClock.now);
+        ForecastCache.PendingEntry pending = mCache.complete(in);
+        assertNotNull("Error: The response should have been copied", pending);
+        mCache.publish(pending);
+    }
+
+    private static byte[] body(char fill, int length) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) fill);
+        return body;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
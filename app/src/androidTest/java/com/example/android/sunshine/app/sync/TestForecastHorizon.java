@@ -0,0 +1,55 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+/*
+    ForecastHorizon holds no Android state, so these run as plain JUnit tests against a fake
+    clock.
+ */
+public class TestForecastHorizon extends TestCase {
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+    private static final String LOCATION = "99705";
+    private static final String OTHER_LOCATION = "94043";
+
+    private FakeClock mClock;
+    private ForecastHorizon mHorizon;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mHorizon = new ForecastHorizon(mClock);
+    }
+
+    public void testNewLocationGetsFullHorizon() {
+        assertEquals(ForecastHorizon.FULL_DAYS, mHorizon.getDays(LOCATION, false));
+    }
+
+    public void testFrequentRefreshesGetShortWindow() {
+        mHorizon.recordFetch(LOCATION, ForecastHorizon.FULL_DAYS);
+        for (int i = 0; i < 7; i++) {
+            mClock.now += 3 * HOUR_IN_MILLIS;
+            assertEquals("Error: A refresh " + (i + 1) * 3 + " hours after a full fetch "
+                            + "should be short",
+                    ForecastHorizon.SHORT_DAYS, mHorizon.getDays(LOCATION, false));
+            mHorizon.recordFetch(LOCATION, ForecastHorizon.SHORT_DAYS);
+        }
+        // Short fetches don't reset the clock on the far days
+        mClock.now += 3 * HOUR_IN_MILLIS;
+        assertEquals(ForecastHorizon.FULL_DAYS, mHorizon.getDays(LOCATION, false));
+        assertEquals("Error: Another location's full fetch shouldn't count for this one",
+                ForecastHorizon.FULL_DAYS, mHorizon.getDays(OTHER_LOCATION, false));
+    }
+
+    public void testScrollingPastStoredDaysGetsFullHorizon() {
+        mHorizon.recordFetch(LOCATION, ForecastHorizon.FULL_DAYS);
+        mClock.now += HOUR_IN_MILLIS;
+        assertEquals(ForecastHorizon.FULL_DAYS, mHorizon.getDays(LOCATION, true));
+    }
+
+    public void testClockGoingBackGetsFullHorizon() {
+        mHorizon.setLastFullFetch(LOCATION, mClock.now + HOUR_IN_MILLIS);
+        assertEquals(ForecastHorizon.FULL_DAYS, mHorizon.getDays(LOCATION, false));
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Writes journals to a temporary file and reopens them, as a new process would after a crash.
+ */
+public class TestForecastJournal extends TestCase {
+
+    private static final long FETCHED_AT = 1419033600000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("journal", null);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testUncommittedEntryIsReplayed() throws IOException {
+        // Long enough to span several chunks
+        byte[] body = body('a', 2 * ForecastJournal.CHUNK_SIZE + 100);
+        record(new ForecastJournal(mFile), "94043", body);
+
+        ForecastJournal reopened = new ForecastJournal(mFile);
+        List<ForecastJournal.Entry> entries = reopened.getUncommitted(false);
+        assertEquals(1, entries.size());
+        assertEquals("94043", entries.get(0).locationSetting);
+        assertEquals(FETCHED_AT, entries.get(0).fetchedAt);
+        assertTrue(Arrays.equals(body, readFully(reopened.openBody(entries.get(0)))));
+    }
+
+    public void testCommittedEntryIsNotReplayed() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        long seq = record(journal, "94043", body('a', 100));
+        journal.commit(Collections.singletonList(seq));
+
+        assertTrue(new ForecastJournal(mFile).getUncommitted(false).isEmpty());
+    }
+
+    public void testTornRecordIsCutOff() throws IOException {
+        byte[] body = body('a', 100);
+        record(new ForecastJournal(mFile), "94043", body);
+
+        // A second response that died part way through its entry record
+        record(new ForecastJournal(mFile), "10001", body('b', 100));
+        long tornLength = mFile.length() - 3;
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(tornLength);
+        file.close();
+
+        ForecastJournal reopened = new ForecastJournal(mFile);
+        List<ForecastJournal.Entry> entries = reopened.getUncommitted(false);
+        assertEquals(1, entries.size());
+        assertEquals("94043", entries.get(0).locationSetting);
+        assertTrue(Arrays.equals(body, readFully(reopened.openBody(entries.get(0)))));
+        assertTrue("Error: The torn record should have been cut off, not just skipped",
+                mFile.length() < tornLength);
+    }
+
+    public void testCorruptRecordIsCutOff() throws IOException {
+        record(new ForecastJournal(mFile), "94043", body('a', 100));
+        long validLength = mFile.length();
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(body('x', 50));
+        out.close();
+
+        assertEquals(1, new ForecastJournal(mFile).getUncommitted(false).size());
+        assertEquals(validLength, mFile.length());
+    }
+
+    public void testAbandonedRecordingIsIgnored() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        ForecastJournal.Recorder abandoned =
+                journal.record(new ByteArrayInputStream(body('a', 100)));
+        readFully(abandoned);
+        abandoned.close();
+        long seq = record(journal, "10001", body('b', 100));
+
+        List<ForecastJournal.Entry> entries = new ForecastJournal(mFile).getUncommitted(false);
+        assertEquals(1, entries.size());
+        assertEquals(seq, entries.get(0).seq);
+    }
+
+    public void testInterleavedRecordingsAreKeptApart() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        byte[] first = body('a', 3 * ForecastJournal.CHUNK_SIZE);
+        byte[] second = body('b', 3 * ForecastJournal.CHUNK_SIZE);
+        ForecastJournal.Recorder firstRecorder = journal.record(new ByteArrayInputStream(first));
+        ForecastJournal.Recorder secondRecorder =
+                journal.record(new ByteArrayInputStream(second));
+        byte[] buffer = new byte[ForecastJournal.CHUNK_SIZE];
+        for (int i = 0; i < 3; i++) {
+            assertEquals(buffer.length, firstRecorder.read(buffer));
+            assertEquals(buffer.length, secondRecorder.read(buffer));
+        }
+        journal.append("94043", FETCHED_AT, firstRecorder);
+        journal.append("10001", FETCHED_AT, secondRecorder);
+
+        ForecastJournal reopened = new ForecastJournal(mFile);
+        List<ForecastJournal.Entry> entries = reopened.getUncommitted(false);
+        assertEquals(2, entries.size());
+        assertTrue(Arrays.equals(first, readFully(reopened.openBody(entries.get(0)))));
+        assertTrue(Arrays.equals(second, readFully(reopened.openBody(entries.get(1)))));
+    }
+
+    public void testCompactionKeepsEntryUntilCommitted() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        long seq = record(journal, "94043", body('a', 100));
+        journal.compact();
+        assertTrue(mFile.length() > 0);
+
+        journal.commit(Collections.singletonList(seq));
+        journal.compact();
+        assertEquals(0, mFile.length());
+
+        // Nothing left from before, and new entries carry on from there
+        long next = record(journal, "10001", body('b', 100));
+        assertTrue(next > seq);
+        assertEquals(1, new ForecastJournal(mFile).getUncommitted(false).size());
+    }
+
+    public void testEntryAppendedByThisProcessIsLeftToItsSync() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        byte[] body = body('a', 100);
+        long seq = record(journal, "94043", body);
+
+        assertTrue("Error: A running sync's entry shouldn't be handed out for replay",
+                journal.getUncommitted(false).isEmpty());
+        // Once its sync has failed to commit it, the next sync replays it
+        List<ForecastJournal.Entry> entries = journal.getUncommitted(true);
+        assertEquals(1, entries.size());
+        assertEquals(seq, entries.get(0).seq);
+        assertTrue(Arrays.equals(body, readFully(journal.openBody(entries.get(0)))));
+    }
+
+    public void testCompactionKeepsUncommittedEntries() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        long committed = record(journal, "94043", body('a', 3 * ForecastJournal.CHUNK_SIZE));
+        byte[] body = body('b', 2 * ForecastJournal.CHUNK_SIZE + 100);
+        long uncommitted = record(journal, "10001", body);
+        journal.commit(Collections.singletonList(committed));
+        long length = mFile.length();
+
+        journal.compact();
+        assertTrue("Error: Compaction should have dropped the committed entry",
+                mFile.length() < length);
+        List<ForecastJournal.Entry> entries = journal.getUncommitted(true);
+        assertEquals(1, entries.size());
+        assertEquals(uncommitted, entries.get(0).seq);
+        assertTrue(Arrays.equals(body, readFully(journal.openBody(entries.get(0)))));
+
+        ForecastJournal reopened = new ForecastJournal(mFile);
+        entries = reopened.getUncommitted(false);
+        assertEquals(1, entries.size());
+        assertTrue(Arrays.equals(body, readFully(reopened.openBody(entries.get(0)))));
+    }
+
+    public void testDiscardedRecordingIsIgnored() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        ForecastJournal.Recorder recorder =
+                journal.record(new ByteArrayInputStream(body('a', 2 * ForecastJournal.CHUNK_SIZE)));
+        recorder.read(new byte[ForecastJournal.CHUNK_SIZE]);
+        recorder.discard();
+        readFully(recorder);
+
+        journal.compact();
+        assertEquals("Error: A discarded recording shouldn't hold up compaction",
+                0, mFile.length());
+        try {
+            journal.append("94043", FETCHED_AT, recorder);
+            fail("Error: A discarded recording shouldn't be appended");
+        } catch (IllegalStateException expected) {
+            // as intended
+        }
+        recorder.close();
+        assertTrue(new ForecastJournal(mFile).getUncommitted(false).isEmpty());
+    }
+
+    public void testCompactionWaitsForRecordings() throws IOException {
+        ForecastJournal journal = new ForecastJournal(mFile);
+        ForecastJournal.Recorder recorder =
+                journal.record(new ByteArrayInputStream(body('a', 2 * ForecastJournal.CHUNK_SIZE)));
+        recorder.read(new byte[ForecastJournal.CHUNK_SIZE]);
+        journal.compact();
+        assertTrue("Error: Compaction shouldn't cut the chunks of a response being read",
+                mFile.length() > 0);
+
+        readFully(recorder);
+        journal.append("94043", FETCHED_AT, recorder);
+        recorder.close();
+        assertEquals(2 * ForecastJournal.CHUNK_SIZE, new ForecastJournal(mFile)
+                .getUncommitted(false).get(0).bodyLength);
+    }
+
+    private static long record(ForecastJournal journal, String locationSetting, byte[] body)
+            throws IOException {
+        ForecastJournal.Recorder recorder = journal.record(new ByteArrayInputStream(body));
+        try {
+            readFully(recorder);
+            return journal.append(locationSetting, FETCHED_AT, recorder);
+        } finally {
+            recorder.close();
+        }
+    }
+
+    private static byte[] body(char fill, int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (fill + i % 7);
+        }
+        return body;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Feeds the daily forecast parser hand written bodies, good and bad.
+ */
+public class TestForecastParser extends TestCase {
+
+    private static final String CITY = "\"city\":{\"id\":5881791,\"name\":\"Fairbanks\","
+            + "\"coord\":{\"lon\":-147.72,\"lat\":64.84}}";
+    private static final String WEATHER = "\"weather\":[{\"id\":800,\"main\":\"Clear\"}]";
+    private static final String TEMP = "\"temp\":{\"min\":-20.5,\"max\":-10.5}";
+
+    private List<ForecastParser.Day> mDays;
+    private long mCityId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDays = new ArrayList<ForecastParser.Day>();
+        mCityId = -1;
+    }
+
+    public void testParsesDays() throws Exception {
+        int code = parse("{" + CITY + ",\"cod\":\"200\",\"list\":["
+                + day(1000, 80, 2.5, 90) + "," + day(1001, 70, 3.5, 180) + "]}");
+
+        assertEquals(200, code);
+        assertEquals(5881791, mCityId);
+        assertEquals(2, mDays.size());
+        assertEquals(1, mDays.get(1).index);
+        assertEquals(1001.0, mDays.get(1).pressure);
+        assertEquals(70, mDays.get(1).humidity);
+        assertEquals(-10.5, mDays.get(1).high);
+        assertEquals("Clear", mDays.get(1).description);
+        assertEquals(800, mDays.get(1).weatherId);
+    }
+
+    public void testDayMissingAFieldIsInvalid() throws IOException {
+        // The second day has no wind speed; it mustn't get the first day's
+        String second = "{\"pressure\":1001,\"humidity\":70,\"deg\":180," + TEMP + ","
+                + WEATHER + "}";
+        try {
+            parse("{" + CITY + ",\"list\":[" + day(1000, 80, 2.5, 90) + "," + second + "]}");
+            fail("Error: A day without a wind speed should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+    }
+
+    public void testDayWithoutWeatherIsInvalid() throws IOException {
+        String second = "{\"pressure\":1001,\"humidity\":70,\"speed\":3.5,\"deg\":180,"
+                + TEMP + ",\"weather\":[]}";
+        try {
+            parse("{" + CITY + ",\"list\":[" + day(1000, 80, 2.5, 90) + "," + second + "]}");
+            fail("Error: A day with an empty weather array should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+    }
+
+    public void testBadSyntaxIsInvalid() throws IOException {
+        try {
+            parse("{" + CITY + ",\"list\":[" + day(1000, 80, 2.5, 90) + ",}");
+            fail("Error: A body that isn't JSON should have been rejected");
+        } catch (JSONException expected) {
+            // as intended, rather than an IOException that would mark the server down
+        }
+    }
+
+    public void testWrongTypeIsInvalid() throws IOException {
+        try {
+            parse("{" + CITY + ",\"list\":{}}");
+            fail("Error: A list that isn't an array should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+    }
+
+    public void testMissingCityIsInvalid() throws IOException {
+        try {
+            parse("{\"list\":[" + day(1000, 80, 2.5, 90) + "]}");
+            fail("Error: A forecast without a city should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+    }
+
+    public void testMissingListIsInvalid() throws IOException {
+        try {
+            parse("{" + CITY + ",\"cod\":\"200\"}");
+            fail("Error: A forecast without a list of days should have been rejected");
+        } catch (JSONException expected) {
+            // as intended, as the JSONObject path does, rather than storing no days
+        }
+    }
+
+    public void testCityWithoutNameIsInvalid() throws IOException {
+        try {
+            parse("{\"city\":{\"id\":5881791,\"coord\":{\"lon\":-147.72,\"lat\":64.84}},"
+                    + "\"list\":[" + day(1000, 80, 2.5, 90) + "]}");
+            fail("Error: A city without a name should have been rejected");
+        } catch (JSONException expected) {
+            // as intended, rather than an SQLException from the writer later on
+        }
+    }
+
+    public void testCityWithoutCoordinatesIsInvalid() throws IOException {
+        try {
+            parse("{\"city\":{\"id\":5881791,\"name\":\"Fairbanks\",\"coord\":{\"lon\":-147.72}},"
+                    + "\"list\":[" + day(1000, 80, 2.5, 90) + "]}");
+            fail("Error: A city without a latitude should have been rejected");
+        } catch (JSONException expected) {
+            // as intended, rather than storing it at 0/0
+        }
+    }
+
+    public void testErrorCodeIsReturned() throws Exception {
+        assertEquals(404, parse("{\"cod\":\"404\",\"message\":\"city not found\"}"));
+        assertTrue(mDays.isEmpty());
+    }
+
+    private static String day(double pressure, int humidity, double speed, double deg) {
+        return "{\"pressure\":" + pressure + ",\"humidity\":" + humidity
+                + ",\"speed\":" + speed + ",\"deg\":" + deg + "," + TEMP + "," + WEATHER + "}";
+    }
+
+    private int parse(String body) throws IOException, JSONException {
+        return new ForecastParser(new ForecastParser.Listener() {
+            @Override
+            public void onCity(long cityId, String cityName, double lat, double lon) {
+                mCityId = cityId;
+            }
+
+            @Override
+            public void onDay(ForecastParser.Day day) {
+                mDays.add(day.copy());
+            }
+        }).parse(new ByteArrayInputStream(body.getBytes("UTF-8")));
+    }
+}
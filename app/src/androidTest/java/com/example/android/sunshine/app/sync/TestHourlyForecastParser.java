@@ -0,0 +1,100 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    Feeds the 3 hourly and current conditions parser hand written bodies, good and bad.
+ */
+public class TestHourlyForecastParser extends TestCase {
+
+    private static final String WEATHER = "\"weather\":[{\"id\":500,\"main\":\"Rain\"}]";
+
+    private int mHourCount;
+    private HourlyForecastParser.Hour mLastHour;
+
+    public void testParsesPeriods() throws Exception {
+        int code = parse("{\"cod\":\"200\",\"list\":[" + period(1419033600L, true) + ","
+                + period(1419044400L, true) + "]}");
+
+        assertEquals(200, code);
+        assertEquals(2, mHourCount);
+        assertEquals(1419044400L, mLastHour.time);
+        assertEquals(4.5, mLastHour.windSpeed);
+        assertEquals("Rain", mLastHour.description);
+    }
+
+    public void testPeriodMissingAFieldIsInvalid() throws IOException {
+        try {
+            parse("{\"list\":[" + period(1419033600L, true) + ","
+                    + period(1419044400L, false) + "]}");
+            fail("Error: A period without wind should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+        assertEquals(1, mHourCount);
+    }
+
+    public void testBadSyntaxIsInvalid() throws IOException {
+        try {
+            // No comma between the periods
+            parse("{\"list\":[" + period(1419033600L, true) + period(1419044400L, true)
+                    + "]}");
+            fail("Error: A body that isn't JSON should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+    }
+
+    public void testCurrentMissingAFieldIsInvalid() throws IOException {
+        try {
+            parseCurrent("{" + period(1419033600L, false).substring(1));
+            fail("Error: Current conditions without wind should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+        assertEquals(0, mHourCount);
+    }
+
+    public void testCurrentBadSyntaxIsInvalid() throws IOException {
+        try {
+            parseCurrent("{\"dt\":1419033600 \"main\"}");
+            fail("Error: A body that isn't JSON should have been rejected");
+        } catch (JSONException expected) {
+            // as intended
+        }
+    }
+
+    private static String period(long time, boolean withWind) {
+        return "{\"dt\":" + time
+                + ",\"main\":{\"temp\":-12.5,\"pressure\":1013,\"humidity\":80}," + WEATHER
+                + (withWind ? ",\"wind\":{\"speed\":4.5,\"deg\":270}" : "") + "}";
+    }
+
+    private HourlyForecastParser newParser() {
+        return new HourlyForecastParser(new HourlyForecastParser.Listener() {
+            @Override
+            public void onHour(HourlyForecastParser.Hour hour) {
+                mHourCount++;
+                mLastHour = hour;
+            }
+        });
+    }
+
+    private int parse(String body) throws IOException, JSONException {
+        return newParser().parse(toStream(body));
+    }
+
+    private int parseCurrent(String body) throws IOException, JSONException {
+        return newParser().parseCurrent(toStream(body));
+    }
+
+    private static InputStream toStream(String body) throws IOException {
+        return new ByteArrayInputStream(body.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Plain JUnit tests; the policy prunes a fake table through a fake pruner.
+ */
+public class TestRetentionPolicy extends TestCase {
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+    private static final long DAY_IN_MILLIS = HOUR_IN_MILLIS * 24;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private FakeClock mClock;
+
+    /*
+        A table of row times, deleted from oldest first like an index scan would.
+     */
+    private static class FakePruner implements RetentionPolicy.Pruner {
+        final List<Long> rows = new ArrayList<Long>();
+        final List<Integer> chunks = new ArrayList<Integer>();
+
+        @Override
+        public int deleteChunk(String table, String column, long cutoff, int limit) {
+            int deleted = 0;
+            while (deleted < limit && !rows.isEmpty() && rows.get(0) < cutoff) {
+                rows.remove(0);
+                deleted++;
+            }
+            chunks.add(deleted);
+            return deleted;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        // Mid afternoon
+        mClock.now += 15 * HOUR_IN_MILLIS;
+    }
+
+    public void testKeepDaysCutsAtLocalMidnight() {
+        long midnight = mClock.now - 15 * HOUR_IN_MILLIS;
+        RetentionPolicy policy = new RetentionPolicy(mClock, UTC)
+                .keepDays("weather", "date", 0)
+                .keepDays("archive", "date", 7);
+
+        assertEquals("Error: Keeping no history should keep today",
+                midnight, policy.getCutoff(policy.getRules().get(0)));
+        assertEquals(midnight - 7 * DAY_IN_MILLIS, policy.getCutoff(policy.getRules().get(1)));
+
+        RetentionPolicy east = new RetentionPolicy(mClock, TimeZone.getTimeZone("GMT+10:00"))
+                .keepDays("weather", "date", 0);
+        assertEquals("Error: The cutoff should follow the stored dates' time zone",
+                midnight + 14 * HOUR_IN_MILLIS, east.getCutoff(east.getRules().get(0)));
+    }
+
+    public void testKeepAgeCutsAtAge() {
+        RetentionPolicy policy = new RetentionPolicy(mClock, UTC)
+                .keepAge("hourly", "timestamp", DAY_IN_MILLIS);
+        assertEquals(mClock.now - DAY_IN_MILLIS, policy.getCutoff(policy.getRules().get(0)));
+    }
+
+    public void testPrunesInChunksUntilDone() {
+        RetentionPolicy policy = new RetentionPolicy(mClock, UTC)
+                .keepAge("hourly", "timestamp", DAY_IN_MILLIS);
+        FakePruner pruner = new FakePruner();
+        int old = RetentionPolicy.CHUNK_SIZE * 2 + 10;
+        for (int i = 0; i < old; i++) {
+            pruner.rows.add(mClock.now - 2 * DAY_IN_MILLIS + i);
+        }
+        pruner.rows.add(mClock.now);
+
+        assertEquals(old, policy.prune(pruner, new AtomicBoolean()));
+        assertEquals("Error: Pruning should stop at the first short chunk",
+                3, pruner.chunks.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(RetentionPolicy.CHUNK_SIZE, pruner.chunks.get(i).intValue());
+        }
+        assertEquals("Error: Recent rows should be kept", 1, pruner.rows.size());
+    }
+
+    public void testStopsBetweenChunks() {
+        RetentionPolicy policy = new RetentionPolicy(mClock, UTC)
+                .keepAge("hourly", "timestamp", DAY_IN_MILLIS);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        FakePruner pruner = new FakePruner() {
+            @Override
+            public int deleteChunk(String table, String column, long cutoff, int limit) {
+                // The device stops being idle during the first chunk
+                stopped.set(true);
+                return super.deleteChunk(table, column, cutoff, limit);
+            }
+        };
+        for (int i = 0; i < RetentionPolicy.CHUNK_SIZE * 3; i++) {
+            pruner.rows.add(0L);
+        }
+
+        assertEquals(RetentionPolicy.CHUNK_SIZE, policy.prune(pruner, stopped));
+        assertEquals(RetentionPolicy.CHUNK_SIZE * 2, pruner.rows.size());
+
+        stopped.set(false);
+        FakePruner resumed = new FakePruner();
+        resumed.rows.addAll(pruner.rows);
+        policy.prune(resumed, stopped);
+        assertTrue("Error: The next run should finish the job", resumed.rows.isEmpty());
+    }
+}
@@ -0,0 +1,336 @@
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+
+/*
+    Runs whole syncs, from onPerformSync through parsing and the provider's bulk write to the
+    fan-out hand-off, against FakeOwmServer instead of OpenWeatherMap, and logs how long they
+    took and how much they allocated.
+
+    Each scenario runs SYNC_COUNT syncs of LOCATION_COUNT locations and logs a line like
+        changing forecasts: 20 syncs of 5 locations, p50 38 ms, p99 61 ms, 9120 allocations
+        (1204 KB) per sync, 200 requests on 10 connections
+    under the TestSyncBenchmark tag.  Allocations are counted across all threads, the stand-in
+    server's included, so compare them between runs rather than reading them as absolutes.
+
+    The assertions only guard what each scenario is about; the numbers are for reading.  The
+    syncs use a cache, journal and data budget of their own and hand new data to a fan-out that
+    does nothing, so no widget, notification or broadcast sees it, and the app's preferences
+    and sync schedule are put back afterwards.  To run just these:
+        adb shell am instrument -w -e class \
+            com.example.android.sunshine.app.sync.TestSyncBenchmark \
+            com.example.android.sunshine.app.test/android.test.InstrumentationTestRunner
+ */
+public class TestSyncBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncBenchmark.class.getSimpleName();
+
+    private static final int SYNC_COUNT = 20;
+    private static final int LOCATION_COUNT = 5;
+    private static final String LOCATION_PREFIX = "benchmark-";
+
+    // Stands in for the widgets, Muzei and the notification, so only the hand-off is measured
+    private static final Runnable FAN_OUT_CONSUMER = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private FakeOwmServer mServer;
+    private ForecastCache mCache;
+    private Map<String, Object> mSavedPreferences;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedPreferences = new HashMap<String, Object>(prefs.getAll());
+
+        deleteAllRecords();
+        mServer = new FakeOwmServer();
+        SunshineSyncAdapter.setFetchHedger(new FetchHedger(
+                new String[]{mServer.getBaseUrl()}, Executors.newCachedThreadPool()));
+        SunshineSyncAdapter.setFetchBreaker(
+                new FetchCircuitBreaker(new FakeClock(), new Random(42)));
+        SunshineSyncAdapter.setDataBudget(
+                new DataBudget(Clock.SYSTEM, TimeZone.getDefault(), null));
+        // Every scenario starts from an empty cache and journal
+        deleteDirectory(getTestCacheDir());
+        getTestJournalFile().delete();
+        mCache = new ForecastCache(getTestCacheDir(), 512 * 1024,
+                ForecastCache.EVICT_LEAST_RECENTLY_USED, 0);
+        SunshineSyncAdapter.setForecastCache(mCache);
+        SunshineSyncAdapter.setForecastJournal(new ForecastJournal(getTestJournalFile()));
+
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            ContentValues location = new ContentValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    LOCATION_PREFIX + i);
+            // Stored with an OWM id, so the cache key doesn't change once the first sync does
+            location.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, i + 1);
+            location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Benchmark " + i);
+            location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 0.0);
+            location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, 0.0);
+            mContext.getContentResolver().insert(
+                    WeatherContract.LocationEntry.CONTENT_URI, location);
+        }
+
+        // The preferred location is always synced, so make it one of ours.  Each location
+        // starts without a horizon or volatility, as its rows start without validators.
+        SharedPreferences.Editor editor = prefs.edit()
+                .putString(mContext.getString(R.string.pref_location_key), LOCATION_PREFIX + 0);
+        String horizonPrefix = mContext.getString(R.string.pref_horizon_full_fetch_prefix);
+        String volatilityPrefix = mContext.getString(R.string.pref_sync_volatility_prefix);
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            editor.remove(horizonPrefix + LOCATION_PREFIX + i)
+                    .remove(volatilityPrefix + LOCATION_PREFIX + i);
+        }
+        editor.commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunshineSyncAdapter.setFetchHedger(null);
+        SunshineSyncAdapter.setForecastCache(null);
+        SunshineSyncAdapter.setForecastJournal(null);
+        deleteDirectory(getTestCacheDir());
+        getTestJournalFile().delete();
+        mServer.shutdown();
+
+        // Don't leave the app believing OpenWeatherMap is down, or with the benchmarks' sync
+        // times, horizons and data usage
+        restorePreferences();
+        SunshineSyncAdapter.setFetchBreaker(null);
+        SunshineSyncAdapter.setDataBudget(null);
+
+        // The syncs will have rescheduled themselves for the benchmark's forecasts
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            SyncJobService.schedulePrefetch(mContext, -1);
+        }
+        int syncInterval = (int) (PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getLong(mContext.getString(R.string.pref_sync_interval_key),
+                        SunshineSyncAdapter.SYNC_INTERVAL * 1000L) / 1000);
+        SunshineSyncAdapter.configurePeriodicSync(mContext, syncInterval, syncInterval / 3);
+
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    /*
+        Every response carries a new forecast, so every sync downloads, parses and writes
+        everything: the worst case for the write path.
+     */
+    public void testChangingForecasts() throws Exception {
+        mServer.setEtagsEnabled(false);
+        mServer.setChangeEveryResponse(true);
+
+        run("changing forecasts");
+        assertNothingCached();
+        assertEquals("Error: Every location should have been fetched each time",
+                SYNC_COUNT * LOCATION_COUNT * 2, mServer.getRequestCount());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                Utility.getLocationStatus(mContext));
+    }
+
+    /*
+        Nothing changes between syncs, which is the common case: after the first sync every
+        forecast should come back as a 304.
+     */
+    public void testUnchangedForecasts() throws Exception {
+        run("unchanged forecasts");
+        assertNothingCached();
+        assertTrue("Error: Unchanged forecasts should have been answered with a 304",
+                mServer.getNotModifiedCount() >= (SYNC_COUNT - 1) * LOCATION_COUNT);
+    }
+
+    /*
+        A slow server, with large bodies, so time on the network dominates.
+     */
+    public void testSlowServer() throws Exception {
+        mServer.setEtagsEnabled(false);
+        mServer.setChangeEveryResponse(true);
+        mServer.setLatencyMillis(50);
+        mServer.setPaddingBytes(16 * 1024);
+
+        run("slow server");
+        assertNothingCached();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                Utility.getLocationStatus(mContext));
+    }
+
+    /*
+        Every request fails.  Once the breaker has opened, the remaining syncs shouldn't
+        reach the server at all.
+     */
+    public void testServerDown() throws Exception {
+        mServer.setErrorRate(1.0);
+
+        run("server down");
+        assertNothingCached();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+        assertTrue("Error: The breaker should have stopped requests reaching the server, but "
+                        + mServer.getRequestCount() + " did",
+                mServer.getRequestCount() < LOCATION_COUNT + FetchCircuitBreaker.FAILURE_THRESHOLD);
+    }
+
+    /*
+        Not a benchmark: the server lets forecasts be cached for an hour, so once the first
+        sync has stored them the second should be answered from the cache without a request.
+     */
+    public void testSecondSyncHitsCache() throws Exception {
+        mServer.setCacheControl("max-age=3600");
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, FAN_OUT_CONSUMER);
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        // Both syncs ask for the same number of days, which is part of the cache key
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_FULL_HORIZON, true);
+
+        sync(adapter, extras);
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(LOCATION_COUNT, mCache.getMissCount());
+        int requests = mServer.getRequestCount();
+
+        sync(adapter, extras);
+        assertEquals("Error: Every location should have come from the cache",
+                LOCATION_COUNT, mCache.getHitCount());
+        assertEquals(LOCATION_COUNT, mCache.getMissCount());
+        assertEquals("Error: Fresh cached forecasts shouldn't be fetched again",
+                requests, mServer.getRequestCount());
+    }
+
+    private void sync(SunshineSyncAdapter adapter, Bundle extras) {
+        String authority = mContext.getString(R.string.content_authority);
+        ContentProviderClient client =
+                mContext.getContentResolver().acquireContentProviderClient(authority);
+        try {
+            adapter.onPerformSync(SunshineSyncAdapter.getSyncAccount(mContext), extras,
+                    authority, client, new SyncResult());
+        } finally {
+            client.release();
+        }
+    }
+
+    /*
+        FakeOwmServer marks its responses no-store unless told otherwise, so every lookup of
+        every sync should have missed.
+     */
+    private void assertNothingCached() {
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(SYNC_COUNT * LOCATION_COUNT, mCache.getMissCount());
+    }
+
+    private void run(String scenario) {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, FAN_OUT_CONSUMER);
+        Account account = SunshineSyncAdapter.getSyncAccount(mContext);
+        String authority = mContext.getString(R.string.content_authority);
+        Bundle extras = new Bundle();
+        // Manual, so the coordinator doesn't skip syncs that follow each other closely
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+
+        long[] latencies = new long[SYNC_COUNT];
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < SYNC_COUNT; i++) {
+                ContentProviderClient client =
+                        mContext.getContentResolver().acquireContentProviderClient(authority);
+                try {
+                    long start = System.nanoTime();
+                    adapter.onPerformSync(account, extras, authority, client, new SyncResult());
+                    latencies[i] = System.nanoTime() - start;
+                } finally {
+                    client.release();
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        Arrays.sort(latencies);
+        Log.i(LOG_TAG, scenario + ": " + SYNC_COUNT + " syncs of " + LOCATION_COUNT
+                + " locations, p50 " + percentileMillis(latencies, 50)
+                + " ms, p99 " + percentileMillis(latencies, 99) + " ms, "
+                + Debug.getGlobalAllocCount() / SYNC_COUNT + " allocations ("
+                + Debug.getGlobalAllocSize() / SYNC_COUNT / 1024 + " KB) per sync, "
+                + mServer.getRequestCount() + " requests on "
+                + mServer.getConnectionCount() + " connections");
+    }
+
+    /*
+        Nearest rank percentile of sorted nanosecond timings, in milliseconds.
+     */
+    private static long percentileMillis(long[] sortedNanos, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedNanos.length);
+        return sortedNanos[Math.max(rank, 1) - 1] / 1000000;
+    }
+
+    private File getTestCacheDir() {
+        return new File(mContext.getCacheDir(), "test-forecast");
+    }
+
+    private File getTestJournalFile() {
+        return new File(mContext.getCacheDir(), "test-forecast.journal");
+    }
+
+    private void restorePreferences() {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit().clear();
+        for (Map.Entry<String, Object> saved : mSavedPreferences.entrySet()) {
+            String key = saved.getKey();
+            Object value = saved.getValue();
+            if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            }
+        }
+        editor.commit();
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void deleteAllRecords() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.CurrentEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+/*
+    Plain JUnit tests; the coordinator is handed the time rather than reading a clock.
+ */
+public class TestSyncCoordinator extends TestCase {
+
+    private static final String LOCATION = "99705";
+    private static final String OTHER_LOCATION = "94043";
+    private static final long NOW = 1419033600000L;
+
+    private SyncCoordinator mCoordinator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCoordinator = new SyncCoordinator();
+    }
+
+    public void testBurstIsMergedIntoOneSync() {
+        assertTrue("Error: The first request should open a window", mCoordinator.request(false));
+        assertFalse(mCoordinator.request(false));
+        assertFalse(mCoordinator.request(false));
+        assertEquals(2, mCoordinator.getMergedCount());
+
+        assertEquals(SyncCoordinator.DISPATCH_EXPEDITED, mCoordinator.dispatch(LOCATION));
+        assertTrue("Error: A request after the window should open a new one",
+                mCoordinator.request(false));
+    }
+
+    public void testAnyManualRequestMakesTheSyncManual() {
+        mCoordinator.request(false);
+        mCoordinator.request(true);
+        mCoordinator.request(false);
+        assertEquals(SyncCoordinator.DISPATCH_MANUAL, mCoordinator.dispatch(LOCATION));
+
+        mCoordinator.request(false);
+        assertEquals("Error: Manual shouldn't carry over into the next window",
+                SyncCoordinator.DISPATCH_EXPEDITED, mCoordinator.dispatch(LOCATION));
+    }
+
+    public void testRequestForRunningSyncIsDropped() {
+        assertTrue(mCoordinator.onSyncStarted(LOCATION, true, NOW));
+        mCoordinator.request(true);
+        assertEquals(SyncCoordinator.DISPATCH_NONE, mCoordinator.dispatch(LOCATION));
+        assertEquals(1, mCoordinator.getDroppedCount());
+
+        mCoordinator.request(true);
+        assertEquals("Error: A sync for a different location should still go ahead",
+                SyncCoordinator.DISPATCH_MANUAL, mCoordinator.dispatch(OTHER_LOCATION));
+
+        mCoordinator.onSyncFinished(true, NOW);
+        mCoordinator.request(false);
+        assertEquals(SyncCoordinator.DISPATCH_EXPEDITED, mCoordinator.dispatch(LOCATION));
+    }
+
+    public void testFrameworkSyncRightAfterSameSyncIsSkipped() {
+        assertTrue(mCoordinator.onSyncStarted(LOCATION, true, NOW));
+        mCoordinator.onSyncFinished(true, NOW);
+
+        assertFalse(mCoordinator.onSyncStarted(LOCATION, false, NOW + 1000));
+        assertEquals(1, mCoordinator.getSkippedCount());
+        assertTrue("Error: Requested syncs always run",
+                mCoordinator.onSyncStarted(LOCATION, true, NOW + 1000));
+        mCoordinator.onSyncFinished(true, NOW + 1000);
+
+        assertTrue("Error: A different location isn't a duplicate",
+                mCoordinator.onSyncStarted(OTHER_LOCATION, false, NOW + 2000));
+        mCoordinator.onSyncFinished(true, NOW + 2000);
+
+        assertTrue(mCoordinator.onSyncStarted(OTHER_LOCATION, false,
+                NOW + 2000 + SyncCoordinator.DUPLICATE_WINDOW_MILLIS));
+    }
+
+    public void testFailedSyncIsNotADuplicate() {
+        assertTrue(mCoordinator.onSyncStarted(LOCATION, true, NOW));
+        mCoordinator.onSyncFinished(false, NOW);
+        assertTrue(mCoordinator.onSyncStarted(LOCATION, false, NOW + 1000));
+    }
+}
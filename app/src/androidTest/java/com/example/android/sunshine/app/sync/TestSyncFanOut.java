@@ -0,0 +1,193 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Plain JUnit tests; consumer runs are queued on an executor the test drains by hand, or on
+    real threads held back by latches.
+ */
+public class TestSyncFanOut extends TestCase {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /*
+        Collects submitted runs until the test decides to run them.
+     */
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> runs = new ArrayList<Runnable>(queued);
+            queued.clear();
+            for (Runnable run : runs) {
+                run.run();
+            }
+        }
+    }
+
+    private static Runnable counting(final AtomicInteger count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    public void testQueuedUpdatesAreMerged() {
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger widgets = new AtomicInteger();
+        AtomicInteger notifications = new AtomicInteger();
+        SyncFanOut fanOut = new SyncFanOut(executor, counting(widgets), counting(notifications));
+
+        fanOut.post();
+        fanOut.post();
+        fanOut.post();
+        assertEquals("Error: Each consumer should be queued only once", 2, executor.queued.size());
+        assertEquals(4, fanOut.getMergedCount());
+        assertEquals(3, fanOut.getPostedCount());
+
+        executor.runAll();
+        assertEquals(1, widgets.get());
+        assertEquals(1, notifications.get());
+
+        fanOut.post();
+        executor.runAll();
+        assertEquals("Error: An update after the run should queue another", 2, widgets.get());
+    }
+
+    public void testUpdateDuringRunQueuesOneMore() {
+        final ManualExecutor executor = new ManualExecutor();
+        final AtomicInteger runs = new AtomicInteger();
+        final SyncFanOut[] fanOut = new SyncFanOut[1];
+        fanOut[0] = new SyncFanOut(executor, new Runnable() {
+            @Override
+            public void run() {
+                // New data arrives while this consumer is busy with the last lot
+                if (runs.incrementAndGet() == 1) {
+                    fanOut[0].post();
+                    fanOut[0].post();
+                }
+            }
+        });
+
+        fanOut[0].post();
+        executor.runAll();
+        assertEquals("Error: The update during the run should have queued exactly one more",
+                1, executor.queued.size());
+        executor.runAll();
+        assertEquals(2, runs.get());
+        assertTrue(executor.queued.isEmpty());
+    }
+
+    public void testFailingConsumerStillHearsLaterUpdates() {
+        ManualExecutor executor = new ManualExecutor();
+        final AtomicInteger attempts = new AtomicInteger();
+        SyncFanOut fanOut = new SyncFanOut(executor, new Runnable() {
+            @Override
+            public void run() {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("No widgets today");
+            }
+        });
+
+        fanOut.post();
+        executor.runAll();
+        fanOut.post();
+        executor.runAll();
+        assertEquals(2, attempts.get());
+    }
+
+    public void testConsumerNeverRunsConcurrentlyWithItself() throws InterruptedException {
+        final int updates = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final AtomicInteger latest = new AtomicInteger();
+            final AtomicInteger seen = new AtomicInteger();
+            final AtomicInteger active = new AtomicInteger();
+            final AtomicInteger maxActive = new AtomicInteger();
+            SyncFanOut fanOut = new SyncFanOut(executor, new Runnable() {
+                @Override
+                public void run() {
+                    int now = active.incrementAndGet();
+                    if (now > maxActive.get()) {
+                        maxActive.set(now);
+                    }
+                    seen.set(latest.get());
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    active.decrementAndGet();
+                }
+            });
+
+            for (int i = 1; i <= updates; i++) {
+                latest.set(i);
+                fanOut.post();
+                if (i % 10 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+            while (seen.get() != updates && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("Error: The consumer should have seen the last update", updates,
+                    seen.get());
+            assertEquals("Error: The consumer ran on two threads at once", 1, maxActive.get());
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    public void testSlowConsumerDelaysNeitherPostNorOthers() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch widgetsDone = new CountDownLatch(1);
+            SyncFanOut fanOut = new SyncFanOut(executor,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            // The notification waiting on its artwork
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    },
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            widgetsDone.countDown();
+                        }
+                    });
+
+            fanOut.post();
+            assertTrue("Error: The widgets shouldn't wait for the notification",
+                    widgetsDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            release.countDown();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+}
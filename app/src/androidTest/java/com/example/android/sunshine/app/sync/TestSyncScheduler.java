@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+/*
+    SyncScheduler holds no Android state, so these run as plain JUnit tests against a fake clock.
+ */
+public class TestSyncScheduler extends TestCase {
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+    private static final String LOCATION = "99705";
+    private static final String OTHER_LOCATION = "94043";
+
+    private FakeClock mClock;
+    private SyncScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mScheduler = new SyncScheduler(mClock, 0);
+    }
+
+    public void testUnknownLocationsKeepDefaultInterval() {
+        assertEquals(3 * HOUR_IN_MILLIS,
+                mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false));
+    }
+
+    public void testVolatileForecastSyncsSooner() {
+        for (int i = 0; i < 10; i++) {
+            mScheduler.recordForecast(LOCATION, true);
+        }
+        long interval = mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false);
+        assertTrue("Error: A volatile forecast should sync more often than the default",
+                interval < 3 * HOUR_IN_MILLIS);
+        assertTrue(interval >= SyncScheduler.MIN_INTERVAL_MILLIS);
+    }
+
+    public void testStableForecastSyncsLessOften() {
+        for (int i = 0; i < 10; i++) {
+            mScheduler.recordForecast(LOCATION, false);
+        }
+        long interval = mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false);
+        assertTrue("Error: A stable forecast should sync less often than the default",
+                interval > 3 * HOUR_IN_MILLIS);
+        assertTrue(interval <= SyncScheduler.MAX_INTERVAL_MILLIS);
+    }
+
+    public void testVolatilityFollowsRecentForecasts() {
+        for (int i = 0; i < 10; i++) {
+            mScheduler.recordForecast(LOCATION, true);
+        }
+        double volatileScore = mScheduler.getVolatility(LOCATION);
+        for (int i = 0; i < 3; i++) {
+            mScheduler.recordForecast(LOCATION, false);
+        }
+        assertTrue("Error: A few unchanged forecasts should calm the location down",
+                mScheduler.getVolatility(LOCATION) < volatileScore / 4);
+    }
+
+    public void testMostVolatileLocationSetsThePace() {
+        for (int i = 0; i < 10; i++) {
+            mScheduler.recordForecast(LOCATION, false);
+        }
+        long stableInterval =
+                mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false);
+        for (int i = 0; i < 10; i++) {
+            mScheduler.recordForecast(OTHER_LOCATION, true);
+        }
+        assertTrue(mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false)
+                < stableInterval);
+    }
+
+    public void testMeteredNetworkStretchesInterval() {
+        assertTrue(mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_METERED, false)
+                > mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false));
+    }
+
+    public void testChargingOnUnmeteredShortensInterval() {
+        assertTrue(mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, true)
+                < mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_UNMETERED, false));
+        assertEquals("Error: Charging shouldn't matter on a metered network",
+                mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_METERED, false),
+                mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_METERED, true));
+    }
+
+    public void testIntervalNeverLetsDataGoStale() {
+        for (int i = 0; i < 10; i++) {
+            mScheduler.recordForecast(LOCATION, false);
+        }
+        mScheduler.recordSuccess();
+
+        mClock.now += SyncScheduler.MAX_STALENESS_MILLIS - 2 * HOUR_IN_MILLIS;
+        assertEquals("Error: The next sync should land before the data is too old",
+                2 * HOUR_IN_MILLIS,
+                mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_METERED, false));
+
+        mClock.now += 4 * HOUR_IN_MILLIS;
+        assertEquals("Error: Overdue data should be retried at the shortest interval",
+                SyncScheduler.MIN_INTERVAL_MILLIS,
+                mScheduler.getSyncIntervalMillis(SyncScheduler.NETWORK_METERED, false));
+    }
+
+    public void testSmallChangesDoNotReschedule() {
+        assertFalse(SyncScheduler.shouldReschedule(3 * HOUR_IN_MILLIS,
+                3 * HOUR_IN_MILLIS + HOUR_IN_MILLIS / 10));
+        assertTrue(SyncScheduler.shouldReschedule(3 * HOUR_IN_MILLIS, 2 * HOUR_IN_MILLIS));
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.sunshine.app.sync;
+
+import junit.framework.TestCase;
+
+import java.util.TimeZone;
+
+/*
+    UsagePredictor holds no Android state, so these run as plain JUnit tests against a fake
+    clock.  The fake clock starts at midnight UTC on a Saturday.
+ */
+public class TestUsagePredictor extends TestCase {
+
+    private static final long MINUTE_IN_MILLIS = 1000 * 60;
+    private static final long HOUR_IN_MILLIS = 60 * MINUTE_IN_MILLIS;
+    private static final long WEEK_IN_MILLIS = 7 * 24 * HOUR_IN_MILLIS;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private FakeClock mClock;
+    private long mSaturday;
+    private UsagePredictor mPredictor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mSaturday = mClock.now;
+        mPredictor = new UsagePredictor(mClock, UTC, null);
+    }
+
+    public void testOneOffUseIsNotPredicted() {
+        useAt(7 * HOUR_IN_MILLIS + 40 * MINUTE_IN_MILLIS);
+        mSaturday += WEEK_IN_MILLIS;
+        mClock.now = mSaturday;
+        assertEquals(-1, mPredictor.getNextUse());
+    }
+
+    public void testWeeklyHabitIsPredicted() {
+        useAt(7 * HOUR_IN_MILLIS + 40 * MINUTE_IN_MILLIS);
+        mSaturday += WEEK_IN_MILLIS;
+        useAt(7 * HOUR_IN_MILLIS + 35 * MINUTE_IN_MILLIS);
+
+        // From the Monday after, the next use expected is on Saturday, at the start of the
+        // half hour both uses fell in
+        mClock.now = mSaturday + 2 * 24 * HOUR_IN_MILLIS;
+        assertEquals(mSaturday + WEEK_IN_MILLIS + 7 * HOUR_IN_MILLIS + 30 * MINUTE_IN_MILLIS,
+                mPredictor.getNextUse());
+    }
+
+    public void testRepeatedUsesCountOnce() {
+        useAt(7 * HOUR_IN_MILLIS);
+        useAt(7 * HOUR_IN_MILLIS + 5 * MINUTE_IN_MILLIS);
+        useAt(7 * HOUR_IN_MILLIS + 10 * MINUTE_IN_MILLIS);
+        assertEquals("Error: Opening the app a few times in a row should count as one use",
+                UsagePredictor.USE_SCORE, mPredictor.getScore(mClock.now));
+    }
+
+    public void testHabitFades() {
+        for (int week = 0; week < 2; week++) {
+            useAt(7 * HOUR_IN_MILLIS);
+            mSaturday += WEEK_IN_MILLIS;
+        }
+        mClock.now = mSaturday;
+        assertTrue(mPredictor.getNextUse() != -1);
+
+        mClock.now += 3 * WEEK_IN_MILLIS;
+        assertEquals("Error: A habit that stopped three weeks ago shouldn't be expected",
+                -1, mPredictor.getNextUse());
+    }
+
+    public void testPrefetchMovesTheNextSync() {
+        long interval = 3 * HOUR_IN_MILLIS;
+        for (int week = 0; week < 2; week++) {
+            useAt(7 * HOUR_IN_MILLIS + 40 * MINUTE_IN_MILLIS);
+            mSaturday += WEEK_IN_MILLIS;
+        }
+        long expectedUse = mSaturday + 7 * HOUR_IN_MILLIS + 30 * MINUTE_IN_MILLIS;
+
+        // The periodic sync would run at 8:00, after the use
+        mClock.now = mSaturday + 5 * HOUR_IN_MILLIS;
+        assertEquals(expectedUse - UsagePredictor.LEAD_MILLIS,
+                mPredictor.getPrefetchTime(mClock.now, interval));
+
+        // The periodic sync would run at 9:30, but the data is only 45 minutes old at the use
+        mClock.now = mSaturday + 6 * HOUR_IN_MILLIS + 30 * MINUTE_IN_MILLIS;
+        assertEquals(-1, mPredictor.getPrefetchTime(mClock.now, interval));
+
+        // The periodic sync already runs at 6:00, before the use
+        mClock.now = mSaturday + 3 * HOUR_IN_MILLIS;
+        assertEquals(-1, mPredictor.getPrefetchTime(mClock.now, interval));
+    }
+
+    public void testSaveAndRestore() {
+        useAt(7 * HOUR_IN_MILLIS);
+        mSaturday += WEEK_IN_MILLIS;
+        useAt(7 * HOUR_IN_MILLIS);
+
+        UsagePredictor restored = new UsagePredictor(mClock, UTC, mPredictor.save());
+        assertEquals(mPredictor.getScore(mClock.now), restored.getScore(mClock.now));
+        assertEquals(mPredictor.getNextUse(), restored.getNextUse());
+        assertEquals(mPredictor.save(), restored.save());
+
+        // The last use is kept too, so a use right after a restart still counts once
+        mClock.now += MINUTE_IN_MILLIS;
+        restored.recordUse();
+        assertEquals(mPredictor.getScore(mClock.now), restored.getScore(mClock.now));
+    }
+
+    public void testUnreadableScoresStartEmpty() {
+        UsagePredictor restored = new UsagePredictor(mClock, UTC, "2346:0|400=4");
+        assertEquals(0, restored.getScore(mClock.now));
+        assertEquals(-1, restored.getNextUse());
+    }
+
+    private void useAt(long sinceMidnight) {
+        mClock.now = mSaturday + sinceMidnight;
+        mPredictor.recordUse();
+    }
+}
@@ -24,6 +24,7 @@ import android.support.v7.widget.Toolbar;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 public class DetailActivity extends AppCompatActivity {
 
@@ -51,4 +52,11 @@ public class DetailActivity extends AppCompatActivity {
             supportPostponeEnterTransition();
         }
     }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Reached straight from the detail widget, without going through MainActivity
+        SunshineSyncAdapter.recordUse(this);
+    }
 }
\ No newline at end of file
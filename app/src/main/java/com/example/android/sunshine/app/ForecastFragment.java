@@ -200,6 +200,18 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // specify an adapter (see also next example)
         mRecyclerView.setAdapter(mForecastAdapter);
 
+        // Most syncs only fetch the next few days, so reaching the end of the list asks for more
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int count = mForecastAdapter.getItemCount();
+                if (dy > 0 && count > 0 && ((LinearLayoutManager) recyclerView.getLayoutManager())
+                        .findLastVisibleItemPosition() == count - 1) {
+                    SunshineSyncAdapter.requestFullForecast(getActivity(), count);
+                }
+            }
+        });
+
         final View parallaxView = rootView.findViewById(R.id.parallax_bar);
         if (null != parallaxView) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
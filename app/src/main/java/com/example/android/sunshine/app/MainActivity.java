@@ -35,6 +35,7 @@ import android.view.MenuItem;
 import android.view.View;
 
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.CurrentConditions;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
@@ -149,6 +150,19 @@ public class MainActivity extends AppCompatActivity implements ForecastFragment.
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        CurrentConditions.acquire(this, CurrentConditions.CONSUMER_UI);
+        SunshineSyncAdapter.recordUse(this);
+    }
+
+    @Override
+    protected void onStop() {
+        CurrentConditions.release(this, CurrentConditions.CONSUMER_UI);
+        super.onStop();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
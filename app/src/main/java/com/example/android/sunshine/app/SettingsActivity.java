@@ -26,6 +26,7 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.NotificationArtCache;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 /**
@@ -50,6 +51,7 @@ public class SettingsActivity extends PreferenceActivity
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_art_pack_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_data_budget_key)));
     }
 
     // Registers a shared preference change listener that gets notified when preferences change
@@ -146,6 +148,10 @@ public class SettingsActivity extends PreferenceActivity
         } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
             // art pack have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            // and have the new pack's artwork ready for the next notification
+            NotificationArtCache.warm(this);
+        } else if ( key.equals(getString(R.string.pref_enable_notifications_key)) ) {
+            NotificationArtCache.warm(this);
         }
     }
 
@@ -257,34 +257,57 @@ public class Utility {
      * @return url for the corresponding weather artwork. null if no relation is found.
      */
     public static String getArtUrlForWeatherCondition(Context context, int weatherId) {
+        String artBucket = getArtBucketForWeatherCondition(weatherId);
+        if (artBucket == null) {
+            return null;
+        }
+        return String.format(Locale.US, getArtPack(context), artBucket);
+    }
+
+    /**
+     * Helper method to return the URL format of the chosen art pack.
+     *
+     * @param context Context to use for retrieving the preference
+     * @return format with a single placeholder for the art bucket
+     */
+    public static String getArtPack(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String formatArtUrl = prefs.getString(context.getString(R.string.pref_art_pack_key),
+        return prefs.getString(context.getString(R.string.pref_art_pack_key),
                 context.getString(R.string.pref_art_pack_sunshine));
+    }
 
+    /**
+     * Helper method to provide the name of the artwork according to the weather condition id
+     * returned by the OpenWeatherMap call.  Every art pack has one image per name.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return name of the corresponding artwork. null if no relation is found.
+     */
+    public static String getArtBucketForWeatherCondition(int weatherId) {
         // Based on weather code data found at:
         // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
         if (weatherId >= 200 && weatherId <= 232) {
-            return String.format(Locale.US, formatArtUrl, "storm");
+            return "storm";
         } else if (weatherId >= 300 && weatherId <= 321) {
-            return String.format(Locale.US, formatArtUrl, "light_rain");
+            return "light_rain";
         } else if (weatherId >= 500 && weatherId <= 504) {
-            return String.format(Locale.US, formatArtUrl, "rain");
+            return "rain";
         } else if (weatherId == 511) {
-            return String.format(Locale.US, formatArtUrl, "snow");
+            return "snow";
         } else if (weatherId >= 520 && weatherId <= 531) {
-            return String.format(Locale.US, formatArtUrl, "rain");
+            return "rain";
         } else if (weatherId >= 600 && weatherId <= 622) {
-            return String.format(Locale.US, formatArtUrl, "snow");
+            return "snow";
         } else if (weatherId >= 701 && weatherId <= 761) {
-            return String.format(Locale.US, formatArtUrl, "fog");
+            return "fog";
         } else if (weatherId == 761 || weatherId == 781) {
-            return String.format(Locale.US, formatArtUrl, "storm");
+            return "storm";
         } else if (weatherId == 800) {
-            return String.format(Locale.US, formatArtUrl, "clear");
+            return "clear";
         } else if (weatherId == 801) {
-            return String.format(Locale.US, formatArtUrl, "light_clouds");
+            return "light_clouds";
         } else if (weatherId >= 802 && weatherId <= 804) {
-            return String.format(Locale.US, formatArtUrl, "clouds");
+            return "clouds";
         }
         return null;
     }
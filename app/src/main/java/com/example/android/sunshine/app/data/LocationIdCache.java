@@ -0,0 +1,38 @@
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide map from location setting to the row ID of its location, so writers can key
+ * their rows without asking the provider first.
+ *
+ * Only {@link WeatherProvider} fills it, as it adds locations, and it empties it whenever a
+ * location row is deleted, given a different setting, or rolled back, so an ID found here is
+ * always one the location table holds.
+ */
+public final class LocationIdCache {
+
+    private static final Map<String, Long> sIds = new HashMap<String, Long>();
+
+    private LocationIdCache() {
+    }
+
+    /**
+     * @return the row ID of the location with this setting, or -1 if it isn't cached
+     */
+    public static synchronized long get(String locationSetting) {
+        Long id = sIds.get(locationSetting);
+        return id != null ? id : -1;
+    }
+
+    static synchronized void put(String locationSetting, long id) {
+        if (locationSetting != null) {
+            sIds.put(locationSetting, id);
+        }
+    }
+
+    static synchronized void clear() {
+        sIds.clear();
+    }
+}
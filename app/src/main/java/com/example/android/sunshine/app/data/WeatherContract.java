@@ -43,6 +43,19 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_CURRENT = "current";
+    // Appended to the location path, inserts a location or refreshes the one already stored
+    // with the same setting
+    public static final String PATH_UPSERT = "upsert";
+
+    // Caps how many rows a delete removes, so a large delete can be split into short ones
+    public static final String PARAM_LIMIT = "limit";
+
+    public static Uri buildLimitedUri(Uri contentUri, int limit) {
+        return contentUri.buildUpon()
+                .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+    }
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,9 +94,29 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // OpenWeatherMap's numeric id for the city, as returned by the API.  Once known it is
+        // used in place of the location setting when asking for forecasts, which is exact and
+        // spares the server a text search.  Null until the first forecast has been stored.
+        public static final String COLUMN_CITY_ID = "city_id";
+
+        // HTTP cache validators from the last forecast response that was stored for this
+        // location, sent back as If-None-Match / If-Modified-Since so an unchanged forecast
+        // costs a 304 instead of a full download.  Either may be null.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // Fingerprint of the raw body of the last forecast response stored for this location.
+        // A response with the same fingerprint holds nothing new, so it is not written again.
+        // Null until the first forecast has been stored.
+        public static final String COLUMN_FINGERPRINT = "fingerprint";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationUpsertUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_UPSERT).build();
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -165,4 +198,108 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the forecast period, stored as long in milliseconds since the epoch.  OWM
+        // forecasts in 3 hour steps, so these are not normalized the way daily dates are.
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+
+        // Temperature for the period (stored as a float)
+        public static final String COLUMN_TEMP = "temp";
+
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildHourlyLocationWithStartTime(String locationSetting, long startTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(COLUMN_TIMESTAMP, Long.toString(startTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String timeString = uri.getQueryParameter(COLUMN_TIMESTAMP);
+            if (null != timeString && timeString.length() > 0)
+                return Long.parseLong(timeString);
+            else
+                return 0;
+        }
+    }
+
+    /* Inner class that defines the table contents of the current conditions table */
+    public static final class CurrentEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CURRENT).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CURRENT;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CURRENT;
+
+        public static final String TABLE_NAME = "current";
+
+        // Column with the foreign key into the location table.  Each location has at most one
+        // row, replaced by every fetch.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // When the conditions were fetched, in milliseconds since the epoch.  See getAgeMillis.
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+
+        // Temperature right now (stored as a float)
+        public static final String COLUMN_TEMP = "temp";
+
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildCurrentLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        /**
+         * Returns how old the conditions in a row are, for showing how fresh they are.
+         *
+         * @param fetchedAt the row's {@link #COLUMN_FETCHED_AT}
+         */
+        public static long getAgeMillis(long fetchedAt) {
+            return Math.max(0, System.currentTimeMillis() - fetchedAt);
+        }
+    }
 }
@@ -19,6 +19,8 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.sunshine.app.data.WeatherContract.CurrentEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
@@ -28,7 +30,7 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 8;
 
     static final String DATABASE_NAME = "weather.db";
 
@@ -45,7 +47,11 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_FINGERPRINT + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,8 +85,54 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // Location first, so the index behind this constraint also serves range
+                // queries and pruning on a single location's hours.
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIMESTAMP + ") ON CONFLICT REPLACE);";
+
+        // Retention prunes hours by age across all locations, which the unique index above
+        // can't help with
+        final String SQL_CREATE_HOURLY_TIMESTAMP_INDEX = "CREATE INDEX " +
+                HourlyEntry.TABLE_NAME + "_" + HourlyEntry.COLUMN_TIMESTAMP + " ON " +
+                HourlyEntry.TABLE_NAME + " (" + HourlyEntry.COLUMN_TIMESTAMP + ");";
+
+        final String SQL_CREATE_CURRENT_TABLE = "CREATE TABLE " + CurrentEntry.TABLE_NAME + " (" +
+                CurrentEntry._ID + " INTEGER PRIMARY KEY," +
+
+                CurrentEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL UNIQUE ON CONFLICT REPLACE, " +
+                CurrentEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL, " +
+                CurrentEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                CurrentEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                CurrentEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                CurrentEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                CurrentEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                CurrentEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                CurrentEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + CurrentEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TIMESTAMP_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_CURRENT_TABLE);
     }
 
     @Override
@@ -93,6 +145,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CurrentEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
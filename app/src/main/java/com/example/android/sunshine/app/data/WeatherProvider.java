@@ -17,12 +17,23 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.util.Pair;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -34,8 +45,15 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int LOCATION_UPSERT = 301;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION = 401;
+    static final int CURRENT = 500;
+    static final int CURRENT_WITH_LOCATION = 501;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    private static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+    private static final SQLiteQueryBuilder sCurrentByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,6 +67,26 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+
+        //current INNER JOIN location ON current.location_id = location._id
+        sCurrentByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sCurrentByLocationSettingQueryBuilder.setTables(
+                WeatherContract.CurrentEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.CurrentEntry.TABLE_NAME +
+                        "." + WeatherContract.CurrentEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
@@ -68,6 +106,77 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location_id = ? AND date = ?
+    private static final String sLocationKeyAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //location.location_setting = ? AND timestamp >= ?
+    private static final String sLocationSettingWithStartTimeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIMESTAMP + " >= ? ";
+
+    // Hourly rows are written through compiled statements that share one set of arguments:
+    // ?1 location_id, ?2 timestamp, then the forecast values in this order.
+    private static final String[] sHourlyValueColumns = {
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyEntry.COLUMN_SHORT_DESC,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+            WeatherContract.HourlyEntry.COLUMN_DEGREES
+    };
+
+    // Skipped, rather than replaced, if the hour is already stored
+    private static final String sHourlyInsertSql;
+    // Only touches the stored hour if one of its values differs
+    private static final String sHourlyUpdateSql;
+    // Drops a location's hours that are older than its newest forecast
+    private static final String sHourlyPruneSql =
+            "DELETE FROM " + WeatherContract.HourlyEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIMESTAMP + " < ?";
+
+    static {
+        StringBuilder insert = new StringBuilder("INSERT OR IGNORE INTO ")
+                .append(WeatherContract.HourlyEntry.TABLE_NAME).append(" (")
+                .append(WeatherContract.HourlyEntry.COLUMN_LOC_KEY).append(", ")
+                .append(WeatherContract.HourlyEntry.COLUMN_TIMESTAMP);
+        StringBuilder set = new StringBuilder();
+        StringBuilder differs = new StringBuilder();
+        for (int i = 0; i < sHourlyValueColumns.length; i++) {
+            String column = sHourlyValueColumns[i];
+            String arg = "?" + (i + 3);
+            insert.append(", ").append(column);
+            set.append(i > 0 ? ", " : "").append(column).append(" = ").append(arg);
+            differs.append(i > 0 ? " OR " : "").append(column).append(" != ").append(arg);
+        }
+        insert.append(") VALUES (?1, ?2");
+        for (int i = 0; i < sHourlyValueColumns.length; i++) {
+            insert.append(", ?").append(i + 3);
+        }
+        sHourlyInsertSql = insert.append(")").toString();
+        sHourlyUpdateSql = "UPDATE " + WeatherContract.HourlyEntry.TABLE_NAME + " SET " + set +
+                " WHERE " + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?1 AND " +
+                WeatherContract.HourlyEntry.COLUMN_TIMESTAMP + " = ?2 AND (" + differs + ")";
+    }
+
+    /**
+     * Rows changed by {@link #bulkWrite}, per table.
+     */
+    public static final class WriteCounts {
+        // Location rows added or refreshed
+        public int location;
+        // Weather rows inserted or updated
+        public int weather;
+        // Hourly rows inserted or updated
+        public int hourly;
+        // Hourly rows pruned because a newer forecast for their location starts after them
+        public int hourlyPruned;
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -108,6 +217,31 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long startTime = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+
+        String[] selectionArgs;
+        String selection;
+
+        if (startTime == 0) {
+            selection = sLocationSettingSelection;
+            selectionArgs = new String[]{locationSetting};
+        } else {
+            selectionArgs = new String[]{locationSetting, Long.toString(startTime)};
+            selection = sLocationSettingWithStartTimeSelection;
+        }
+
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +264,14 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" + WeatherContract.PATH_UPSERT,
+                LOCATION_UPSERT);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_CURRENT, CURRENT);
+        matcher.addURI(authority, WeatherContract.PATH_CURRENT + "/*", CURRENT_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,6 +282,8 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        // Nothing cached can be trusted to match a database opened afresh
+        LocationIdCache.clear();
         return true;
     }
 
@@ -164,6 +308,15 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case LOCATION_UPSERT:
+                return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case CURRENT:
+                return WeatherContract.CurrentEntry.CONTENT_TYPE;
+            case CURRENT_WITH_LOCATION:
+                return WeatherContract.CurrentEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -213,6 +366,51 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "current/*"
+            case CURRENT_WITH_LOCATION: {
+                retCursor = sCurrentByLocationSettingQueryBuilder.query(
+                        mOpenHelper.getReadableDatabase(),
+                        projection,
+                        sLocationSettingSelection,
+                        new String[]{
+                                WeatherContract.CurrentEntry.getLocationSettingFromUri(uri)},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "current"
+            case CURRENT: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.CurrentEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -242,8 +440,25 @@ public class WeatherProvider extends ContentProvider {
             }
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    LocationIdCache.put(values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id);
+                } else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case LOCATION_UPSERT: {
+                long _id = upsertLocation(db, values);
+                returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                break;
+            }
+            case CURRENT: {
+                // Replaces whatever was stored for the location
+                long _id = db.insert(WeatherContract.CurrentEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(
+                            WeatherContract.CurrentEntry.CONTENT_URI, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -259,17 +474,27 @@ public class WeatherProvider extends ContentProvider {
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final String limit = uri.getQueryParameter(WeatherContract.PARAM_LIMIT);
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = delete(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                        selection, selectionArgs, limit);
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                LocationIdCache.clear();
+                break;
+            case HOURLY:
+                rowsDeleted = delete(db, WeatherContract.HourlyEntry.TABLE_NAME,
+                        selection, selectionArgs, limit);
+                break;
+            case CURRENT:
+                rowsDeleted = delete(db, WeatherContract.CurrentEntry.TABLE_NAME,
+                        selection, selectionArgs, limit);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -281,6 +506,68 @@ public class WeatherProvider extends ContentProvider {
         return rowsDeleted;
     }
 
+    /**
+     * Deletes the rows matching {@code selection}, or at most {@code limit} of them if a limit
+     * is given, found through whatever index serves the selection.  Pruning in limited chunks
+     * keeps each write transaction short, so readers are only ever held up for one chunk.
+     */
+    private static int delete(SQLiteDatabase db, String table, String selection,
+                              String[] selectionArgs, String limit) {
+        if (limit == null) {
+            return db.delete(table, selection, selectionArgs);
+        }
+        // DELETE ... LIMIT needs SQLite built with an option Android doesn't use
+        return db.delete(table, BaseColumns._ID + " IN (SELECT " + BaseColumns._ID +
+                " FROM " + table + " WHERE " + selection + " LIMIT " +
+                Integer.parseInt(limit) + ")", selectionArgs);
+    }
+
+    /**
+     * Refreshes the location with the same setting as {@code values}, or adds it if there is
+     * none, in a single call.  The row keeps its ID either way, so the weather rows that point
+     * at it stay attached; INSERT OR REPLACE would give it a new one.  Once a setting's ID is
+     * cached the refresh is a single update by primary key.
+     *
+     * @return the row ID of the location
+     */
+    private long upsertLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Location upsert needs a location setting");
+        }
+        long _id = LocationIdCache.get(locationSetting);
+        db.beginTransaction();
+        try {
+            if (_id != -1 && db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(_id)}) == 0) {
+                _id = -1;
+            }
+            if (_id == -1) {
+                String[] settingArgs = new String[]{locationSetting};
+                if (db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                        sLocationSettingSelection, settingArgs) > 0) {
+                    _id = DatabaseUtils.longForQuery(db, "SELECT " +
+                            WeatherContract.LocationEntry._ID + " FROM " +
+                            WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                            sLocationSettingSelection, settingArgs);
+                } else {
+                    _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    if (_id <= 0) {
+                        throw new android.database.SQLException(
+                                "Failed to insert location " + locationSetting);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        LocationIdCache.put(locationSetting, _id);
+        return _id;
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -305,6 +592,10 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                    // Any row might now answer to a different setting
+                    LocationIdCache.clear();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -317,29 +608,304 @@ public class WeatherProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
+                return bulkInsert(uri, Arrays.asList(values).iterator());
+            case HOURLY:
+                return bulkWrite(withUri(uri, Arrays.asList(values).iterator())).hourly;
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    /**
+     * Inserts weather rows inside a single transaction, pulling each row from {@code values}
+     * only when the previous one has been written.  This lets a producer on another thread keep
+     * parsing while earlier rows are being stored.  It is only reachable from the provider's own
+     * process, through {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     *
+     * Each row is compared with the one already stored for its location and date.  Identical
+     * rows are left alone, rows that differ are updated in place, and only missing rows are
+     * inserted, so an unchanged forecast costs a read instead of a delete and re-insert.
+     * Observers are only notified if something actually changed.
+     *
+     * If the iterator throws, the transaction is rolled back and nothing is committed.
+     *
+     * @return the number of rows inserted or updated
+     */
+    public int bulkInsert(Uri uri, Iterator<ContentValues> values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case WEATHER:
+                return bulkWrite(withUri(uri, values)).weather;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
+
+    /**
+     * Like {@link #bulkInsert(Uri, Iterator)}, but for a stream that mixes weather and hourly
+     * rows, each paired with {@link WeatherContract.WeatherEntry#CONTENT_URI} or
+     * {@link WeatherContract.HourlyEntry#CONTENT_URI}, all written in the same transaction.
+     *
+     * A row paired with {@link WeatherContract.LocationEntry#buildLocationUpsertUri()} goes
+     * through the location upsert, in the same transaction, and gets its row ID put back into
+     * its values as {@link WeatherContract.LocationEntry#_ID}.  Rows are taken one at a time,
+     * so the rows that follow it can point at it.
+     *
+     * Hourly rows go through statements compiled once per call.  As with weather rows, an hour
+     * that is already stored with the same values is left alone.  Once the stream ends, each
+     * location that received hourly rows has its hours before the earliest one it received
+     * pruned, still inside the transaction, so the table only ever holds current forecasts and
+     * the pruning walks the (location, timestamp) index rather than the whole table.
+     */
+    public WriteCounts bulkWrite(Iterator<Pair<Uri, ContentValues>> rows) {
+        return bulkWrite(rows, true);
+    }
+
+    /**
+     * Like {@link #bulkWrite(Iterator)}.
+     *
+     * @param notify false to leave notifying observers to the caller, so a caller making
+     *               several writes in a row can have them hear about it once at the end
+     */
+    public WriteCounts bulkWrite(Iterator<Pair<Uri, ContentValues>> rows, boolean notify) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WriteCounts counts = new WriteCounts();
+        // The earliest hour received for each location
+        Map<Long, Long> hourlyStarts = new HashMap<Long, Long>();
+        SQLiteStatement hourlyInsert = null;
+        SQLiteStatement hourlyUpdate = null;
+        SQLiteStatement hourlyPrune = null;
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            while (rows.hasNext()) {
+                Pair<Uri, ContentValues> row = rows.next();
+                ContentValues value = row.second;
+                switch (sUriMatcher.match(row.first)) {
+                    case LOCATION_UPSERT:
+                        value.put(WeatherContract.LocationEntry._ID, upsertLocation(db, value));
+                        counts.location++;
+                        break;
+                    case WEATHER:
                         normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                        if (writeWeatherIfChanged(db, value)) {
+                            counts.weather++;
                         }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                        break;
+                    case HOURLY:
+                        if (hourlyInsert == null) {
+                            hourlyInsert = db.compileStatement(sHourlyInsertSql);
+                            hourlyUpdate = db.compileStatement(sHourlyUpdateSql);
+                        }
+                        if (writeHourlyIfChanged(db, hourlyInsert, hourlyUpdate, value)) {
+                            counts.hourly++;
+                        }
+                        Long locationId =
+                                value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+                        Long timestamp =
+                                value.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIMESTAMP);
+                        if (locationId != null && timestamp != null) {
+                            Long start = hourlyStarts.get(locationId);
+                            if (start == null || timestamp < start) {
+                                hourlyStarts.put(locationId, timestamp);
+                            }
+                        }
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Unknown uri: " + row.first);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
-            default:
-                return super.bulkInsert(uri, values);
+            }
+            if (!hourlyStarts.isEmpty()) {
+                hourlyPrune = db.compileStatement(sHourlyPruneSql);
+                for (Map.Entry<Long, Long> start : hourlyStarts.entrySet()) {
+                    hourlyPrune.bindLong(1, start.getKey());
+                    hourlyPrune.bindLong(2, start.getValue());
+                    counts.hourlyPruned += executeUpdateDelete(hourlyPrune);
+                }
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            if (!committed) {
+                // Locations the stream added went with the rest of it
+                LocationIdCache.clear();
+            }
+            closeQuietly(hourlyInsert);
+            closeQuietly(hourlyUpdate);
+            closeQuietly(hourlyPrune);
+        }
+        if (notify) {
+            notifyChange(counts);
         }
+        return counts;
+    }
+
+    /**
+     * Notifies the observers of each table that {@code counts} says was changed.
+     */
+    public void notifyChange(WriteCounts counts) {
+        if (counts.location > 0) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.LocationEntry.CONTENT_URI, null);
+        }
+        if (counts.weather > 0) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.WeatherEntry.CONTENT_URI, null);
+        }
+        if (counts.hourly > 0 || counts.hourlyPruned > 0) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.HourlyEntry.CONTENT_URI, null);
+        }
+    }
+
+    private static Iterator<Pair<Uri, ContentValues>> withUri(
+            final Uri uri, final Iterator<ContentValues> values) {
+        return new Iterator<Pair<Uri, ContentValues>>() {
+            @Override
+            public boolean hasNext() {
+                return values.hasNext();
+            }
+
+            @Override
+            public Pair<Uri, ContentValues> next() {
+                return Pair.create(uri, values.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Inserts the hour if its location has nothing stored for it, or updates the stored one in
+     * place if any of its values differ.
+     *
+     * @return true if the table was changed
+     */
+    private static boolean writeHourlyIfChanged(SQLiteDatabase db, SQLiteStatement insert,
+                                                SQLiteStatement update, ContentValues value) {
+        if (!value.containsKey(WeatherContract.HourlyEntry.COLUMN_LOC_KEY)
+                || !value.containsKey(WeatherContract.HourlyEntry.COLUMN_TIMESTAMP)) {
+            // Let the table constraints decide what to do with an incomplete row
+            return db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value) != -1;
+        }
+        for (String column : sHourlyValueColumns) {
+            if (value.get(column) == null) {
+                return db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value) != -1;
+            }
+        }
+
+        bindHourly(insert, value);
+        if (insert.executeInsert() != -1) {
+            return true;
+        }
+        bindHourly(update, value);
+        return executeUpdateDelete(update) > 0;
+    }
+
+    private static void bindHourly(SQLiteStatement statement, ContentValues value) {
+        statement.clearBindings();
+        statement.bindLong(1, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY));
+        statement.bindLong(2, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIMESTAMP));
+        for (int i = 0; i < sHourlyValueColumns.length; i++) {
+            Object column = value.get(sHourlyValueColumns[i]);
+            if (column instanceof Double || column instanceof Float) {
+                statement.bindDouble(i + 3, ((Number) column).doubleValue());
+            } else if (column instanceof Number) {
+                statement.bindLong(i + 3, ((Number) column).longValue());
+            } else {
+                statement.bindString(i + 3, column.toString());
+            }
+        }
+    }
+
+    /**
+     * Runs an UPDATE or DELETE statement.  Before Honeycomb there is no way to learn how many
+     * rows it touched, so it is assumed to have touched one.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int executeUpdateDelete(SQLiteStatement statement) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return statement.executeUpdateDelete();
+        }
+        statement.execute();
+        return 1;
+    }
+
+    private static void closeQuietly(SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
+    /**
+     * Inserts the row if its location has nothing stored for that date, or updates the stored
+     * row in place if any of its values differ.
+     *
+     * @return true if the table was changed
+     */
+    private boolean writeWeatherIfChanged(SQLiteDatabase db, ContentValues value) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            // Let the table constraints decide what to do with an incomplete row
+            return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1;
+        }
+
+        String[] columns = new String[value.size() + 1];
+        columns[0] = WeatherContract.WeatherEntry._ID;
+        int i = 1;
+        for (String column : value.keySet()) {
+            columns[i++] = column;
+        }
+
+        Cursor existing = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                columns,
+                sLocationKeyAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null,
+                null,
+                null);
+        try {
+            if (!existing.moveToFirst()) {
+                return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1;
+            }
+            if (rowMatches(existing, columns, value)) {
+                return false;
+            }
+            return db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                    WeatherContract.WeatherEntry._ID + " = ?",
+                    new String[]{Long.toString(existing.getLong(0))}) > 0;
+        } finally {
+            existing.close();
+        }
+    }
+
+    private static boolean rowMatches(Cursor cursor, String[] columns, ContentValues value) {
+        // Column 0 is the _ID, which the incoming values don't carry
+        for (int i = 1; i < columns.length; i++) {
+            Object expected = value.get(columns[i]);
+            if (expected == null) {
+                if (!cursor.isNull(i)) {
+                    return false;
+                }
+            } else if (cursor.isNull(i)) {
+                return false;
+            } else if (expected instanceof Number) {
+                if (cursor.getDouble(i) != ((Number) expected).doubleValue()) {
+                    return false;
+                }
+            } else if (!expected.toString().equals(cursor.getString(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     // You do not need to call this method. This is a method specifically to assist the testing
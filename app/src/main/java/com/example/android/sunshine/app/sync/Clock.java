@@ -0,0 +1,15 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Source of the current wall clock time for the sync policies, replaceable in tests.
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
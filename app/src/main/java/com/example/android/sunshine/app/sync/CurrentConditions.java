@@ -0,0 +1,280 @@
+package com.example.android.sunshine.app.sync;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.widget.TodayWidgetIntentService;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Keeps the current conditions at the preferred location fresh, apart from the daily forecast,
+ * for as long as something is showing them.
+ *
+ * Current conditions are a single small response, so they are refreshed every
+ * {@link #TTL_MILLIS} rather than at the pace of the full sync, and stored in their own table
+ * with the time they were fetched; see {@link WeatherContract.CurrentEntry#getAgeMillis}.
+ * Refreshes only run while at least one consumer has {@link #acquire acquired} them, and only
+ * while the device is awake: the alarm behind them does not wake it.
+ *
+ * The UI's claim lives only as long as the process, so a crash can't leave refreshes running
+ * with nothing on screen.  Widget and watch claims are saved, as they outlive the process.
+ */
+public class CurrentConditions {
+    private static final String LOG_TAG = CurrentConditions.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(flag = true, value = {CONSUMER_UI, CONSUMER_WIDGET, CONSUMER_WATCH})
+    public @interface Consumer {}
+
+    public static final int CONSUMER_UI = 1;
+    public static final int CONSUMER_WIDGET = 2;
+    public static final int CONSUMER_WATCH = 4;
+
+    // Claims that are saved across processes
+    private static final int PERSISTENT_CONSUMERS = CONSUMER_WIDGET | CONSUMER_WATCH;
+
+    // An inexact alarm interval the framework can batch with other apps' alarms
+    static final long TTL_MILLIS = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+    private static final String[] LOCATION_PROJECTION = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_CITY_ID
+    };
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_CITY_ID = 1;
+
+    private static int sProcessConsumers;
+
+    /**
+     * Starts refreshing the current conditions on behalf of {@code consumer}, and refreshes them
+     * right away if they are stale.  Acquiring again without releasing has no further effect.
+     */
+    public static void acquire(Context context, @Consumer int consumer) {
+        synchronized (CurrentConditions.class) {
+            if ((consumer & PERSISTENT_CONSUMERS) != 0) {
+                setPersistentConsumers(context, getPersistentConsumers(context) | consumer);
+            }
+            sProcessConsumers |= consumer & ~PERSISTENT_CONSUMERS;
+        }
+        // Setting the same alarm again just replaces it
+        schedule(context, true);
+        context.startService(new Intent(context, CurrentConditionsService.class));
+    }
+
+    /**
+     * Stops refreshing on behalf of {@code consumer}.  Refreshes stop once no consumer is left.
+     */
+    public static void release(Context context, @Consumer int consumer) {
+        boolean none;
+        synchronized (CurrentConditions.class) {
+            if ((consumer & PERSISTENT_CONSUMERS) != 0) {
+                setPersistentConsumers(context, getPersistentConsumers(context) & ~consumer);
+            }
+            sProcessConsumers &= ~consumer;
+            none = getConsumers(context) == 0;
+        }
+        if (none) {
+            schedule(context, false);
+        }
+    }
+
+    static synchronized int getConsumers(Context context) {
+        return sProcessConsumers | getPersistentConsumers(context);
+    }
+
+    /**
+     * Returns true if conditions fetched at {@code fetchedAt} are due for a refresh.  A fetch
+     * time in the future means the clock was set back, and is treated as stale.
+     */
+    static boolean isStale(long fetchedAt, long now) {
+        return now - fetchedAt >= TTL_MILLIS || fetchedAt > now;
+    }
+
+    /**
+     * Fetches and stores the current conditions if anyone is consuming them and the stored ones
+     * are stale.  Blocks on the network, so it must not be called on the main thread.
+     */
+    static void refresh(Context context) {
+        if (getConsumers(context) == 0) {
+            schedule(context, false);
+            return;
+        }
+
+        // The daily sync adds the location; until it has, there is nothing to attach to
+        String locationSetting = Utility.getPreferredLocation(context);
+        Cursor locationCursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (locationCursor == null) {
+            return;
+        }
+        long locationId;
+        long cityId;
+        try {
+            if (!locationCursor.moveToFirst()) {
+                return;
+            }
+            locationId = locationCursor.getLong(INDEX_LOCATION_ID);
+            cityId = locationCursor.getLong(INDEX_CITY_ID);
+        } finally {
+            locationCursor.close();
+        }
+
+        long now = System.currentTimeMillis();
+        Cursor currentCursor = context.getContentResolver().query(
+                WeatherContract.CurrentEntry.CONTENT_URI,
+                new String[]{WeatherContract.CurrentEntry.COLUMN_FETCHED_AT},
+                WeatherContract.CurrentEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                null);
+        if (currentCursor != null) {
+            try {
+                if (currentCursor.moveToFirst() && !isStale(currentCursor.getLong(0), now)) {
+                    return;
+                }
+            } finally {
+                currentCursor.close();
+            }
+        }
+
+        ContentValues values = fetch(context, locationSetting, cityId);
+        if (values != null) {
+            values.put(WeatherContract.CurrentEntry.COLUMN_LOC_KEY, locationId);
+            values.put(WeatherContract.CurrentEntry.COLUMN_FETCHED_AT, now);
+            context.getContentResolver().insert(WeatherContract.CurrentEntry.CONTENT_URI, values);
+            if ((getConsumers(context) & CONSUMER_WIDGET) != 0) {
+                context.startService(new Intent(context, TodayWidgetIntentService.class));
+            }
+        }
+    }
+
+    /**
+     * @return the conditions as current table values without a location key or fetch time,
+     *         or null if they couldn't be fetched
+     */
+    private static ContentValues fetch(Context context, String locationSetting, long cityId) {
+        FetchCircuitBreaker breaker = SunshineSyncAdapter.getFetchBreaker(context);
+        if (!breaker.allowRequest()) {
+            Log.d(LOG_TAG, "Circuit open, not fetching current conditions");
+            return null;
+        }
+        boolean reported = false;
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        final ContentValues values = new ContentValues();
+        try {
+            // Not hedged: refreshes run on a timer, with the last conditions on show meanwhile
+            String endpoint = SunshineSyncAdapter.getFetchHedger(context).getPrimaryEndpoint();
+            URL url = new URL(LocationSync.buildCurrentConditionsUri(endpoint, locationSetting,
+                    cityId).toString());
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            int responseCode = urlConnection.getResponseCode();
+            if (FetchCircuitBreaker.isServerError(responseCode)) {
+                throw new IOException("Server error " + responseCode
+                        + " for current conditions");
+            }
+            breaker.recordSuccess();
+            reported = true;
+
+            inputStream = urlConnection.getInputStream();
+            HourlyForecastParser parser =
+                    new HourlyForecastParser(new HourlyForecastParser.Listener() {
+                        @Override
+                        public void onHour(HourlyForecastParser.Hour hour) {
+                            values.put(WeatherContract.CurrentEntry.COLUMN_TEMP, hour.temperature);
+                            values.put(WeatherContract.CurrentEntry.COLUMN_HUMIDITY, hour.humidity);
+                            values.put(WeatherContract.CurrentEntry.COLUMN_PRESSURE, hour.pressure);
+                            values.put(WeatherContract.CurrentEntry.COLUMN_WIND_SPEED,
+                                    hour.windSpeed);
+                            values.put(WeatherContract.CurrentEntry.COLUMN_DEGREES,
+                                    hour.windDirection);
+                            values.put(WeatherContract.CurrentEntry.COLUMN_SHORT_DESC,
+                                    hour.description);
+                            values.put(WeatherContract.CurrentEntry.COLUMN_WEATHER_ID,
+                                    hour.weatherId);
+                        }
+                    });
+            int code = parser.parseCurrent(inputStream);
+            if (code != HttpURLConnection.HTTP_OK || values.size() == 0) {
+                Log.w(LOG_TAG, "Server returned " + code + " for current conditions");
+                return null;
+            }
+            return values;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error fetching current conditions", e);
+            if (!reported) {
+                breaker.recordFailure();
+                reported = true;
+            }
+            return null;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            if (!reported) {
+                breaker.recordCancelled();
+            }
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    private static void schedule(Context context, boolean enabled) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent refresh = PendingIntent.getService(context, 0,
+                new Intent(context, CurrentConditionsService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if (enabled) {
+            // Not a wakeup alarm: if the device is asleep, nobody is looking
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + TTL_MILLIS, TTL_MILLIS, refresh);
+        } else {
+            alarmManager.cancel(refresh);
+        }
+    }
+
+    private static int getPersistentConsumers(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt(context.getString(R.string.pref_current_consumers_key), 0);
+    }
+
+    private static void setPersistentConsumers(Context context, int consumers) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit()
+                .putInt(context.getString(R.string.pref_current_consumers_key), consumers)
+                .commit();
+    }
+}
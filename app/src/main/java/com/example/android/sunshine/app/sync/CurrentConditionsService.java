@@ -0,0 +1,20 @@
+package com.example.android.sunshine.app.sync;
+
+import android.app.IntentService;
+import android.content.Intent;
+
+/**
+ * Runs {@link CurrentConditions#refresh} off the main thread, for the refresh alarm and for
+ * consumers that have just started.
+ */
+public class CurrentConditionsService extends IntentService {
+
+    public CurrentConditionsService() {
+        super("CurrentConditionsService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        CurrentConditions.refresh(this);
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Keeps track of how much the syncs download, and holds them to a daily budget on metered
+ * networks.
+ *
+ * A rolling ledger holds, for each of the last {@link #LEDGER_DAYS} local days, the number of
+ * syncs and the bytes they downloaded on metered and on unmetered networks, plus what each
+ * location has cost so far today.  It saves to, and restores from, a short string.
+ *
+ * On a metered network the share of today's budget already used picks a {@link Mode}: past
+ * {@link #REDUCED_SHARE} syncs ask for fewer days and skip the 3 hourly forecast, past
+ * {@link #MINIMAL_SHARE} they also only fetch locations they can make a conditional request
+ * for, which a forecast that hasn't changed answers almost for free, and once the budget is
+ * spent only manual refreshes go to the network.  Unmetered networks are counted but never
+ * limited.  Bytes are response body bytes as read, so the real cost is somewhat higher.
+ *
+ * Like {@link SyncScheduler} this holds no Android state, so it can be tested against a fake
+ * {@link Clock}.  All methods are safe to call from any thread.
+ */
+class DataBudget {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({MODE_FULL, MODE_REDUCED, MODE_MINIMAL, MODE_OFF})
+    @interface Mode {}
+
+    static final int MODE_FULL = 0;
+    static final int MODE_REDUCED = 1;
+    static final int MODE_MINIMAL = 2;
+    static final int MODE_OFF = 3;
+
+    static final double REDUCED_SHARE = 0.75;
+    static final double MINIMAL_SHARE = 0.9;
+
+    // How many days of forecast to ask for once the budget is running low
+    static final int REDUCED_DAYS = 7;
+
+    static final int LEDGER_DAYS = 30;
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final int SYNCS = 0;
+    private static final int METERED_BYTES = 1;
+    private static final int UNMETERED_BYTES = 2;
+
+    private final Clock mClock;
+    private final TimeZone mTimeZone;
+
+    // Indexed by day number modulo LEDGER_DAYS; a slot is stale unless mDays matches
+    private final long[] mDays = new long[LEDGER_DAYS];
+    private final long[][] mCounts = new long[LEDGER_DAYS][3];
+    // What each location has downloaded on mLocationDay
+    private long mLocationDay;
+    private final Map<String, Long> mLocationBytes = new HashMap<String, Long>();
+
+    /**
+     * @param timeZone the zone whose midnights start a new day
+     * @param saved what {@link #save} returned, or null to start an empty ledger
+     */
+    DataBudget(Clock clock, TimeZone timeZone, String saved) {
+        mClock = clock;
+        mTimeZone = timeZone;
+        for (int i = 0; i < LEDGER_DAYS; i++) {
+            mDays[i] = -1;
+        }
+        mLocationDay = -1;
+        if (saved != null) {
+            try {
+                restore(saved);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // A ledger that can't be read is only lost history; start again
+                for (int i = 0; i < LEDGER_DAYS; i++) {
+                    mDays[i] = -1;
+                }
+                mLocationDay = -1;
+                mLocationBytes.clear();
+            }
+        }
+    }
+
+    private long today() {
+        long now = mClock.currentTimeMillis();
+        return (now + mTimeZone.getOffset(now)) / DAY_IN_MILLIS;
+    }
+
+    private long[] getCounts(long day) {
+        int slot = (int) (day % LEDGER_DAYS);
+        if (mDays[slot] != day) {
+            mDays[slot] = day;
+            mCounts[slot][SYNCS] = 0;
+            mCounts[slot][METERED_BYTES] = 0;
+            mCounts[slot][UNMETERED_BYTES] = 0;
+        }
+        return mCounts[slot];
+    }
+
+    /**
+     * Records a sync and what it downloaded.
+     *
+     * @param network the network the sync ran on; anything but metered counts as unmetered
+     * @param locationBytes the bytes downloaded for each location
+     */
+    synchronized void recordSync(@SyncScheduler.NetworkType int network,
+                                 Map<String, Long> locationBytes) {
+        long day = today();
+        long[] counts = getCounts(day);
+        counts[SYNCS]++;
+        if (mLocationDay != day) {
+            mLocationDay = day;
+            mLocationBytes.clear();
+        }
+        for (Map.Entry<String, Long> entry : locationBytes.entrySet()) {
+            long bytes = entry.getValue();
+            if (bytes == 0) {
+                continue;
+            }
+            counts[network == SyncScheduler.NETWORK_METERED ? METERED_BYTES : UNMETERED_BYTES]
+                    += bytes;
+            Long sofar = mLocationBytes.get(entry.getKey());
+            mLocationBytes.put(entry.getKey(), sofar == null ? bytes : sofar + bytes);
+        }
+    }
+
+    /**
+     * Returns the bytes downloaded on the given kind of network over the last {@code days}
+     * days, today included.
+     */
+    synchronized long getBytes(@SyncScheduler.NetworkType int network, int days) {
+        int column = network == SyncScheduler.NETWORK_METERED ? METERED_BYTES : UNMETERED_BYTES;
+        long today = today();
+        long total = 0;
+        for (int i = 0; i < LEDGER_DAYS; i++) {
+            if (mDays[i] > today - days && mDays[i] <= today) {
+                total += mCounts[i][column];
+            }
+        }
+        return total;
+    }
+
+    synchronized int getSyncCountToday() {
+        long today = today();
+        int slot = (int) (today % LEDGER_DAYS);
+        return mDays[slot] == today ? (int) mCounts[slot][SYNCS] : 0;
+    }
+
+    /**
+     * Returns the bytes downloaded for a location so far today, on any network.
+     */
+    synchronized long getLocationBytesToday(String locationSetting) {
+        Long bytes = mLocationDay == today() ? mLocationBytes.get(locationSetting) : null;
+        return bytes == null ? 0 : bytes;
+    }
+
+    /**
+     * Returns how cheaply a sync starting now has to run.
+     *
+     * @param dailyBudgetBytes what may be downloaded on metered networks each day, or 0 for
+     *                         no limit
+     * @param manual true if the user asked for the sync; it is never turned away outright
+     */
+    @Mode
+    synchronized int getMode(@SyncScheduler.NetworkType int network, long dailyBudgetBytes,
+                             boolean manual) {
+        if (network != SyncScheduler.NETWORK_METERED || dailyBudgetBytes <= 0) {
+            return MODE_FULL;
+        }
+        double used = (double) getBytes(SyncScheduler.NETWORK_METERED, 1) / dailyBudgetBytes;
+        if (used >= 1) {
+            return manual ? MODE_MINIMAL : MODE_OFF;
+        } else if (used >= MINIMAL_SHARE) {
+            return MODE_MINIMAL;
+        } else if (used >= REDUCED_SHARE) {
+            return MODE_REDUCED;
+        }
+        return MODE_FULL;
+    }
+
+    /**
+     * Returns the ledger as a string for {@link #DataBudget(Clock, TimeZone, String)}, like
+     * {@code 16721:4:20480:0;16722:2:1536:0|94043=512&London%2CUK=1024}: each day's number, syncs,
+     * metered and unmetered bytes, then today's bytes for each location.
+     */
+    synchronized String save() {
+        StringBuilder saved = new StringBuilder();
+        long today = today();
+        // Oldest first, leaving out days that have dropped out of the window
+        for (long day = today - LEDGER_DAYS + 1; day <= today; day++) {
+            int slot = (int) (day % LEDGER_DAYS);
+            if (mDays[slot] != day) {
+                continue;
+            }
+            if (saved.length() > 0) {
+                saved.append(';');
+            }
+            saved.append(day).append(':').append(mCounts[slot][SYNCS])
+                    .append(':').append(mCounts[slot][METERED_BYTES])
+                    .append(':').append(mCounts[slot][UNMETERED_BYTES]);
+        }
+        saved.append('|');
+        if (mLocationDay == today) {
+            boolean first = true;
+            for (Map.Entry<String, Long> entry : mLocationBytes.entrySet()) {
+                if (!first) {
+                    saved.append('&');
+                }
+                first = false;
+                saved.append(encode(entry.getKey())).append('=').append(entry.getValue());
+            }
+        }
+        return saved.toString();
+    }
+
+    private void restore(String saved) {
+        int bar = saved.indexOf('|');
+        String days = bar == -1 ? saved : saved.substring(0, bar);
+        long lastDay = -1;
+        if (!days.isEmpty()) {
+            for (String entry : days.split(";")) {
+                String[] fields = entry.split(":");
+                long day = Long.parseLong(fields[0]);
+                long[] counts = getCounts(day);
+                counts[SYNCS] = Long.parseLong(fields[1]);
+                counts[METERED_BYTES] = Long.parseLong(fields[2]);
+                counts[UNMETERED_BYTES] = Long.parseLong(fields[3]);
+                lastDay = Math.max(lastDay, day);
+            }
+        }
+        String locations = bar == -1 ? "" : saved.substring(bar + 1);
+        if (!locations.isEmpty()) {
+            // Locations are only ever saved for the day of the latest entry
+            mLocationDay = lastDay;
+            for (String entry : locations.split("&")) {
+                int equals = entry.lastIndexOf('=');
+                mLocationBytes.put(decode(entry.substring(0, equals)),
+                        Long.parseLong(entry.substring(equals + 1)));
+            }
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Data budget: " + getBytes(SyncScheduler.NETWORK_METERED, 1) / 1024
+                + " KB metered and " + getBytes(SyncScheduler.NETWORK_UNMETERED, 1) / 1024
+                + " KB unmetered today, " + getSyncCountToday() + " syncs");
+    }
+}
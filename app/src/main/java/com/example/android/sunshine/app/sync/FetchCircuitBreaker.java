@@ -0,0 +1,162 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Random;
+
+/**
+ * Stops forecast fetches from hammering a server that is down.
+ *
+ * The breaker starts {@link #STATE_CLOSED}, letting every request through.  After
+ * {@link #FAILURE_THRESHOLD} failures in a row (an IOException or a 5xx response) it opens, and
+ * refuses requests until a backoff delay has passed.  It then goes {@link #STATE_HALF_OPEN}
+ * and lets a single probe request through: if that succeeds the breaker closes again, and if
+ * it fails the breaker reopens with the delay doubled, up to {@link #MAX_BACKOFF_MILLIS}.
+ * Each delay is jittered so that clients which all saw the same outage don't all come back at
+ * the same moment.
+ *
+ * The state is plain values so the sync adapter can save it and restore it in a new process.
+ * All methods are safe to call from the parallel sync workers.
+ */
+class FetchCircuitBreaker {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    @interface State {}
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 1000 * 60 * 5;
+    static final long MAX_BACKOFF_MILLIS = 1000 * 60 * 60 * 6;
+
+    private final Clock mClock;
+    private final Random mRandom;
+
+    @State
+    private int mState;
+    private int mConsecutiveFailures;
+    private int mOpenCount;
+    private long mRetryAtMillis;
+    private boolean mProbeInFlight;
+
+    FetchCircuitBreaker(Clock clock, Random random) {
+        this(clock, random, STATE_CLOSED, 0, 0, 0);
+    }
+
+    /**
+     * Restores a breaker from the values of {@link #getState}, {@link #getConsecutiveFailures},
+     * {@link #getOpenCount} and {@link #getRetryAtMillis}.
+     */
+    FetchCircuitBreaker(Clock clock, Random random, @State int state, int consecutiveFailures,
+                        int openCount, long retryAtMillis) {
+        mClock = clock;
+        mRandom = random;
+        // A probe that was in flight when the process died never reported back; treat the
+        // breaker as open so a new probe can go out once the delay is up.
+        mState = state == STATE_HALF_OPEN ? STATE_OPEN : state;
+        mConsecutiveFailures = consecutiveFailures;
+        mOpenCount = openCount;
+        mRetryAtMillis = retryAtMillis;
+    }
+
+    /**
+     * Returns true if a request may be made now.  A true result while the breaker is open or
+     * half open makes the caller the probe, and it must report back through
+     * {@link #recordSuccess} or {@link #recordFailure}.
+     */
+    synchronized boolean allowRequest() {
+        switch (mState) {
+            case STATE_CLOSED:
+                return true;
+            case STATE_OPEN:
+                if (mClock.currentTimeMillis() < mRetryAtMillis) {
+                    return false;
+                }
+                mState = STATE_HALF_OPEN;
+                mProbeInFlight = true;
+                return true;
+            case STATE_HALF_OPEN:
+            default:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * Records a request the server answered properly, which closes the breaker.
+     */
+    synchronized void recordSuccess() {
+        mState = STATE_CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenCount = 0;
+        mRetryAtMillis = 0;
+        mProbeInFlight = false;
+    }
+
+    /**
+     * Records a request that failed because the server or the network is in trouble.
+     */
+    synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mState == STATE_OPEN) {
+            // A request that was already under way when the breaker opened
+            return;
+        }
+        if (mState == STATE_HALF_OPEN || mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    /**
+     * Records that a request the breaker allowed was never made, so it doesn't count either way.
+     */
+    synchronized void recordCancelled() {
+        mProbeInFlight = false;
+    }
+
+    private void open() {
+        long delay = MAX_BACKOFF_MILLIS;
+        if (mOpenCount < 31 && BASE_BACKOFF_MILLIS << mOpenCount < MAX_BACKOFF_MILLIS) {
+            delay = BASE_BACKOFF_MILLIS << mOpenCount;
+        }
+        // Equal jitter: wait at least half the delay, and a random part of the other half
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+
+        mState = STATE_OPEN;
+        mOpenCount++;
+        mRetryAtMillis = mClock.currentTimeMillis() + delay;
+        mProbeInFlight = false;
+    }
+
+    @State
+    synchronized int getState() {
+        return mState;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /** Number of times the breaker has opened since it was last closed. */
+    synchronized int getOpenCount() {
+        return mOpenCount;
+    }
+
+    /** When the breaker will next let a probe through, or 0 if it is closed. */
+    synchronized long getRetryAtMillis() {
+        return mRetryAtMillis;
+    }
+
+    /** Returns true if HTTP status {@code code} is a 5xx server error. */
+    static boolean isServerError(int code) {
+        return code >= 500 && code < 600;
+    }
+}
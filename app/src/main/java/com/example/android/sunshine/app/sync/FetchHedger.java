@@ -0,0 +1,244 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends forecast requests to one of several equivalent endpoints, and hedges slow ones.
+ *
+ * The first endpoint is the primary, and an unhedged request only ever goes there.  A hedged
+ * request goes to the primary too, but if it hasn't answered within
+ * {@link #getHedgeDelayMillis the hedge delay} the same request is sent to the next endpoint,
+ * and so on down the list.  Whichever answers first is used and the others are cancelled.  If
+ * an endpoint fails a hedged request outright, or with a 5xx, the next one is asked at once.
+ *
+ * The hedge delay is the 95th percentile of the primary's recent times to first byte, so only
+ * about one request in twenty is ever sent twice.  When the primary loses a race, how long it
+ * had taken by then counts as one of those times.  Until enough of those times have been seen
+ * it is {@link #DEFAULT_HEDGE_DELAY_MILLIS}.
+ *
+ * All methods are safe to call from the parallel sync workers.
+ */
+class FetchHedger {
+
+    /**
+     * A request that can be made against any of the endpoints.
+     */
+    interface Request<T> {
+        /**
+         * Prepares, without making it yet, the request against {@code endpoint}.
+         */
+        Attempt<T> newAttempt(String endpoint) throws IOException;
+    }
+
+    interface Attempt<T> {
+        /**
+         * Makes the request and blocks until the first byte of the response.
+         */
+        T call() throws IOException;
+
+        /**
+         * Abandons the request, releasing its connection.  Called from another thread, possibly
+         * while {@link #call} is blocked or after it has returned.
+         */
+        void cancel();
+    }
+
+    static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+    static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    static final long MAX_HEDGE_DELAY_MILLIS = 1000 * 10;
+
+    // The primary's most recent times to first byte, and how many it takes to trust them
+    static final int SAMPLE_COUNT = 64;
+    static final int MIN_SAMPLES = 10;
+
+    private final String[] mEndpoints;
+    private final ExecutorService mExecutor;
+
+    private final long[] mSamples = new long[SAMPLE_COUNT];
+    private int mSampleCount;
+    private int mNextSample;
+
+    private final AtomicInteger mHedgedCount = new AtomicInteger();
+    private final AtomicInteger mMirrorWinCount = new AtomicInteger();
+
+    /**
+     * @param endpoints equivalent base URLs, each ending in a slash, the primary first
+     * @param executor runs the attempts of hedged requests; it needs a thread for every
+     *                 endpoint of every request that may be in flight at once
+     */
+    FetchHedger(String[] endpoints, ExecutorService executor) {
+        if (endpoints.length == 0) {
+            throw new IllegalArgumentException("No endpoints");
+        }
+        mEndpoints = endpoints.clone();
+        mExecutor = executor;
+    }
+
+    String getPrimaryEndpoint() {
+        return mEndpoints[0];
+    }
+
+    /**
+     * Makes the request, hedged if {@code hedge} is set and there is an endpoint to hedge with.
+     *
+     * @return the answer of whichever endpoint answered first
+     * @throws IOException the last failure, if no endpoint answered
+     */
+    <T> T execute(Request<T> request, boolean hedge) throws IOException {
+        if (!hedge || mEndpoints.length == 1) {
+            Attempt<T> attempt = request.newAttempt(mEndpoints[0]);
+            long start = System.nanoTime();
+            try {
+                T result = attempt.call();
+                recordSample(System.nanoTime() - start);
+                return result;
+            } catch (IOException e) {
+                attempt.cancel();
+                throw e;
+            }
+        }
+
+        CompletionService<T> completion = new ExecutorCompletionService<T>(mExecutor);
+        List<Attempt<T>> attempts = new ArrayList<Attempt<T>>(mEndpoints.length);
+        List<Future<T>> futures = new ArrayList<Future<T>>(mEndpoints.length);
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(getHedgeDelayMillis());
+        long start = System.nanoTime();
+        IOException failure = null;
+        int running = 0;
+        boolean primaryFailed = false;
+        try {
+            submit(request, 0, attempts, futures, completion);
+            running++;
+            long hedgeAt = start + delayNanos;
+            while (true) {
+                Future<T> done;
+                if (attempts.size() < mEndpoints.length) {
+                    done = completion.poll(hedgeAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        // Too slow: ask the next endpoint as well
+                        if (attempts.size() == 1) {
+                            mHedgedCount.incrementAndGet();
+                        }
+                        submit(request, attempts.size(), attempts, futures, completion);
+                        running++;
+                        hedgeAt = System.nanoTime() + delayNanos;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                running--;
+
+                int index = futures.indexOf(done);
+                try {
+                    T result = done.get();
+                    if (index != 0) {
+                        mMirrorWinCount.incrementAndGet();
+                    }
+                    if (!primaryFailed) {
+                        // If the primary lost, this is only how long it took at least, which
+                        // still keeps a slow primary from pulling the delay down
+                        recordSample(System.nanoTime() - start);
+                    }
+                    cancelAllBut(attempts, futures, index);
+                    return result;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                    attempts.get(index).cancel();
+                    primaryFailed |= index == 0;
+                }
+
+                if (attempts.size() < mEndpoints.length) {
+                    // No point waiting out the delay for an endpoint that has already failed
+                    submit(request, attempts.size(), attempts, futures, completion);
+                    running++;
+                    hedgeAt = System.nanoTime() + delayNanos;
+                } else if (running == 0) {
+                    throw failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelAllBut(attempts, futures, -1);
+            throw new InterruptedIOException("Interrupted waiting for " + mEndpoints[0]);
+        } catch (IOException e) {
+            cancelAllBut(attempts, futures, -1);
+            throw e;
+        } catch (RuntimeException e) {
+            cancelAllBut(attempts, futures, -1);
+            throw e;
+        }
+    }
+
+    private <T> void submit(Request<T> request, int index, List<Attempt<T>> attempts,
+                            List<Future<T>> futures, CompletionService<T> completion)
+            throws IOException {
+        final Attempt<T> attempt = request.newAttempt(mEndpoints[index]);
+        attempts.add(attempt);
+        futures.add(completion.submit(new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                return attempt.call();
+            }
+        }));
+    }
+
+    private static <T> void cancelAllBut(List<Attempt<T>> attempts, List<Future<T>> futures,
+                                         int winner) {
+        for (int i = 0; i < attempts.size(); i++) {
+            if (i != winner) {
+                futures.get(i).cancel(true);
+                attempts.get(i).cancel();
+            }
+        }
+    }
+
+    synchronized void recordSample(long nanos) {
+        mSamples[mNextSample] = TimeUnit.NANOSECONDS.toMillis(nanos);
+        mNextSample = (mNextSample + 1) % SAMPLE_COUNT;
+        mSampleCount = Math.min(mSampleCount + 1, SAMPLE_COUNT);
+    }
+
+    /**
+     * Returns how long a hedged request waits for the primary before trying the next endpoint.
+     */
+    synchronized long getHedgeDelayMillis() {
+        if (mSampleCount < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        // Nearest rank
+        int rank = (int) Math.ceil(0.95 * sorted.length);
+        return Math.max(MIN_HEDGE_DELAY_MILLIS,
+                Math.min(sorted[rank - 1], MAX_HEDGE_DELAY_MILLIS));
+    }
+
+    /** Number of requests that were sent to more than one endpoint because of the delay. */
+    int getHedgedCount() {
+        return mHedgedCount.get();
+    }
+
+    /** Number of hedged requests another endpoint answered before the primary. */
+    int getMirrorWinCount() {
+        return mMirrorWinCount.get();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Hedger: " + mHedgedCount.get() + " requests hedged, "
+                + mMirrorWinCount.get() + " won by a mirror");
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Computes a 64 bit fingerprint of everything read through it, so a response can be compared
+ * with the last one that was stored without keeping either body around.  The high half is a
+ * CRC-32 and the low half an Adler-32 of the same bytes; both are updated incrementally as the
+ * bytes stream past, and together they make an accidental match between two different
+ * forecasts vanishingly unlikely.
+ */
+class FingerprintInputStream extends FilterInputStream {
+    private final CRC32 mCrc = new CRC32();
+    private final Adler32 mAdler = new Adler32();
+
+    /**
+     * @param seed mixed in ahead of the body, so the same bytes fingerprint differently when
+     *             something they are interpreted against has changed
+     */
+    FingerprintInputStream(InputStream in, long seed) {
+        super(in);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            int b = (int) (seed >>> shift) & 0xff;
+            mCrc.update(b);
+            mAdler.update(b);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            mCrc.update(b);
+            mAdler.update(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            mCrc.update(buffer, offset, read);
+            mAdler.update(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        // Skipped bytes still have to be counted, so read them instead
+        byte[] buffer = new byte[(int) Math.min(byteCount, 1024)];
+        long skipped = 0;
+        while (skipped < byteCount) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Returns the fingerprint of the bytes read so far.  Read to the end of the stream first
+     * for a fingerprint of the whole body.
+     */
+    long getFingerprint() {
+        return (mCrc.getValue() << 32) | mAdler.getValue();
+    }
+}
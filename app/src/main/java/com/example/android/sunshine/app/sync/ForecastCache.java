@@ -0,0 +1,522 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded on-disk cache of raw forecast responses, keyed by request URI.
+ *
+ * Each entry is a small fixed header (when it was stored, its max-age and its
+ * stale-while-revalidate window) followed by the response body exactly as the server sent it,
+ * so a cached forecast goes through the same {@link ForecastParser} path as a live one.
+ *
+ * An entry is <em>fresh</em> until its max-age runs out, then <em>stale</em> but still
+ * servable for its stale-while-revalidate window, and unusable after that.  The window comes
+ * from the server's Cache-Control header when it sends one, and otherwise from the default
+ * passed to the constructor; a default of zero turns the stale-while-revalidate mode off.
+ *
+ * A live response is copied as it is read, but the copy only becomes an entry once its
+ * forecast is in the database: {@link #complete} finishes it and {@link #publish} makes it
+ * visible.  Until then the cache never claims to hold a forecast the database doesn't.
+ */
+class ForecastCache {
+    private static final String LOG_TAG = ForecastCache.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({EVICT_LEAST_RECENTLY_USED, EVICT_OLDEST})
+    public @interface EvictionPolicy {}
+
+    /** Evict the entry that was read or written longest ago. */
+    static final int EVICT_LEAST_RECENTLY_USED = 0;
+    /** Evict the entry that was written longest ago, regardless of reads. */
+    static final int EVICT_OLDEST = 1;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int HEADER_SIZE = 3 * 8;
+
+    private static final String CACHE_CONTROL_MAX_AGE = "max-age=";
+    private static final String CACHE_CONTROL_STALE_WHILE_REVALIDATE = "stale-while-revalidate=";
+    private static final String CACHE_CONTROL_NO_STORE = "no-store";
+    private static final String CACHE_CONTROL_NO_CACHE = "no-cache";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final int mEvictionPolicy;
+    private final long mDefaultStaleWhileRevalidateMillis;
+
+    // Which entries (by file name) have already been applied to the database by this process,
+    // and at which store time.  Used to avoid rewriting the same cached forecast on every sync.
+    private final Map<String, Long> mApplied = new HashMap<String, Long>();
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mStaleCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    /**
+     * One cached response.
+     */
+    static final class Entry {
+        final File file;
+        final long storedAt;
+        final long maxAgeMillis;
+        final long staleWhileRevalidateMillis;
+
+        Entry(File file, long storedAt, long maxAgeMillis, long staleWhileRevalidateMillis) {
+            this.file = file;
+            this.storedAt = storedAt;
+            this.maxAgeMillis = maxAgeMillis;
+            this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+        }
+
+        boolean isFresh(long now) {
+            return now - storedAt < maxAgeMillis;
+        }
+
+        boolean isUsable(long now) {
+            return now - storedAt < maxAgeMillis + staleWhileRevalidateMillis;
+        }
+
+        /**
+         * Opens the cached response body.  The caller must close the stream.
+         */
+        InputStream openBody() throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            long skipped = 0;
+            while (skipped < HEADER_SIZE) {
+                long n = in.skip(HEADER_SIZE - skipped);
+                if (n <= 0) {
+                    in.close();
+                    throw new IOException("Truncated cache entry " + file);
+                }
+                skipped += n;
+            }
+            return in;
+        }
+    }
+
+    /**
+     * A response that has been copied in full but is not an entry yet.
+     */
+    static final class PendingEntry {
+        private final File temp;
+        private final File file;
+        private final long storedAt;
+
+        private PendingEntry(File temp, File file, long storedAt) {
+            this.temp = temp;
+            this.file = file;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * @param directory where entries are kept; created if needed
+     * @param maxBytes the total size entries may take up before older ones are evicted
+     * @param evictionPolicy which entries to evict first
+     * @param defaultStaleWhileRevalidateMillis how long a stale entry may still be served while
+     *        it is refreshed, for responses that don't say.  Zero disables serving stale entries.
+     */
+    ForecastCache(File directory, long maxBytes, @EvictionPolicy int evictionPolicy,
+                  long defaultStaleWhileRevalidateMillis) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mEvictionPolicy = evictionPolicy;
+        mDefaultStaleWhileRevalidateMillis = defaultStaleWhileRevalidateMillis;
+    }
+
+    /**
+     * Looks up the response for {@code key}, counting the lookup as a hit, a stale hit or a
+     * miss.
+     *
+     * @return the entry if it is fresh or within its stale-while-revalidate window, else null
+     */
+    synchronized Entry get(String key, long now) {
+        File file = fileFor(key);
+        Entry entry = readEntry(file);
+        if (entry == null || !entry.isUsable(now)) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        if (entry.isFresh(now)) {
+            mHitCount.incrementAndGet();
+        } else {
+            mStaleCount.incrementAndGet();
+        }
+        if (mEvictionPolicy == EVICT_LEAST_RECENTLY_USED) {
+            file.setLastModified(now);
+        }
+        return entry;
+    }
+
+    /**
+     * Wraps a live response body so that everything read from it is also written to the cache.
+     * Nothing is visible to {@link #get} until the copy is {@link #complete completed} and
+     * {@link #publish published}.
+     *
+     * @param cacheControl the response's Cache-Control header, or null
+     * @return the stream to read the body through, or {@code body} itself if the response
+     *         must not be stored
+     */
+    InputStream put(String key, InputStream body, String cacheControl, long now) {
+        if (cacheControl != null && cacheControl.contains(CACHE_CONTROL_NO_STORE)) {
+            return body;
+        }
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                return body;
+            }
+            File file = fileFor(key);
+            File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeLong(now);
+            out.writeLong(parseMaxAgeMillis(cacheControl));
+            out.writeLong(parseStaleWhileRevalidateMillis(cacheControl));
+            return new CachingInputStream(body, out, temp, file, now);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to cache response for " + key, e);
+            return body;
+        }
+    }
+
+    /**
+     * Restarts the freshness lifetime of an entry after the server confirmed with a 304 that
+     * it is still current.
+     */
+    synchronized void freshen(String key, String cacheControl, long now) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.writeLong(now);
+            raf.writeLong(parseMaxAgeMillis(cacheControl));
+            raf.writeLong(parseStaleWhileRevalidateMillis(cacheControl));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to freshen " + file, e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + file, e);
+                }
+            }
+        }
+        if (mEvictionPolicy == EVICT_LEAST_RECENTLY_USED) {
+            file.setLastModified(now);
+        }
+    }
+
+    /**
+     * Finishes the copy made by a stream returned from {@link #put}, reading whatever is left
+     * of the body.  Closing the stream afterwards keeps the copy.
+     *
+     * @return the copy, to {@link #publish} once its forecast has been stored or
+     *         {@link #discard} if it wasn't; null if the stream was not being cached or the
+     *         copy failed
+     */
+    PendingEntry complete(InputStream stream) {
+        if (stream instanceof CachingInputStream) {
+            return ((CachingInputStream) stream).complete();
+        }
+        return null;
+    }
+
+    /**
+     * Makes a completed copy the entry for its key, replacing any earlier one.  Call it only
+     * once the copy's forecast is in the database, as the entry is taken to be applied.
+     */
+    synchronized void publish(PendingEntry pending) {
+        if (!pending.temp.renameTo(pending.file)) {
+            pending.temp.delete();
+            return;
+        }
+        pending.file.setLastModified(pending.storedAt);
+        mApplied.put(pending.file.getName(), pending.storedAt);
+        trimToSize();
+    }
+
+    /**
+     * Throws away a completed copy whose forecast didn't make it into the database.
+     */
+    void discard(PendingEntry pending) {
+        pending.temp.delete();
+    }
+
+    synchronized void remove(String key) {
+        File file = fileFor(key);
+        mApplied.remove(file.getName());
+        file.delete();
+    }
+
+    /**
+     * Records that this entry's forecast has been written to the database.
+     */
+    synchronized void markApplied(Entry entry) {
+        mApplied.put(entry.file.getName(), entry.storedAt);
+    }
+
+    /**
+     * @return true if this exact entry has already been written to the database by this
+     *         process, so serving it again would only rewrite identical rows
+     */
+    synchronized boolean isApplied(Entry entry) {
+        Long storedAt = mApplied.get(entry.file.getName());
+        return storedAt != null && storedAt == entry.storedAt;
+    }
+
+    /** Number of lookups answered with a fresh entry. */
+    int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /** Number of lookups answered with a stale entry inside its stale-while-revalidate window. */
+    int getStaleCount() {
+        return mStaleCount.get();
+    }
+
+    /** Number of lookups that found nothing usable. */
+    int getMissCount() {
+        return mMissCount.get();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Cache: " + getHitCount() + " hits, " + getStaleCount()
+                + " stale hits, " + getMissCount() + " misses");
+    }
+
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= mMaxBytes) {
+            return;
+        }
+        // Under EVICT_OLDEST reads never touch the modification time, so it is the write time
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (size <= mMaxBytes) {
+                break;
+            }
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                mApplied.remove(file.getName());
+                size -= length;
+            }
+        }
+    }
+
+    private Entry readEntry(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return new Entry(file, in.readLong(), in.readLong(), in.readLong());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Dropping unreadable cache entry " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + file, e);
+                }
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Android device ships MD5 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long parseMaxAgeMillis(String cacheControl) {
+        if (cacheControl == null || cacheControl.contains(CACHE_CONTROL_NO_CACHE)) {
+            return 0;
+        }
+        return parseSeconds(cacheControl, CACHE_CONTROL_MAX_AGE, 0) * 1000;
+    }
+
+    private long parseStaleWhileRevalidateMillis(String cacheControl) {
+        if (cacheControl == null) {
+            return mDefaultStaleWhileRevalidateMillis;
+        }
+        long seconds = parseSeconds(cacheControl, CACHE_CONTROL_STALE_WHILE_REVALIDATE, -1);
+        return seconds < 0 ? mDefaultStaleWhileRevalidateMillis : seconds * 1000;
+    }
+
+    private static long parseSeconds(String cacheControl, String directive, long defaultValue) {
+        int start = cacheControl.indexOf(directive);
+        if (start < 0) {
+            return defaultValue;
+        }
+        start += directive.length();
+        int end = start;
+        while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(cacheControl.substring(start, end));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Copies a response body into a temporary cache file as it is read.  Closing the stream
+     * before {@link #complete} is called throws the copy away.
+     */
+    class CachingInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+        private final File mTemp;
+        private final File mFile;
+        private final long mStoredAt;
+        private boolean mFailed;
+        private boolean mClosed;
+
+        CachingInputStream(InputStream in, OutputStream out, File temp, File file, long storedAt) {
+            super(in);
+            mOut = out;
+            mTemp = temp;
+            mFile = file;
+            mStoredAt = storedAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                write(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would leave a hole in the copy
+            mFailed = true;
+            return super.skip(n);
+        }
+
+        /**
+         * Drains whatever the parser left unread and finishes the copy.
+         */
+        private PendingEntry complete() {
+            if (mFailed || mClosed) {
+                close();
+                return null;
+            }
+            try {
+                byte[] buffer = new byte[1024];
+                while (read(buffer, 0, buffer.length) != -1) {
+                    // keep copying
+                }
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Unable to finish caching " + mFile, e);
+                mFailed = true;
+            }
+            mClosed = true;
+            if (mFailed) {
+                mTemp.delete();
+                return null;
+            }
+            return new PendingEntry(mTemp, mFile, mStoredAt);
+        }
+
+        @Override
+        public void close() {
+            try {
+                super.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+            if (!mClosed) {
+                mClosed = true;
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + mTemp, e);
+                }
+                mTemp.delete();
+            }
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Unable to cache " + mFile, e);
+                mFailed = true;
+            }
+        }
+    }
+}
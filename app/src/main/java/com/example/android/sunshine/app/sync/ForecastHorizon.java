@@ -0,0 +1,71 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how many days of forecast each location's fetch asks for.
+ *
+ * The list, the widgets and the notification mostly show the first few days, so most syncs
+ * only ask for {@link #SHORT_DAYS}.  The full {@link #FULL_DAYS} are fetched the
+ * first time a location is synced, at most every {@link #FULL_INTERVAL_MILLIS} after that, and
+ * whenever the user has scrolled to the end of what is stored.  A short forecast is merged
+ * over the stored one date by date, so the days beyond it are kept until the next full fetch
+ * refreshes them.
+ *
+ * Like {@link SyncScheduler} this holds no Android state; the sync adapter loads and saves
+ * when each location last had a full fetch, which keeps the decisions testable against a fake
+ * {@link Clock}.
+ */
+class ForecastHorizon {
+
+    // As far ahead as OWM's daily forecast goes
+    static final int FULL_DAYS = 14;
+    static final int SHORT_DAYS = 5;
+    static final long FULL_INTERVAL_MILLIS = 1000 * 60 * 60 * 24;
+
+    private final Clock mClock;
+    // When each location last had the full horizon fetched
+    private final Map<String, Long> mLastFullFetch = new HashMap<String, Long>();
+
+    ForecastHorizon(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param fetchedAt when the location last had a full fetch, or 0 if it never has
+     */
+    void setLastFullFetch(String locationSetting, long fetchedAt) {
+        mLastFullFetch.put(locationSetting, fetchedAt);
+    }
+
+    long getLastFullFetch(String locationSetting) {
+        Long fetchedAt = mLastFullFetch.get(locationSetting);
+        return fetchedAt == null ? 0 : fetchedAt;
+    }
+
+    /**
+     * Returns how many days to ask for.
+     *
+     * @param fullRequested true if the user has scrolled past the days stored for the location
+     */
+    int getDays(String locationSetting, boolean fullRequested) {
+        long lastFull = getLastFullFetch(locationSetting);
+        long now = mClock.currentTimeMillis();
+        // A clock that has gone backwards can't be trusted to say how old the far days are
+        if (fullRequested || lastFull == 0 || now < lastFull
+                || now - lastFull >= FULL_INTERVAL_MILLIS) {
+            return FULL_DAYS;
+        }
+        return SHORT_DAYS;
+    }
+
+    /**
+     * Notes that a forecast of {@code days} days was fetched for the location just now.
+     */
+    void recordFetch(String locationSetting, int days) {
+        if (days >= FULL_DAYS) {
+            mLastFullFetch.put(locationSetting, mClock.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of raw forecast responses, so a forecast that was downloaded but not yet
+ * committed to the database survives the process being killed.
+ *
+ * A response is written to the journal as its body is read, through the {@link Recorder} that
+ * {@link #record} wraps it in, a chunk at a time; no copy of the whole body is held in memory.
+ * Once the body has been read, {@link #append} writes an entry record after its chunks and
+ * forces the file to disk, before the forecast's rows are handed to the database writer.
+ * Several responses can be recorded at once; their chunks are interleaved in the file, each
+ * tagged with its response's sequence number.  When the writer has committed, a commit record
+ * for the entry is appended.  After a crash, {@link #getUncommitted} returns the entries that
+ * never got one, ready to be replayed.  Entries appended by this process are left to the sync
+ * that appended them while it runs; any it failed to commit are returned to the next one.
+ * {@link #compact Compaction} rewrites the journal with only its uncommitted entries, which is
+ * an empty file once everything has been committed.
+ *
+ * Chunks of a response that never got its entry record, because it was abandoned, discarded
+ * or the process died first, are ignored, and dropped by the next compaction.  A record torn
+ * by a crash part way through writing it fails its checksum; it and anything after it are cut
+ * off when the journal is opened.
+ */
+class ForecastJournal {
+    private static final String LOG_TAG = ForecastJournal.class.getSimpleName();
+
+    private static final int RECORD_ENTRY = 0x534a4e45;
+    private static final int RECORD_COMMIT = 0x534a4e43;
+    private static final int RECORD_CHUNK = 0x534a4e42;
+
+    // Type, sequence number and length ahead of a chunk's bytes
+    private static final int CHUNK_HEADER_SIZE = 4 + 8 + 4;
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    /**
+     * A journaled response that has not been committed.  The body is left on disk until
+     * {@link #openBody} is called.
+     */
+    static final class Entry {
+        final long seq;
+        final String locationSetting;
+        final long fetchedAt;
+        final int bodyLength;
+        // Where each of the body's chunks starts in the file, and how long it is
+        final long[] chunkPositions;
+        final int[] chunkLengths;
+
+        Entry(long seq, String locationSetting, long fetchedAt, List<long[]> chunks) {
+            this.seq = seq;
+            this.locationSetting = locationSetting;
+            this.fetchedAt = fetchedAt;
+            chunkPositions = new long[chunks.size()];
+            chunkLengths = new int[chunks.size()];
+            int bodyLength = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                chunkPositions[i] = chunks.get(i)[0];
+                chunkLengths[i] = (int) chunks.get(i)[1];
+                bodyLength += chunkLengths[i];
+            }
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    /**
+     * Writes everything read through it to the journal, in chunks of up to
+     * {@link #CHUNK_SIZE}.  Failing to write leaves the stream readable; the failure is
+     * reported by {@link #append}.
+     */
+    final class Recorder extends FilterInputStream {
+        private final long mSeq;
+        private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mBuffered;
+        // Position and length of each chunk written so far
+        private final List<long[]> mChunks = new ArrayList<long[]>();
+        private IOException mError;
+        private boolean mDiscarded;
+
+        private Recorder(InputStream in, long seq) {
+            super(in);
+            mSeq = seq;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mBuffer[mBuffered++] = (byte) b;
+                if (mBuffered == mBuffer.length) {
+                    flushChunk();
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            for (int copied = 0; copied < read; ) {
+                int n = Math.min(read - copied, mBuffer.length - mBuffered);
+                System.arraycopy(buffer, offset + copied, mBuffer, mBuffered, n);
+                mBuffered += n;
+                copied += n;
+                if (mBuffered == mBuffer.length) {
+                    flushChunk();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(byteCount, 1024)];
+            long skipped = 0;
+            while (skipped < byteCount) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                ForecastJournal.this.release(mSeq);
+            }
+        }
+
+        /**
+         * Stops writing the response to the journal, for a response that turned out not to
+         * need replaying.  The stream stays readable.
+         */
+        void discard() {
+            mDiscarded = true;
+            mBuffered = 0;
+            ForecastJournal.this.release(mSeq);
+        }
+
+        private void flushChunk() {
+            if (mBuffered == 0 || mError != null || mDiscarded) {
+                mBuffered = 0;
+                return;
+            }
+            try {
+                mChunks.add(new long[]{writeChunk(mSeq, mBuffer, mBuffered), mBuffered});
+            } catch (IOException e) {
+                mError = e;
+            }
+            mBuffered = 0;
+        }
+    }
+
+    private final File mFile;
+    private FileChannel mChannel;
+    private long mNextSeq = 1;
+    // Uncommitted entries, oldest first
+    private final Map<Long, Entry> mUncommitted = new LinkedHashMap<Long, Entry>();
+    // The ones among them that an earlier process left behind
+    private final Map<Long, Entry> mRecovered = new LinkedHashMap<Long, Entry>();
+    // Responses being recorded, whose chunks compaction must leave alone
+    private final Set<Long> mRecording = new HashSet<Long>();
+
+    ForecastJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Wraps a response body so that it is written to the journal as it is read.  Pass the
+     * result to {@link #append} once the body has been read, and close it either way.
+     */
+    synchronized Recorder record(InputStream body) throws IOException {
+        open();
+        long seq = mNextSeq++;
+        mRecording.add(seq);
+        return new Recorder(body, seq);
+    }
+
+    /**
+     * Finishes a response read through {@code recorder} and forces it to disk.
+     *
+     * @return the entry's sequence number, for {@link #commit}
+     */
+    long append(String locationSetting, long fetchedAt, Recorder recorder) throws IOException {
+        if (recorder.mDiscarded) {
+            throw new IllegalStateException("Response " + recorder.mSeq + " was discarded");
+        }
+        recorder.flushChunk();
+        if (recorder.mError != null) {
+            throw recorder.mError;
+        }
+        Entry entry = new Entry(recorder.mSeq, locationSetting, fetchedAt, recorder.mChunks);
+
+        synchronized (this) {
+            writeEntry(mChannel, entry);
+            // Covers the chunks written before it too
+            mChannel.force(true);
+            mRecording.remove(entry.seq);
+            mUncommitted.put(entry.seq, entry);
+        }
+        return entry.seq;
+    }
+
+    /**
+     * Appends an entry record, which is not forced to disk.
+     */
+    private static void writeEntry(FileChannel channel, Entry entry) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(RECORD_ENTRY);
+        out.writeLong(entry.seq);
+        out.writeUTF(entry.locationSetting);
+        out.writeLong(entry.fetchedAt);
+        out.writeInt(entry.bodyLength);
+        out.flush();
+        byte[] header = record.toByteArray();
+        writeFully(channel, new ByteBuffer[]{ByteBuffer.wrap(header), checksum(header)});
+    }
+
+    /**
+     * Appends one chunk of a response being recorded.  It is not forced to disk; that waits for
+     * the response's entry record.
+     *
+     * @return where the chunk's bytes start in the file
+     */
+    private synchronized long writeChunk(long seq, byte[] bytes, int length) throws IOException {
+        return writeChunk(mChannel, seq, bytes, 0, length);
+    }
+
+    private static long writeChunk(FileChannel channel, long seq, byte[] bytes, int offset,
+                                   int length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        header.putInt(RECORD_CHUNK);
+        header.putLong(seq);
+        header.putInt(length);
+        CRC32 crc = new CRC32();
+        crc.update(header.array());
+        crc.update(bytes, offset, length);
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.putLong(crc.getValue());
+        header.flip();
+        trailer.flip();
+
+        long position = channel.size();
+        writeFully(channel,
+                new ByteBuffer[]{header, ByteBuffer.wrap(bytes, offset, length), trailer});
+        return position + CHUNK_HEADER_SIZE;
+    }
+
+    private synchronized void release(long seq) {
+        mRecording.remove(seq);
+    }
+
+    /**
+     * Records that the entries' rows are in the database.  Commit records are not forced to
+     * disk: if one is lost the entry is simply replayed again, which rewrites the same rows.
+     */
+    synchronized void commit(Collection<Long> seqs) throws IOException {
+        if (seqs.isEmpty()) {
+            return;
+        }
+        open();
+        ByteBuffer buffer = ByteBuffer.allocate(12 * seqs.size());
+        for (long seq : seqs) {
+            buffer.putInt(RECORD_COMMIT);
+            buffer.putLong(seq);
+            mUncommitted.remove(seq);
+            mRecovered.remove(seq);
+        }
+        buffer.flip();
+        writeFully(mChannel, new ByteBuffer[]{buffer});
+    }
+
+    /**
+     * Returns the uncommitted entries, only the newest for each location, oldest first.
+     *
+     * @param includeAppended true to include the entries appended by this process, as well as
+     *        those an earlier process left behind.  Only pass it while no sync is running, as a
+     *        running sync commits its own entries; any left then are ones a sync failed to
+     *        commit.
+     */
+    synchronized List<Entry> getUncommitted(boolean includeAppended) throws IOException {
+        open();
+        Map<String, Entry> newest = new LinkedHashMap<String, Entry>();
+        for (Entry entry : (includeAppended ? mUncommitted : mRecovered).values()) {
+            // Re-inserting moves the location after any older ones
+            newest.remove(entry.locationSetting);
+            newest.put(entry.locationSetting, entry);
+        }
+        return new ArrayList<Entry>(newest.values());
+    }
+
+    /**
+     * Returns the uncommitted entries that {@link #getUncommitted} leaves out because a newer
+     * one exists for the same location.
+     */
+    synchronized List<Long> getSuperseded(boolean includeAppended) throws IOException {
+        List<Entry> newest = getUncommitted(includeAppended);
+        List<Long> superseded = new ArrayList<Long>(
+                (includeAppended ? mUncommitted : mRecovered).keySet());
+        for (Entry entry : newest) {
+            superseded.remove(Long.valueOf(entry.seq));
+        }
+        return superseded;
+    }
+
+    synchronized InputStream openBody(Entry entry) throws IOException {
+        open();
+        // A compaction since the entry was handed out may have moved its chunks
+        Entry current = mUncommitted.get(entry.seq);
+        if (current != null) {
+            entry = current;
+        }
+        return new ByteArrayInputStream(readBody(entry).array());
+    }
+
+    private ByteBuffer readBody(Entry entry) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(entry.bodyLength);
+        for (int i = 0; i < entry.chunkPositions.length; i++) {
+            long end = body.position() + entry.chunkLengths[i];
+            body.limit((int) end);
+            while (body.hasRemaining()) {
+                if (mChannel.read(body, entry.chunkPositions[i] + entry.chunkLengths[i]
+                        - body.remaining()) == -1) {
+                    throw new EOFException("Journal entry " + entry.seq + " is truncated");
+                }
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Rewrites the journal with only its uncommitted entries, dropping everything committed and
+     * the chunks of abandoned responses.  Skipped while a response is being recorded, as its
+     * recorder holds the positions of the chunks it has written.
+     */
+    synchronized void compact() throws IOException {
+        open();
+        if (!mRecording.isEmpty() || mChannel.size() == 0) {
+            return;
+        }
+        if (mUncommitted.isEmpty()) {
+            mChannel.truncate(0);
+            mChannel.force(true);
+            return;
+        }
+
+        // Written beside the journal and renamed over it, so a crash leaves one or the other
+        File compacted = new File(mFile.getPath() + COMPACT_SUFFIX);
+        Map<Long, Entry> moved = new LinkedHashMap<Long, Entry>();
+        FileChannel channel = new RandomAccessFile(compacted, "rw").getChannel();
+        boolean renamed = false;
+        try {
+            channel.truncate(0);
+            for (Entry entry : mUncommitted.values()) {
+                ByteBuffer body = readBody(entry);
+                List<long[]> chunks = new ArrayList<long[]>();
+                for (int offset = 0; offset < entry.bodyLength; offset += CHUNK_SIZE) {
+                    int length = Math.min(CHUNK_SIZE, entry.bodyLength - offset);
+                    chunks.add(new long[]{
+                            writeChunk(channel, entry.seq, body.array(), offset, length), length});
+                }
+                Entry copy = new Entry(entry.seq, entry.locationSetting, entry.fetchedAt, chunks);
+                writeEntry(channel, copy);
+                moved.put(copy.seq, copy);
+            }
+            channel.force(true);
+            renamed = compacted.renameTo(mFile);
+            if (!renamed) {
+                throw new IOException("Unable to replace " + mFile);
+            }
+        } finally {
+            if (renamed) {
+                mChannel.close();
+                mChannel = channel;
+            } else {
+                channel.close();
+                compacted.delete();
+            }
+        }
+        for (Entry entry : moved.values()) {
+            mUncommitted.put(entry.seq, entry);
+            if (mRecovered.containsKey(entry.seq)) {
+                mRecovered.put(entry.seq, entry);
+            }
+        }
+    }
+
+    private static ByteBuffer checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.putLong(crc.getValue());
+        trailer.flip();
+        return trailer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers)
+            throws IOException {
+        channel.position(channel.size());
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Opens the file on first use and rebuilds the uncommitted set from it.
+     */
+    private void open() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        FileChannel channel = new RandomAccessFile(mFile, "rw").getChannel();
+
+        long validLength = 0;
+        // Chunks read so far of responses that haven't had their entry record yet
+        Map<Long, List<long[]>> chunks = new HashMap<Long, List<long[]>>();
+        // Not closed, as that would close the channel too
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        try {
+            while (true) {
+                int type = in.readInt();
+                if (type == RECORD_COMMIT) {
+                    long seq = in.readLong();
+                    mUncommitted.remove(seq);
+                    mRecovered.remove(seq);
+                    mNextSeq = Math.max(mNextSeq, seq + 1);
+                    validLength += 12;
+                } else if (type == RECORD_CHUNK) {
+                    long seq = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > CHUNK_SIZE) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+                    header.putInt(type);
+                    header.putLong(seq);
+                    header.putInt(length);
+                    CRC32 crc = new CRC32();
+                    crc.update(header.array());
+                    crc.update(bytes);
+                    if (in.readLong() != crc.getValue()) {
+                        break;
+                    }
+                    List<long[]> list = chunks.get(seq);
+                    if (list == null) {
+                        list = new ArrayList<long[]>();
+                        chunks.put(seq, list);
+                    }
+                    list.add(new long[]{validLength + CHUNK_HEADER_SIZE, length});
+                    // An abandoned response's number mustn't be handed out again
+                    mNextSeq = Math.max(mNextSeq, seq + 1);
+                    validLength += CHUNK_HEADER_SIZE + length + 8;
+                } else if (type == RECORD_ENTRY) {
+                    ByteArrayOutputStream header = new ByteArrayOutputStream();
+                    DataOutputStream headerOut = new DataOutputStream(header);
+                    headerOut.writeInt(type);
+                    long seq = in.readLong();
+                    headerOut.writeLong(seq);
+                    String locationSetting = in.readUTF();
+                    headerOut.writeUTF(locationSetting);
+                    long fetchedAt = in.readLong();
+                    headerOut.writeLong(fetchedAt);
+                    int length = in.readInt();
+                    headerOut.writeInt(length);
+                    headerOut.flush();
+                    CRC32 crc = new CRC32();
+                    crc.update(header.toByteArray());
+                    if (in.readLong() != crc.getValue()) {
+                        break;
+                    }
+                    validLength += header.size() + 8;
+                    List<long[]> list = chunks.remove(seq);
+                    Entry entry = new Entry(seq, locationSetting, fetchedAt,
+                            list != null ? list : new ArrayList<long[]>());
+                    mNextSeq = Math.max(mNextSeq, seq + 1);
+                    if (entry.bodyLength != length) {
+                        // Can't happen short of a bug; don't replay half a forecast
+                        Log.w(LOG_TAG, "Journal entry " + seq + " is missing chunks");
+                        continue;
+                    }
+                    mUncommitted.put(seq, entry);
+                    mRecovered.put(seq, entry);
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the file, or a record cut short by a crash
+        } catch (IOException e) {
+            channel.close();
+            mUncommitted.clear();
+            mRecovered.clear();
+            throw e;
+        }
+        if (validLength < channel.size()) {
+            Log.w(LOG_TAG, "Dropping " + (channel.size() - validLength)
+                    + " bytes of torn journal records");
+            channel.truncate(validLength);
+        }
+        mChannel = channel;
+    }
+}
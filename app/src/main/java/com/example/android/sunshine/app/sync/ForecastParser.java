@@ -0,0 +1,391 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for the OpenWeatherMap daily forecast response.
+ *
+ * Rather than reading the whole body into a String and building a JSONObject tree, the
+ * response is pulled token by token straight off the connection stream.  Only the fields
+ * Sunshine stores are decoded; everything else is skipped.  Results are handed to a
+ * {@link Listener} one day at a time, reusing a single {@link Day} holder.
+ */
+class ForecastParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // The fields every day has to carry, as the JSONObject path requires them.  The Day holder
+    // is reused, so a day that left one out would otherwise get the previous day's value.
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int FIELDS_REQUIRED = (1 << 8) - 1;
+
+    // The fields the city has to carry, for the same reason: the location row can't be stored
+    // without a name, and 0/0 is a real place rather than a missing one.
+    private static final int FIELD_CITY_NAME = 1;
+    private static final int FIELD_LATITUDE = 1 << 1;
+    private static final int FIELD_LONGITUDE = 1 << 2;
+    private static final int CITY_FIELDS_REQUIRED = (1 << 3) - 1;
+
+    /**
+     * Receives the parsed pieces of a forecast.  OWM sends the city ahead of the list, so
+     * {@link #onCity} is normally called before the first {@link #onDay}; if a server ever
+     * reorders them the parser holds the days back until the city has been seen.
+     */
+    interface Listener {
+        /**
+         * @param cityId OWM's id for the city, or 0 if the response didn't include one
+         */
+        void onCity(long cityId, String cityName, double lat, double lon) throws IOException;
+
+        /**
+         * @param day the decoded day.  The instance is reused for the next day, so copy out
+         *            anything that needs to outlive this call.
+         */
+        void onDay(Day day) throws IOException;
+    }
+
+    /**
+     * The fields of a single forecast day that Sunshine keeps, as primitives.
+     */
+    static final class Day {
+        int index;
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+        double high;
+        double low;
+        String description;
+        int weatherId;
+
+        Day copy() {
+            Day day = new Day();
+            day.index = index;
+            day.pressure = pressure;
+            day.humidity = humidity;
+            day.windSpeed = windSpeed;
+            day.windDirection = windDirection;
+            day.high = high;
+            day.low = low;
+            day.description = description;
+            day.weatherId = weatherId;
+            return day;
+        }
+    }
+
+    private final Listener mListener;
+    private final Day mDay = new Day();
+    // Which of the required fields the day being read has had so far
+    private int mFieldsSeen;
+    private boolean mCitySeen;
+    private boolean mListSeen;
+    private List<Day> mPendingDays;
+
+    ForecastParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parses the response body, reporting the city and each day to the listener.
+     *
+     * @param in the raw response stream.  It is not closed by this method.
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     *         response did not carry one.
+     * @throws JSONException if the body is not a well-formed forecast
+     */
+    int parse(InputStream in) throws IOException, JSONException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStreaming(reader);
+        } else {
+            return parseTree(reader);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int parseStreaming(Reader in) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        int code = HttpURLConnection.HTTP_OK;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // OWM sends this as a string in some responses and a number in others
+                    code = Integer.parseInt(reader.nextString());
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader);
+                } else if (OWM_LIST.equals(name)) {
+                    readList(reader);
+                    mListSeen = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            // JsonReader reports unexpected token types and bad syntax this way; surface them
+            // the same way the JSONObject path would so the caller can flag the server as
+            // invalid rather than down.
+            JSONException jsonException = new JSONException(e.getMessage());
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+        if (code == HttpURLConnection.HTTP_OK && !mCitySeen) {
+            throw new JSONException("No value for " + OWM_CITY);
+        }
+        // parseTree rejects a forecast without its days too, rather than storing none
+        if (code == HttpURLConnection.HTTP_OK && !mListSeen) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return code;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readCity(JsonReader reader) throws IOException, JSONException {
+        long cityId = 0;
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        int fieldsSeen = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+                fieldsSeen |= FIELD_CITY_NAME;
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                        fieldsSeen |= FIELD_LATITUDE;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                        fieldsSeen |= FIELD_LONGITUDE;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (fieldsSeen != CITY_FIELDS_REQUIRED) {
+            throw new JSONException("City is missing fields");
+        }
+        onCity(cityId, cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readList(JsonReader reader) throws IOException, JSONException {
+        int index = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Day day = mDay;
+            day.index = index++;
+            mFieldsSeen = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_PRESSURE.equals(name)) {
+                    day.pressure = reader.nextDouble();
+                    mFieldsSeen |= FIELD_PRESSURE;
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    day.humidity = reader.nextInt();
+                    mFieldsSeen |= FIELD_HUMIDITY;
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    day.windSpeed = reader.nextDouble();
+                    mFieldsSeen |= FIELD_WINDSPEED;
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    day.windDirection = reader.nextDouble();
+                    mFieldsSeen |= FIELD_WIND_DIRECTION;
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    readTemperature(reader, day);
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, day);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (mFieldsSeen != FIELDS_REQUIRED) {
+                throw new JSONException("Day " + day.index + " is missing fields");
+            }
+            onDay(day);
+        }
+        reader.endArray();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readTemperature(JsonReader reader, Day day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MAX.equals(name)) {
+                day.high = reader.nextDouble();
+                mFieldsSeen |= FIELD_MAX;
+            } else if (OWM_MIN.equals(name)) {
+                day.low = reader.nextDouble();
+                mFieldsSeen |= FIELD_MIN;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readWeather(JsonReader reader, Day day) throws IOException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    day.description = reader.nextString();
+                    mFieldsSeen |= FIELD_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    day.weatherId = reader.nextInt();
+                    mFieldsSeen |= FIELD_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * JsonReader is not available before Honeycomb, so older devices still build the tree.
+     */
+    private int parseTree(Reader in) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(in);
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+
+        int code = HttpURLConnection.HTTP_OK;
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (code != HttpURLConnection.HTTP_OK) {
+                return code;
+            }
+        }
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        onCity(cityJson.optLong(OWM_CITY_ID),
+                cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE),
+                cityCoord.getDouble(OWM_LONGITUDE));
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            Day day = mDay;
+            day.index = i;
+            day.pressure = dayForecast.getDouble(OWM_PRESSURE);
+            day.humidity = dayForecast.getInt(OWM_HUMIDITY);
+            day.windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+            day.windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+            day.description = weatherObject.getString(OWM_DESCRIPTION);
+            day.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+            day.high = temperatureObject.getDouble(OWM_MAX);
+            day.low = temperatureObject.getDouble(OWM_MIN);
+            onDay(day);
+        }
+        return code;
+    }
+
+    private void onCity(long cityId, String cityName, double lat, double lon)
+            throws IOException {
+        mCitySeen = true;
+        mListener.onCity(cityId, cityName, lat, lon);
+        if (mPendingDays != null) {
+            for (Day day : mPendingDays) {
+                mListener.onDay(day);
+            }
+            mPendingDays = null;
+        }
+    }
+
+    private void onDay(Day day) throws IOException {
+        if (mCitySeen) {
+            mListener.onDay(day);
+        } else {
+            if (mPendingDays == null) {
+                mPendingDays = new ArrayList<Day>();
+            }
+            mPendingDays.add(day.copy());
+        }
+    }
+}
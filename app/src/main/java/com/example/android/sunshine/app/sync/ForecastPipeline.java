@@ -0,0 +1,425 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+import android.util.Pair;
+
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands parsed forecasts from the network/parse stage to a database writer through a small
+ * bounded queue.  The writer runs on its own thread and drains the queue into
+ * {@link WeatherProvider}, so SQLite work overlaps with reading the responses and only a
+ * handful of forecasts are ever in memory at once.
+ *
+ * Producers hand over one {@link #put batch} per location: the location row followed by its
+ * days, and separately a {@link #putHourly batch} of its 3 hourly periods.  A location's rows
+ * only enter the queue once its whole response has parsed cleanly, so one bad response never
+ * leaves half a forecast behind.  Any number of producer threads may put batches concurrently.
+ *
+ * Each batch is written in a short transaction of its own, opened only once the batch is in
+ * hand.  A transaction holds the database lock, and one kept open while the writer waits for
+ * the next response would stall every reader, the UI's loaders included, for as long as the
+ * slowest fetch.  The writer adds or updates each batch's location row itself, inside the
+ * batch's transaction.
+ *
+ * Observers hear about the writes once, when the writer reaches the end of the stream, rather
+ * than after every batch; a sync of many locations would otherwise wake every loader and widget
+ * once per location.
+ *
+ * Each pipeline counts how often a producer found the queue full (the writer is the
+ * bottleneck) and how often the writer found it empty (the network or parser is).  The
+ * writer's time is split between adding locations and inserting weather and hourly rows in the
+ * sync's {@link SyncStats}.
+ */
+class ForecastPipeline {
+    private static final String LOG_TAG = ForecastPipeline.class.getSimpleName();
+
+    private static final int QUEUE_CAPACITY = 2;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    // Marks the end of the stream.  Compared by identity.
+    private static final Batch END_OF_STREAM = new Batch(null, null, null, null);
+
+    private static final ExecutorService sWriterExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * A location row and the weather and hourly rows that belong to it.  The rows get their
+     * location key from the writer.  A batch without a location row only carries rows for a
+     * location that is already stored, and is dropped if it isn't.
+     */
+    static final class Batch {
+        final String locationSetting;
+        final ContentValues location;
+        final List<ContentValues> days;
+        final List<ContentValues> hours;
+
+        Batch(String locationSetting, ContentValues location, List<ContentValues> days,
+              List<ContentValues> hours) {
+            this.locationSetting = locationSetting;
+            this.location = location;
+            this.days = days;
+            this.hours = hours;
+        }
+    }
+
+    private final BlockingQueue<Batch> mQueue = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+    private final ContentResolver mResolver;
+    private final WeatherProvider mProvider;
+    private final SyncStats mStats;
+
+    // Only used when the provider lives in another process and cannot be streamed into.
+    private List<Batch> mFallback;
+
+    private Future<WeatherProvider.WriteCounts> mWriter;
+    private volatile boolean mAborted;
+    private int mProduced;
+    private int mHourlyWritten;
+    private int mQueueFullCount;
+    private volatile int mQueueEmptyCount;
+
+    /**
+     * @param provider the local provider to stream into, or null to fall back to plain
+     *                 {@link ContentResolver} calls once the stream is finished.
+     * @param stats where the writer's time is recorded
+     */
+    ForecastPipeline(ContentResolver resolver, WeatherProvider provider, SyncStats stats) {
+        mResolver = resolver;
+        mProvider = provider;
+        mStats = stats;
+    }
+
+    SyncStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Queues a location's forecast for the writer, blocking while the queue is full.
+     *
+     * @param location the location table values, including its location setting
+     * @param days the weather rows for that location, without a location key
+     */
+    void put(ContentValues location, List<ContentValues> days) throws IOException {
+        put(new Batch(
+                location.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING),
+                location, days, Collections.<ContentValues>emptyList()));
+    }
+
+    /**
+     * Queues a location's 3 hourly forecast for the writer, blocking while the queue is full.
+     * The location must already be stored, or queued ahead of this with {@link #put}.
+     *
+     * @param hours the hourly rows for that location, without a location key
+     */
+    void putHourly(String locationSetting, List<ContentValues> hours) throws IOException {
+        put(new Batch(locationSetting, null, Collections.<ContentValues>emptyList(), hours));
+    }
+
+    private synchronized void put(Batch batch) throws IOException {
+        mProduced += batch.days.size() + batch.hours.size();
+        if (mProvider == null) {
+            if (mFallback == null) {
+                mFallback = new ArrayList<Batch>();
+            }
+            mFallback.add(batch);
+            return;
+        }
+        if (mWriter == null) {
+            mWriter = sWriterExecutor.submit(new Writer());
+        }
+        enqueue(batch);
+    }
+
+    /**
+     * Signals the end of the stream, waits for the writer to commit, and returns the number
+     * of weather rows inserted or changed.
+     */
+    synchronized int finish() throws IOException {
+        if (mProvider == null) {
+            return finishWithoutStreaming();
+        }
+        if (mWriter == null) {
+            return 0;
+        }
+        enqueue(END_OF_STREAM);
+        try {
+            WeatherProvider.WriteCounts counts = mWriter.get();
+            mHourlyWritten = counts.hourly;
+            Log.d(LOG_TAG, "Wrote " + counts.weather + " weather and " + counts.hourly
+                    + " hourly of " + mProduced + " rows, pruned " + counts.hourlyPruned
+                    + " hours; queue full " + mQueueFullCount + " times, empty "
+                    + mQueueEmptyCount + " times");
+            return counts.weather;
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException("Interrupted while waiting for forecast writer");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Forecast writer failed", cause);
+        }
+    }
+
+    /**
+     * Abandons the stream.  Batches the writer has not committed yet are dropped; those it has
+     * stay, each a whole location's forecast.
+     */
+    void abort() {
+        mAborted = true;
+        if (mWriter != null) {
+            mQueue.clear();
+            mQueue.offer(END_OF_STREAM);
+        }
+    }
+
+    /** Number of hourly rows inserted or changed, once {@link #finish} has returned. */
+    int getHourlyWrittenCount() {
+        return mHourlyWritten;
+    }
+
+    private void enqueue(Batch batch) throws InterruptedIOException {
+        if (mQueue.offer(batch)) {
+            return;
+        }
+        if (batch != END_OF_STREAM) {
+            mQueueFullCount++;
+        }
+        try {
+            while (!mQueue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (mWriter.isDone()) {
+                    // The writer gave up; finish() will report why.
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException("Interrupted while queueing forecast rows");
+        }
+    }
+
+    private int finishWithoutStreaming() {
+        if (mFallback == null || mAborted) {
+            return 0;
+        }
+        List<ContentValues> days = new ArrayList<ContentValues>(mProduced);
+        List<ContentValues> hours = new ArrayList<ContentValues>();
+        for (Batch batch : mFallback) {
+            long start = System.nanoTime();
+            long locationId = findOrAddLocation(batch);
+            mStats.addTime(SyncStats.STAGE_ADD_LOCATION, System.nanoTime() - start);
+            if (locationId == -1) {
+                continue;
+            }
+            for (ContentValues day : batch.days) {
+                day.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                days.add(day);
+            }
+            for (ContentValues hour : batch.hours) {
+                hour.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+                hours.add(hour);
+            }
+        }
+        mFallback = null;
+        long start = System.nanoTime();
+        int inserted = mResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                days.toArray(new ContentValues[days.size()]));
+        if (!hours.isEmpty()) {
+            // A separate transaction, as there is no way to share one across the resolver
+            mHourlyWritten = mResolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                    hours.toArray(new ContentValues[hours.size()]));
+        }
+        mStats.addTime(SyncStats.STAGE_BULK_INSERT, System.nanoTime() - start);
+        return inserted;
+    }
+
+    /**
+     * Returns the row ID of the batch's location, adding or refreshing its row if the batch
+     * carries one.  Either way it is a single call to the provider at most: the row goes
+     * through the location upsert, and a location that is only looked up is usually cached.
+     * Only the fallback adds rows this way; the writer hands them to
+     * {@link WeatherProvider#bulkWrite} instead.
+     *
+     * @return the row ID, or -1 if the batch has no location row and its location isn't stored
+     */
+    private long findOrAddLocation(Batch batch) {
+        if (batch.location != null) {
+            return ContentUris.parseId(
+                    insert(WeatherContract.LocationEntry.buildLocationUpsertUri(), batch.location));
+        }
+        long locationId = LocationIdCache.get(batch.locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        Cursor locationCursor = query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{batch.locationSetting});
+        try {
+            return locationCursor.moveToFirst() ? locationCursor.getLong(0) : -1;
+        } finally {
+            locationCursor.close();
+        }
+    }
+
+    // The writer looks locations up inside its open transaction, so it must go straight to the
+    // provider rather than through the resolver.
+
+    private Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        return mProvider != null
+                ? mProvider.query(uri, projection, selection, selectionArgs, null)
+                : mResolver.query(uri, projection, selection, selectionArgs, null);
+    }
+
+    private Uri insert(Uri uri, ContentValues values) {
+        return mProvider != null ? mProvider.insert(uri, values) : mResolver.insert(uri, values);
+    }
+
+    private class Writer implements Callable<WeatherProvider.WriteCounts> {
+
+        @Override
+        public WeatherProvider.WriteCounts call() {
+            WeatherProvider.WriteCounts total = new WeatherProvider.WriteCounts();
+            try {
+                Batch batch;
+                while ((batch = take()) != END_OF_STREAM) {
+                    BatchRows rows = new BatchRows(batch);
+                    long start = System.nanoTime();
+                    WeatherProvider.WriteCounts counts;
+                    try {
+                        counts = mProvider.bulkWrite(rows, false);
+                    } finally {
+                        mStats.addTime(SyncStats.STAGE_BULK_INSERT,
+                                System.nanoTime() - start - rows.mLocationNanos);
+                    }
+                    total.location += counts.location;
+                    total.weather += counts.weather;
+                    total.hourly += counts.hourly;
+                    total.hourlyPruned += counts.hourlyPruned;
+                }
+            } finally {
+                // Batches committed before an abort or a failure stay, so they are announced too
+                mProvider.notifyChange(total);
+            }
+            return total;
+        }
+
+        private Batch take() {
+            Batch batch = mQueue.poll();
+            if (batch == null) {
+                mQueueEmptyCount++;
+                try {
+                    batch = mQueue.take();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Forecast writer interrupted", e);
+                }
+            }
+            if (mAborted) {
+                throw new IllegalStateException("Forecast stream aborted");
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * A batch's rows, as {@link WeatherProvider#bulkWrite} takes them.  A location row goes
+     * first, through the provider's upsert, so it commits or rolls back with its rows and its
+     * change is announced with theirs.  A batch without one has its location looked up once the
+     * transaction is open.
+     */
+    private class BatchRows implements Iterator<Pair<Uri, ContentValues>> {
+        private final Batch mBatch;
+        private boolean mLocationSent;
+        private Iterator<ContentValues> mDays;
+        private Iterator<ContentValues> mHours;
+        private long mLocationId;
+        // Time inside the provider's transaction spent on the location row
+        private long mLocationNanos;
+        // When the location row was handed to the provider
+        private long mUpsertStart;
+
+        BatchRows(Batch batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mBatch.location != null && !mLocationSent) {
+                return true;
+            }
+            if (mDays == null) {
+                if (mBatch.location != null) {
+                    // The provider upserted it between next() and now
+                    mLocationId =
+                            mBatch.location.getAsLong(WeatherContract.LocationEntry._ID);
+                    mLocationNanos = System.nanoTime() - mUpsertStart;
+                } else {
+                    long start = System.nanoTime();
+                    mLocationId = findOrAddLocation(mBatch);
+                    mLocationNanos = System.nanoTime() - start;
+                }
+                mStats.addTime(SyncStats.STAGE_ADD_LOCATION, mLocationNanos);
+                if (mLocationId == -1) {
+                    Log.w(LOG_TAG, "Dropping hours for unknown location "
+                            + mBatch.locationSetting);
+                    mDays = Collections.<ContentValues>emptyList().iterator();
+                    mHours = mDays;
+                } else {
+                    mDays = mBatch.days.iterator();
+                    mHours = mBatch.hours.iterator();
+                }
+            }
+            return mDays.hasNext() || mHours.hasNext();
+        }
+
+        @Override
+        public Pair<Uri, ContentValues> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!mLocationSent && mBatch.location != null) {
+                mLocationSent = true;
+                mUpsertStart = System.nanoTime();
+                return Pair.create(WeatherContract.LocationEntry.buildLocationUpsertUri(),
+                        mBatch.location);
+            }
+            if (mDays.hasNext()) {
+                ContentValues day = mDays.next();
+                day.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+                return Pair.create(WeatherContract.WeatherEntry.CONTENT_URI, day);
+            }
+            ContentValues hour = mHours.next();
+            hour.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, mLocationId);
+            return Pair.create(WeatherContract.HourlyEntry.CONTENT_URI, hour);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OpenWeatherMap 3 hourly forecast response.
+ *
+ * Works like {@link ForecastParser}: the body is pulled token by token off the stream and each
+ * period is handed to a {@link Listener} in a single reused {@link Hour} holder.  The city, which
+ * this endpoint sends after the list, is skipped; the daily forecast already stores it.
+ *
+ * The current conditions endpoint answers with a single period of the same shape as the top
+ * level object, which {@link #parseCurrent} reads.
+ */
+class HourlyForecastParser {
+
+    // Each period's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+    private static final String OWM_TIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // The fields every period has to carry, as the JSONObject path requires them.  The Hour
+    // holder is reused, so a period that left one out would otherwise get the previous one's.
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_TEMPERATURE = 1 << 1;
+    private static final int FIELD_PRESSURE = 1 << 2;
+    private static final int FIELD_HUMIDITY = 1 << 3;
+    private static final int FIELD_WINDSPEED = 1 << 4;
+    private static final int FIELD_WIND_DIRECTION = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int FIELDS_REQUIRED = (1 << 8) - 1;
+
+    interface Listener {
+        /**
+         * @param hour the decoded period.  The instance is reused for the next period, so copy
+         *             out anything that needs to outlive this call.
+         */
+        void onHour(Hour hour) throws IOException;
+    }
+
+    /**
+     * The fields of a single forecast period that Sunshine keeps, as primitives.
+     */
+    static final class Hour {
+        // Start of the period, in seconds since the epoch as OWM sends it
+        long time;
+        double temperature;
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+        String description;
+        int weatherId;
+    }
+
+    private final Listener mListener;
+    private final Hour mHour = new Hour();
+    // Which of the required fields the period being read has had so far
+    private int mFieldsSeen;
+
+    HourlyForecastParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parses the response body, reporting each period to the listener.
+     *
+     * @param in the raw response stream.  It is not closed by this method.
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     *         response did not carry one.
+     * @throws JSONException if the body is not a well-formed forecast
+     */
+    int parse(InputStream in) throws IOException, JSONException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStreaming(reader);
+        } else {
+            return parseTree(reader);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int parseStreaming(Reader in) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        int code = HttpURLConnection.HTTP_OK;
+        boolean listSeen = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // OWM sends this as a string in some responses and a number in others
+                    code = Integer.parseInt(reader.nextString());
+                } else if (OWM_LIST.equals(name)) {
+                    readList(reader);
+                    listSeen = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            JSONException jsonException = new JSONException(e.getMessage());
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+        if (code == HttpURLConnection.HTTP_OK && !listSeen) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return code;
+    }
+
+    /**
+     * Parses a current conditions response, reporting it to the listener as a single period.
+     *
+     * @param in the raw response stream.  It is not closed by this method.
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     *         response did not carry one.
+     * @throws JSONException if the body is not well-formed current conditions
+     */
+    int parseCurrent(InputStream in) throws IOException, JSONException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseCurrentStreaming(reader);
+        } else {
+            return parseCurrentTree(reader);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int parseCurrentStreaming(Reader in) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        int code = HttpURLConnection.HTTP_OK;
+        mFieldsSeen = 0;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    code = Integer.parseInt(reader.nextString());
+                } else if (!readHourField(reader, name, mHour)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            JSONException jsonException = new JSONException(e.getMessage());
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+        if (code == HttpURLConnection.HTTP_OK) {
+            checkFields();
+            mListener.onHour(mHour);
+        }
+        return code;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readList(JsonReader reader) throws IOException, JSONException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Hour hour = mHour;
+            mFieldsSeen = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!readHourField(reader, reader.nextName(), hour)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            checkFields();
+            mListener.onHour(hour);
+        }
+        reader.endArray();
+    }
+
+    private void checkFields() throws JSONException {
+        if (mFieldsSeen != FIELDS_REQUIRED) {
+            throw new JSONException("Period at " + mHour.time + " is missing fields");
+        }
+    }
+
+    /**
+     * Reads the value of {@code name} into {@code hour} if it is one of the fields kept.
+     *
+     * @return false if the value was left unread
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private boolean readHourField(JsonReader reader, String name, Hour hour) throws IOException {
+        if (OWM_TIME.equals(name)) {
+            hour.time = reader.nextLong();
+            mFieldsSeen |= FIELD_TIME;
+        } else if (OWM_MAIN.equals(name)) {
+            readMain(reader, hour);
+        } else if (OWM_WIND.equals(name)) {
+            readWind(reader, hour);
+        } else if (OWM_WEATHER.equals(name)) {
+            readWeather(reader, hour);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readMain(JsonReader reader, Hour hour) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TEMPERATURE.equals(name)) {
+                hour.temperature = reader.nextDouble();
+                mFieldsSeen |= FIELD_TEMPERATURE;
+            } else if (OWM_PRESSURE.equals(name)) {
+                hour.pressure = reader.nextDouble();
+                mFieldsSeen |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                hour.humidity = reader.nextInt();
+                mFieldsSeen |= FIELD_HUMIDITY;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readWind(JsonReader reader, Hour hour) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_WINDSPEED.equals(name)) {
+                hour.windSpeed = reader.nextDouble();
+                mFieldsSeen |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                hour.windDirection = reader.nextDouble();
+                mFieldsSeen |= FIELD_WIND_DIRECTION;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readWeather(JsonReader reader, Hour hour) throws IOException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    hour.description = reader.nextString();
+                    mFieldsSeen |= FIELD_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    hour.weatherId = reader.nextInt();
+                    mFieldsSeen |= FIELD_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * JsonReader is not available before Honeycomb, so older devices still build the tree.
+     */
+    private int parseTree(Reader in) throws IOException, JSONException {
+        JSONObject forecastJson = new JSONObject(readFully(in));
+
+        int code = HttpURLConnection.HTTP_OK;
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (code != HttpURLConnection.HTTP_OK) {
+                return code;
+            }
+        }
+
+        JSONArray hourArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < hourArray.length(); i++) {
+            readHourTree(hourArray.getJSONObject(i), mHour);
+            mListener.onHour(mHour);
+        }
+        return code;
+    }
+
+    private int parseCurrentTree(Reader in) throws IOException, JSONException {
+        JSONObject currentJson = new JSONObject(readFully(in));
+
+        int code = HttpURLConnection.HTTP_OK;
+        if (currentJson.has(OWM_MESSAGE_CODE)) {
+            code = currentJson.getInt(OWM_MESSAGE_CODE);
+            if (code != HttpURLConnection.HTTP_OK) {
+                return code;
+            }
+        }
+        readHourTree(currentJson, mHour);
+        mListener.onHour(mHour);
+        return code;
+    }
+
+    private static void readHourTree(JSONObject hourForecast, Hour hour) throws JSONException {
+        JSONObject mainObject = hourForecast.getJSONObject(OWM_MAIN);
+        JSONObject windObject = hourForecast.getJSONObject(OWM_WIND);
+        JSONObject weatherObject = hourForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+        hour.time = hourForecast.getLong(OWM_TIME);
+        hour.temperature = mainObject.getDouble(OWM_TEMPERATURE);
+        hour.pressure = mainObject.getDouble(OWM_PRESSURE);
+        hour.humidity = mainObject.getInt(OWM_HUMIDITY);
+        hour.windSpeed = windObject.getDouble(OWM_WINDSPEED);
+        hour.windDirection = windObject.getDouble(OWM_WIND_DIRECTION);
+        hour.description = weatherObject.getString(OWM_DESCRIPTION);
+        hour.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    }
+
+    private static String readFully(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,803 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches and parses the forecast for one location.  Several of these run at once during a
+ * sync; each one hands its parsed forecast to the shared {@link ForecastPipeline} and records
+ * its own status and timing, so a slow or failing location does not affect the others.
+ *
+ * Nothing in here touches the database: the location's stored validators are read before the
+ * sync starts and written back by the pipeline's writer.
+ *
+ * Locations are fetched in {@link #inBatches batches}: the members of a batch are requested
+ * one after another over the same kept-alive connection, so a user with many saved cities
+ * pays for a few TCP handshakes rather than one per city.
+ *
+ * Every response is fingerprinted as it is read.  If it matches the fingerprint of the forecast
+ * already stored for the location it is dropped rather than handed to the pipeline, so a
+ * forecast that hasn't changed costs no database work and wakes no widgets or notifications.
+ *
+ * Once the server has answered for a location's daily forecast, its 3 hourly forecast is
+ * requested over the same connection and handed to the pipeline as well.  The hours are not
+ * cached or journaled: they go stale within hours anyway, and the next sync replaces them.
+ *
+ * Requests go through the sync's {@link FetchHedger}, which picks the endpoint and, when the
+ * sync asks for it, hedges a slow one with a mirror.
+ */
+class LocationSync implements Callable<Void> {
+    private static final String LOG_TAG = LocationSync.class.getSimpleName();
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    static final int NUM_DAYS = ForecastHorizon.FULL_DAYS;
+
+    static final String OWM_BASE_URL = "http://api.openweathermap.org/data/2.5/";
+
+    // OWM's limit on how many cities a client should ask about in one go
+    static final int MAX_BATCH_SIZE = 20;
+
+    // How often responses turned out to match what was already stored, since the process started
+    private static final AtomicInteger sFingerprintChecks = new AtomicInteger();
+    private static final AtomicInteger sFingerprintHits = new AtomicInteger();
+
+    private final String mLocationSetting;
+    private final long mCityId;
+    private final String mEtag;
+    private final String mLastModified;
+    private final long mFingerprint;
+    // Depends on the number of days requested, so it is rebuilt by limitTo()
+    private String mCacheKey;
+
+    private ForecastCache mCache;
+    private ForecastPipeline mPipeline;
+    private FetchCircuitBreaker mBreaker;
+    private ForecastJournal mJournal;
+    private FetchHedger mHedger;
+    private boolean mHedge;
+    private int mRequestDays = NUM_DAYS;
+    private boolean mFetchHours = true;
+    // Set while a network response is being read, so it can be journaled before it is queued
+    private ForecastJournal.Recorder mRecorder;
+    private long mJournalSeq;
+    // What the cache is told once the pipeline has written this location's forecast
+    private ForecastCache.Entry mCacheApplied;
+    private ForecastCache.PendingEntry mCachePending;
+
+    @SunshineSyncAdapter.LocationStatus
+    private int mStatus = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+    private long mBytes;
+    private int mDays;
+    private int mHours;
+    private boolean mUnchanged;
+    private boolean mFetched;
+    private boolean mChanged;
+    // Time spent handing the forecast to the pipeline, kept out of the parse time
+    private long mQueueNanos;
+
+    /**
+     * @param cityId OWM's id for the location's city, or 0 if it isn't known yet
+     * @param etag the ETag stored with the location's last forecast, or null
+     * @param lastModified the Last-Modified value stored with it, or null
+     * @param fingerprint the fingerprint stored with it, or 0 if there is none
+     */
+    LocationSync(String locationSetting, long cityId, String etag, String lastModified,
+                 long fingerprint) {
+        mLocationSetting = locationSetting;
+        mCityId = cityId;
+        mEtag = etag;
+        mLastModified = lastModified;
+        mFingerprint = fingerprint;
+        mCacheKey = buildCacheKey();
+    }
+
+    /**
+     * Every endpoint serves the same forecast, so it is cached under OWM's URL whichever one it
+     * came from.  The URL includes the number of days, so a short forecast is never served in
+     * place of a long one, or the other way round.
+     */
+    private String buildCacheKey() {
+        return buildForecastUri(OWM_BASE_URL, mLocationSetting, mCityId, mRequestDays)
+                .toString();
+    }
+
+    String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    @SunshineSyncAdapter.LocationStatus
+    int getStatus() {
+        return mStatus;
+    }
+
+    /** Number of days of forecast this location asks the server for. */
+    int getRequestDays() {
+        return mRequestDays;
+    }
+
+    /** Number of response body bytes downloaded for this location during this sync. */
+    long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns true if the forecast can be requested conditionally, with the validators of the
+     * one already stored.
+     */
+    boolean hasValidators() {
+        return mEtag != null || mLastModified != null;
+    }
+
+    /**
+     * Returns true if the forecast fetched for this location matched the one already stored,
+     * and so was not written.
+     */
+    boolean isUnchanged() {
+        return mUnchanged;
+    }
+
+    /**
+     * Returns true if the server answered for this location during this sync, either with a
+     * forecast or with 304 Not Modified.
+     */
+    boolean wasFetched() {
+        return mFetched;
+    }
+
+    /**
+     * Returns true if the server sent a forecast that differed from the one already stored.
+     */
+    boolean hasChanged() {
+        return mChanged;
+    }
+
+    /**
+     * Returns the journal entry of the forecast this location queued, or 0 if it didn't
+     * journal one.
+     */
+    long getJournalSeq() {
+        return mJournalSeq;
+    }
+
+    /**
+     * Queues the cached forecast for this location, if the cache has one worth showing.
+     *
+     * @return true if the cached forecast is fresh, so there is no need to go to the network
+     */
+    boolean applyCache(ForecastCache cache, ForecastPipeline pipeline, long now) {
+        ForecastCache.Entry cached = cache.get(mCacheKey, now);
+        if (cached == null) {
+            return false;
+        }
+        if (cache.isApplied(cached)) {
+            // Already in the database; all that's left is to decide about the network
+            mStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            return cached.isFresh(now);
+        }
+        InputStream cachedStream = null;
+        long parseStart = System.nanoTime();
+        try {
+            cachedStream = cached.openBody();
+            // The body's first day is the day it was stored (or last confirmed by a 304), which
+            // for a stale entry read after midnight is yesterday
+            if (readForecast(cachedStream, pipeline, null, cached.storedAt)) {
+                mCacheApplied = cached;
+                return cached.isFresh(now);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Discarding unusable cached forecast for " + mLocationSetting, e);
+        } finally {
+            closeQuietly(cachedStream);
+            pipeline.getStats().addTime(SyncStats.STAGE_PARSE,
+                    System.nanoTime() - parseStart - mQueueNanos);
+        }
+        cache.remove(mCacheKey);
+        return false;
+    }
+
+    /**
+     * Tells the cache that the forecast this location queued, from the cache or from the
+     * network, is now in the database.  Call it only after the pipeline has finished.
+     */
+    void publishCache(ForecastCache cache) {
+        if (mCacheApplied != null) {
+            cache.markApplied(mCacheApplied);
+            mCacheApplied = null;
+        }
+        if (mCachePending != null) {
+            cache.publish(mCachePending);
+            mCachePending = null;
+        }
+    }
+
+    /**
+     * Throws away whatever {@link #publishCache} hasn't taken, because the pipeline failed.
+     */
+    void discardCache(ForecastCache cache) {
+        mCacheApplied = null;
+        if (mCachePending != null) {
+            cache.discard(mCachePending);
+            mCachePending = null;
+        }
+    }
+
+    /**
+     * Queues a forecast replayed from the journal.
+     *
+     * @param fetchedAt when the forecast was downloaded, which its days are counted from
+     * @return true if it was a usable forecast
+     */
+    boolean applyJournal(InputStream body, long fetchedAt, ForecastPipeline pipeline) {
+        try {
+            return readForecast(body, pipeline, null, fetchedAt);
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Discarding unusable journaled forecast for " + mLocationSetting, e);
+            return false;
+        }
+    }
+
+    /**
+     * Splits locations into one batch per worker, or more if that is needed to keep each batch
+     * within {@link #MAX_BATCH_SIZE}, as evenly as possible.  Each batch fetches its members in
+     * turn, reusing one connection.  The locations must already have been prepared with
+     * {@link #forNetwork}.
+     */
+    static List<Callable<Void>> inBatches(List<LocationSync> locations, int workers) {
+        int batchCount = Math.max(workers,
+                (locations.size() + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE);
+        batchCount = Math.min(batchCount, locations.size());
+        List<Callable<Void>> batches = new ArrayList<Callable<Void>>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            final List<LocationSync> batch = new ArrayList<LocationSync>();
+            for (int j = i; j < locations.size(); j += batchCount) {
+                batch.add(locations.get(j));
+            }
+            batches.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (LocationSync location : batch) {
+                        location.call();
+                    }
+                    return null;
+                }
+            });
+        }
+        return batches;
+    }
+
+    /**
+     * Prepares this location for a network fetch through {@link #call}.  The fetch is skipped
+     * if {@code breaker} won't allow it, and its outcome is reported back to the breaker.  A
+     * fetched forecast is written to {@code journal} before it is queued.
+     *
+     * @param hedge true to have {@code hedger} hedge requests the primary endpoint is slow with
+     */
+    LocationSync forNetwork(ForecastCache cache, ForecastPipeline pipeline,
+                            FetchCircuitBreaker breaker, ForecastJournal journal,
+                            FetchHedger hedger, boolean hedge) {
+        mCache = cache;
+        mPipeline = pipeline;
+        mBreaker = breaker;
+        mJournal = journal;
+        mHedger = hedger;
+        mHedge = hedge;
+        return this;
+    }
+
+    /**
+     * Limits what {@link #applyCache} and {@link #call} fetch: only the next {@code days} days,
+     * which are merged over the days already stored, and the 3 hourly forecast only if
+     * {@code fetchHours} is set.
+     */
+    LocationSync limitTo(int days, boolean fetchHours) {
+        mRequestDays = Math.min(days, NUM_DAYS);
+        mFetchHours = fetchHours;
+        mCacheKey = buildCacheKey();
+        return this;
+    }
+
+    @Override
+    public Void call() {
+        fetchForecast();
+        if (mFetched && mFetchHours) {
+            fetchHourlyForecast();
+        }
+        return null;
+    }
+
+    private void fetchForecast() {
+        if (!mBreaker.allowRequest()) {
+            // The server has been failing; leave it alone until the breaker lets a probe through
+            Log.d(LOG_TAG, "Circuit open, not fetching " + mLocationSetting);
+            mStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+            return;
+        }
+        boolean reported = false;
+        long start = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+        SyncStats stats = mPipeline.getStats();
+        TimedInputStream timedStream = null;
+        long parseStart = 0;
+
+        // These two need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+
+        try {
+            // Send back the validators of the last forecast stored for this location, so the
+            // server can answer with 304 Not Modified if it has nothing new.
+            urlConnection = openConnection(false, mEtag, mLastModified, stats);
+            int responseCode = urlConnection.getResponseCode();
+            mBreaker.recordSuccess();
+            reported = true;
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // What we stored last time is still current, so there is nothing to parse
+                // or write.
+                Log.d(LOG_TAG, "Forecast not modified for " + mLocationSetting);
+                mCache.freshen(mCacheKey, urlConnection.getHeaderField("Cache-Control"), now);
+                mStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                mFetched = true;
+                urlConnection = null;
+                return;
+            }
+
+            inputStream = urlConnection.getInputStream();
+            if (inputStream == null) {
+                // Nothing to do.
+                return;
+            }
+            parseStart = System.nanoTime();
+            timedStream = new TimedInputStream(inputStream);
+            // Keep a copy of the body for the cache as it is read.  The journal wraps the
+            // cache's stream, so it is the cache's own stream that gets completed; the copy
+            // is published once the pipeline has written the forecast.
+            InputStream cachingStream = mCache.put(mCacheKey, timedStream,
+                    urlConnection.getHeaderField("Cache-Control"), now);
+            mRecorder = mJournal.record(cachingStream);
+            inputStream = mRecorder;
+
+            if (readForecast(inputStream, mPipeline, urlConnection, now)) {
+                mCachePending = mCache.complete(cachingStream);
+                mFetched = true;
+            }
+            // Read to the end so the connection can go back to the pool for the next location
+            drain(inputStream);
+            urlConnection = null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            if (!reported) {
+                mBreaker.recordFailure();
+                reported = true;
+            }
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            mStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            mStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (!reported) {
+                mBreaker.recordCancelled();
+            }
+            mRecorder = null;
+            if (timedStream != null) {
+                stats.addTime(SyncStats.STAGE_DOWNLOAD, timedStream.getReadNanos());
+                stats.addTime(SyncStats.STAGE_PARSE, System.nanoTime() - parseStart
+                        - timedStream.getReadNanos() - mQueueNanos);
+                stats.addBytes(timedStream.getByteCount());
+                mBytes += timedStream.getByteCount();
+            }
+            // Only a connection that failed part way is thrown away; a cleanly read one is
+            // kept alive for reuse.
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            closeQuietly(inputStream);
+            long elapsedMillis = SystemClock.elapsedRealtime() - start;
+            stats.addLocationTime(mLocationSetting, elapsedMillis);
+            Log.d(LOG_TAG, "Synced " + mLocationSetting + " in " + elapsedMillis + " ms: "
+                    + mDays + " days, status " + mStatus + (mUnchanged ? ", unchanged" : ""));
+        }
+    }
+
+    /**
+     * Fetches the 3 hourly forecast and hands it to the pipeline.  A failure here is reported
+     * to the breaker but leaves the location's status alone, as the daily forecast it reflects
+     * is already on its way to the database.
+     */
+    private void fetchHourlyForecast() {
+        if (!mBreaker.allowRequest()) {
+            return;
+        }
+        boolean reported = false;
+        SyncStats stats = mPipeline.getStats();
+        TimedInputStream timedStream = null;
+        long parseStart = 0;
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+
+        try {
+            urlConnection = openConnection(true, null, null, stats);
+            mBreaker.recordSuccess();
+            reported = true;
+
+            inputStream = urlConnection.getInputStream();
+            if (inputStream == null) {
+                return;
+            }
+            parseStart = System.nanoTime();
+            timedStream = new TimedInputStream(inputStream);
+            inputStream = timedStream;
+            readHourlyForecast(inputStream);
+            drain(inputStream);
+            urlConnection = null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error fetching hours", e);
+            if (!reported) {
+                mBreaker.recordFailure();
+                reported = true;
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        } finally {
+            if (!reported) {
+                mBreaker.recordCancelled();
+            }
+            if (timedStream != null) {
+                stats.addTime(SyncStats.STAGE_DOWNLOAD, timedStream.getReadNanos());
+                stats.addTime(SyncStats.STAGE_PARSE, System.nanoTime() - parseStart
+                        - timedStream.getReadNanos() - mQueueNanos);
+                stats.addBytes(timedStream.getByteCount());
+                mBytes += timedStream.getByteCount();
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            closeQuietly(inputStream);
+            Log.d(LOG_TAG, "Fetched " + mHours + " hours for " + mLocationSetting);
+        }
+    }
+
+    /**
+     * Requests this location's daily or 3 hourly forecast through the hedger, and waits for
+     * the response headers of whichever endpoint answers.
+     *
+     * @param etag sent as If-None-Match, or null
+     * @param lastModified sent as If-Modified-Since, or null
+     * @throws IOException if no endpoint answered, or all of them with a 5xx
+     */
+    private HttpURLConnection openConnection(final boolean hourly, final String etag,
+                                             final String lastModified, final SyncStats stats)
+            throws IOException {
+        return mHedger.execute(new FetchHedger.Request<HttpURLConnection>() {
+            @Override
+            public FetchHedger.Attempt<HttpURLConnection> newAttempt(String endpoint)
+                    throws IOException {
+                Uri uri = hourly
+                        ? buildHourlyForecastUri(endpoint, mLocationSetting, mCityId)
+                        : buildForecastUri(endpoint, mLocationSetting, mCityId, mRequestDays);
+                // Create the request to OpenWeatherMap; nothing is sent until it is called
+                final HttpURLConnection urlConnection =
+                        (HttpURLConnection) new URL(uri.toString()).openConnection();
+                return new FetchHedger.Attempt<HttpURLConnection>() {
+                    @Override
+                    public HttpURLConnection call() throws IOException {
+                        int responseCode =
+                                openConnection(urlConnection, etag, lastModified, stats);
+                        if (FetchCircuitBreaker.isServerError(responseCode)) {
+                            throw new IOException("Server error " + responseCode + " for "
+                                    + (hourly ? "hours of " : "") + mLocationSetting);
+                        }
+                        return urlConnection;
+                    }
+
+                    @Override
+                    public void cancel() {
+                        // Also unblocks a call still waiting on the response
+                        urlConnection.disconnect();
+                    }
+                };
+            }
+        }, mHedge);
+    }
+
+    /**
+     * Sends a GET request and waits for the response headers.  Connections are kept alive
+     * between requests, so this reuses the worker's previous connection when it can.
+     *
+     * @return the response code
+     */
+    private static int openConnection(HttpURLConnection urlConnection, String etag,
+                                      String lastModified, SyncStats stats) throws IOException {
+        urlConnection.setRequestMethod("GET");
+        if (etag != null) {
+            urlConnection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+        long stageStart = System.nanoTime();
+        urlConnection.connect();
+        stats.addTime(SyncStats.STAGE_CONNECT, System.nanoTime() - stageStart);
+
+        stageStart = System.nanoTime();
+        int responseCode = urlConnection.getResponseCode();
+        stats.addTime(SyncStats.STAGE_FIRST_BYTE, System.nanoTime() - stageStart);
+        return responseCode;
+    }
+
+    /**
+     * Parses a forecast and, if the server didn't report an error, hands it to the pipeline.
+     * The body is decoded by {@link ForecastParser} as it is read, so neither the raw JSON nor
+     * a JSONObject tree is ever held in memory.
+     *
+     * The body is fingerprinted along the way.  If the fingerprint matches the stored one the
+     * forecast is not queued, as everything in it is already in the database.
+     *
+     * @param response the connection the forecast came from, whose validators are stored with
+     *                 it; null for a cached forecast
+     * @param fetchedAt when the forecast was downloaded.  Its first day is the day this falls
+     *                  on, which for a cached or journaled forecast may not be today.
+     * @return true if the forecast was queued, or didn't need to be
+     */
+    private boolean readForecast(InputStream forecastStream, ForecastPipeline pipeline,
+                                 HttpURLConnection response, long fetchedAt)
+            throws IOException, JSONException {
+        mQueueNanos = 0;
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // day it was fetched on, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.set(fetchedAt);
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        final int julianStartDay = Time.getJulianDay(fetchedAt, dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        final Time utcTime = new Time();
+
+        final ContentValues locationValues = new ContentValues();
+        final List<ContentValues> days = new ArrayList<ContentValues>(NUM_DAYS);
+
+        ForecastParser parser = new ForecastParser(new ForecastParser.Listener() {
+            @Override
+            public void onCity(long cityId, String cityName, double lat, double lon) {
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, mLocationSetting);
+                if (cityId != 0) {
+                    locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+                }
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            }
+
+            @Override
+            public void onDay(ForecastParser.Day day) {
+                // Cheating to convert this to UTC time, which is what we want anyhow
+                long dateTime = utcTime.setJulianDay(julianStartDay + day.index);
+
+                ContentValues weatherValues = new ContentValues();
+
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+                days.add(weatherValues);
+            }
+        });
+
+        // The start day is part of the fingerprint: the same body fetched on a different day
+        // lands on different dates.  So is the number of days asked for, so a forecast only
+        // ever matches one fetched for the same horizon.  A replayed journal entry doesn't
+        // know its horizon and is taken as the full one; at worst that costs one more write.
+        FingerprintInputStream fingerprintStream = new FingerprintInputStream(forecastStream,
+                ((long) julianStartDay << 8) | mRequestDays);
+
+        // do we have an error?
+        int errorCode = parser.parse(fingerprintStream);
+        switch (errorCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                mStatus = SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+                return false;
+            default:
+                mStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                return false;
+        }
+
+        // The parser stops at the end of the JSON; the fingerprint has to cover the whole body
+        drain(fingerprintStream);
+        long fingerprint = fingerprintStream.getFingerprint();
+        sFingerprintChecks.incrementAndGet();
+        if (fingerprint == mFingerprint) {
+            sFingerprintHits.incrementAndGet();
+            if (mRecorder != null) {
+                // Never written, so there is nothing to replay
+                mRecorder.discard();
+            }
+            mUnchanged = true;
+            mStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            return true;
+        }
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_FINGERPRINT, fingerprint);
+
+        if (response != null) {
+            mChanged = true;
+            // The whole body has been read; make sure it survives a crash before its rows go
+            // anywhere near the database.
+            mJournalSeq = mJournal.append(mLocationSetting, fetchedAt, mRecorder);
+
+            // Stored with the forecast, so they are only remembered once it is committed
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_ETAG,
+                    response.getHeaderField("ETag"));
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+                    response.getHeaderField("Last-Modified"));
+        }
+
+        long queueStart = System.nanoTime();
+        pipeline.put(locationValues, days);
+        mQueueNanos = System.nanoTime() - queueStart;
+        pipeline.getStats().addTime(SyncStats.STAGE_QUEUE, mQueueNanos);
+        pipeline.getStats().addRowsParsed(days.size());
+        mDays = days.size();
+        mStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+        return true;
+    }
+
+    /**
+     * Parses a 3 hourly forecast and hands it to the pipeline.  Errors reported by the server
+     * are logged and otherwise ignored.
+     */
+    private void readHourlyForecast(InputStream forecastStream)
+            throws IOException, JSONException {
+        mQueueNanos = 0;
+        final List<ContentValues> hours = new ArrayList<ContentValues>();
+
+        HourlyForecastParser parser = new HourlyForecastParser(new HourlyForecastParser.Listener() {
+            @Override
+            public void onHour(HourlyForecastParser.Hour hour) {
+                ContentValues hourValues = new ContentValues();
+
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_TIMESTAMP, hour.time * 1000);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP, hour.temperature);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, hour.humidity);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, hour.pressure);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, hour.windSpeed);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, hour.windDirection);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, hour.description);
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, hour.weatherId);
+
+                hours.add(hourValues);
+            }
+        });
+
+        int errorCode = parser.parse(forecastStream);
+        if (errorCode != HttpURLConnection.HTTP_OK) {
+            Log.w(LOG_TAG, "Server returned " + errorCode + " for hours of " + mLocationSetting);
+            return;
+        }
+        if (hours.isEmpty()) {
+            return;
+        }
+
+        long queueStart = System.nanoTime();
+        mPipeline.putHourly(mLocationSetting, hours);
+        mQueueNanos = System.nanoTime() - queueStart;
+        mPipeline.getStats().addTime(SyncStats.STAGE_QUEUE, mQueueNanos);
+        mPipeline.getStats().addRowsParsed(hours.size());
+        mHours = hours.size();
+    }
+
+    /**
+     * Builds the OpenWeatherMap daily forecast query for a location, by city id if it is known
+     * and by the location setting otherwise.
+     *
+     * @param baseUrl the endpoint, {@link #OWM_BASE_URL} or an equivalent ending in a slash
+     * @param days how many days to ask for, starting today
+     */
+    static Uri buildForecastUri(String baseUrl, String locationSetting, long cityId, int days) {
+        final String DAYS_PARAM = "cnt";
+        return buildUri(baseUrl + "forecast/daily?",
+                locationSetting, cityId)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(days))
+                .build();
+    }
+
+    /**
+     * Builds the OpenWeatherMap 3 hourly forecast query for a location, which covers the next
+     * five days.
+     */
+    static Uri buildHourlyForecastUri(String baseUrl, String locationSetting, long cityId) {
+        return buildUri(baseUrl + "forecast?",
+                locationSetting, cityId).build();
+    }
+
+    /**
+     * Builds the OpenWeatherMap current conditions query for a location.
+     */
+    static Uri buildCurrentConditionsUri(String baseUrl, String locationSetting, long cityId) {
+        return buildUri(baseUrl + "weather?",
+                locationSetting, cityId).build();
+    }
+
+    private static Uri.Builder buildUri(String baseUrl, String locationSetting, long cityId) {
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String QUERY_PARAM = "q";
+        final String ID_PARAM = "id";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        Uri.Builder builder = Uri.parse(baseUrl).buildUpon();
+        if (cityId != 0) {
+            builder.appendQueryParameter(ID_PARAM, Long.toString(cityId));
+        } else {
+            builder.appendQueryParameter(QUERY_PARAM, locationSetting);
+        }
+        return builder
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+
+    private static void drain(InputStream stream) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (stream.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+    }
+
+    /**
+     * Prints how often fetched forecasts matched the stored one, since the process started.
+     */
+    static void dump(PrintWriter writer) {
+        writer.println("Fingerprints: " + sFingerprintHits.get() + " of "
+                + sFingerprintChecks.get() + " responses matched the stored forecast");
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Weather notification artwork, scaled to the large icon size and kept in memory.
+ *
+ * An art pack only has a handful of images, one per bucket of weather conditions, so they are
+ * all fetched ahead of time whenever the art pack changes, and posting the notification is a
+ * lookup.  Images are keyed by art pack, bucket and size; the least recently used go once the
+ * cache is full.  The bundled artwork stands in for an image that couldn't be fetched, but
+ * isn't cached, so the next notification tries the art pack again.
+ */
+public class NotificationArtCache {
+    private static final String LOG_TAG = NotificationArtCache.class.getSimpleName();
+
+    // One condition from each art bucket
+    private static final int[] BUCKET_WEATHER_IDS = {200, 300, 500, 600, 701, 800, 801, 802};
+
+    // Room for a whole art pack at the large icon size of an xxhdpi screen, and part of the
+    // next one while it comes in
+    private static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final LruCache<String, Bitmap> sCache =
+            new LruCache<String, Bitmap>(MAX_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight();
+                }
+            };
+
+    // Fetches one image at a time, well away from the sync
+    private static final ExecutorService sWarmer = Executors.newSingleThreadExecutor();
+
+    /**
+     * Fetches the current art pack's images that aren't cached yet, in the background.  Does
+     * nothing while weather notifications are turned off.
+     */
+    public static void warm(Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (!areNotificationsEnabled(appContext)) {
+            return;
+        }
+        sWarmer.execute(new Runnable() {
+            @Override
+            public void run() {
+                String artPack = Utility.getArtPack(appContext);
+                int[] size = getLargeIconSize(appContext);
+                for (int weatherId : BUCKET_WEATHER_IDS) {
+                    String key = getKey(artPack, weatherId, size);
+                    if (sCache.get(key) == null) {
+                        Bitmap art = fetch(appContext, artPack, weatherId, size);
+                        if (art != null) {
+                            sCache.put(key, art);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the large icon for {@code weatherId} from the current art pack.  If it hasn't been
+     * cached, which should only happen before the first notification of the process, it is
+     * fetched on the calling thread and the rest of the pack is warmed.
+     */
+    static Bitmap getLargeIcon(Context context, int weatherId) {
+        String artPack = Utility.getArtPack(context);
+        int[] size = getLargeIconSize(context);
+        String key = getKey(artPack, weatherId, size);
+        Bitmap art = sCache.get(key);
+        if (art != null) {
+            return art;
+        }
+
+        art = fetch(context, artPack, weatherId, size);
+        if (art != null) {
+            sCache.put(key, art);
+            warm(context);
+            return art;
+        }
+        return BitmapFactory.decodeResource(context.getResources(),
+                Utility.getArtResourceForWeatherCondition(weatherId));
+    }
+
+    private static String getKey(String artPack, int weatherId, int[] size) {
+        return artPack + '|' + Utility.getArtBucketForWeatherCondition(weatherId)
+                + '|' + size[0] + 'x' + size[1];
+    }
+
+    /**
+     * @return the image, scaled to fit {@code size}, or null if it couldn't be fetched
+     */
+    private static Bitmap fetch(Context context, String artPack, int weatherId, int[] size) {
+        String artBucket = Utility.getArtBucketForWeatherCondition(weatherId);
+        if (artBucket == null) {
+            return null;
+        }
+        String artUrl = String.format(Locale.US, artPack, artBucket);
+        try {
+            return Glide.with(context)
+                    .load(artUrl)
+                    .asBitmap()
+                    .fitCenter()
+                    .into(size[0], size[1]).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Error retrieving " + artPack + " art from " + artUrl, e);
+            return null;
+        }
+    }
+
+    private static int[] getLargeIconSize(Context context) {
+        Resources resources = context.getResources();
+        // On Honeycomb and higher devices, we can retrieve the size of the large icon
+        // Prior to that, we use a fixed size
+        @SuppressLint("InlinedApi")
+        int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+        @SuppressLint("InlinedApi")
+        int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+        return new int[]{largeIconWidth, largeIconHeight};
+    }
+
+    private static boolean areNotificationsEnabled(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(context.getString(R.string.pref_enable_notifications_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+    }
+}
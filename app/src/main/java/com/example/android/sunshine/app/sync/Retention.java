@@ -0,0 +1,100 @@
+package com.example.android.sunshine.app.sync;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the database from growing without bound, out of the way of syncs and the UI.
+ *
+ * Once a day the app's {@link RetentionPolicy} is applied: past days of the daily forecast go
+ * once they're older than the history the user keeps, and 3 hourly periods and current
+ * conditions once they're a day old.  On Lollipop and up this is part of
+ * {@link SyncJobService}'s maintenance job, which runs while the device is idle and charging;
+ * before that, it runs from an inexact alarm that doesn't wake the device.
+ */
+class Retention {
+    private static final String LOG_TAG = Retention.class.getSimpleName();
+
+    private static final long MAX_AGE_MILLIS = AlarmManager.INTERVAL_DAY;
+
+    /**
+     * Schedules the daily pruning, unless it already is.
+     */
+    static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            SyncJobService.scheduleMaintenance(context);
+        } else {
+            Intent intent = new Intent(context, RetentionService.class);
+            // Re-setting the alarm on every launch would keep pushing it back
+            if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE)
+                    != null) {
+                return;
+            }
+            AlarmManager alarmManager =
+                    (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_DAY,
+                    AlarmManager.INTERVAL_DAY,
+                    PendingIntent.getService(context, 0, intent, 0));
+        }
+    }
+
+    static RetentionPolicy getPolicy(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int historyDays = Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_weather_history_days_key),
+                context.getString(R.string.pref_weather_history_days_default)));
+        return new RetentionPolicy(Clock.SYSTEM, TimeZone.getDefault())
+                .keepDays(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.WeatherEntry.COLUMN_DATE, historyDays)
+                .keepAge(WeatherContract.HourlyEntry.TABLE_NAME,
+                        WeatherContract.HourlyEntry.COLUMN_TIMESTAMP, MAX_AGE_MILLIS)
+                .keepAge(WeatherContract.CurrentEntry.TABLE_NAME,
+                        WeatherContract.CurrentEntry.COLUMN_FETCHED_AT, MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Applies the policy, through the provider, until done or {@code stopped} is set.  Blocks
+     * on the database, so it must not be called on the main thread.
+     */
+    static void prune(Context context, AtomicBoolean stopped) {
+        final ContentResolver resolver = context.getContentResolver();
+        final Map<String, Uri> tableUris = new HashMap<String, Uri>();
+        tableUris.put(WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherContract.WeatherEntry.CONTENT_URI);
+        tableUris.put(WeatherContract.HourlyEntry.TABLE_NAME,
+                WeatherContract.HourlyEntry.CONTENT_URI);
+        tableUris.put(WeatherContract.CurrentEntry.TABLE_NAME,
+                WeatherContract.CurrentEntry.CONTENT_URI);
+
+        long start = SystemClock.elapsedRealtime();
+        int deleted = getPolicy(context).prune(new RetentionPolicy.Pruner() {
+            @Override
+            public int deleteChunk(String table, String column, long cutoff, int limit) {
+                return resolver.delete(
+                        WeatherContract.buildLimitedUri(tableUris.get(table), limit),
+                        column + " < ?", new String[]{Long.toString(cutoff)});
+            }
+        }, stopped);
+        Log.d(LOG_TAG, "Pruned " + deleted + " rows in "
+                + (SystemClock.elapsedRealtime() - start) + " ms"
+                + (stopped.get() ? ", stopped before the end" : ""));
+    }
+}
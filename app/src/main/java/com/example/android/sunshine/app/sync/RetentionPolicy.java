@@ -0,0 +1,118 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * How long each table keeps its rows, and the pruning that enforces it.
+ *
+ * Each table has a rule keyed on one of its time columns: either a number of whole local days
+ * to keep before today, for rows stored by date, or a maximum age.  Rows older than that are
+ * deleted a {@link #CHUNK_SIZE chunk} at a time, through an index on the column, so no single
+ * write holds the database for long however much has built up.  Pruning checks between chunks
+ * whether it has been asked to stop, and simply carries on from where it was next time.
+ */
+class RetentionPolicy {
+
+    static final int CHUNK_SIZE = 200;
+
+    interface Pruner {
+        /**
+         * Deletes at most {@code limit} rows of {@code table} whose {@code column} is less than
+         * {@code cutoff}.
+         *
+         * @return how many rows were deleted
+         */
+        int deleteChunk(String table, String column, long cutoff, int limit);
+    }
+
+    static final class Rule {
+        final String table;
+        final String column;
+        // One of these is set
+        final int keepDays;
+        final long maxAgeMillis;
+
+        private Rule(String table, String column, int keepDays, long maxAgeMillis) {
+            this.table = table;
+            this.column = column;
+            this.keepDays = keepDays;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+    }
+
+    private final Clock mClock;
+    private final TimeZone mTimeZone;
+    private final List<Rule> mRules = new ArrayList<Rule>();
+
+    /**
+     * @param timeZone the zone whose midnights dated rows are stored at
+     */
+    RetentionPolicy(Clock clock, TimeZone timeZone) {
+        mClock = clock;
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Keeps today's rows and those of the {@code days} days before it.  Zero keeps nothing
+     * from before today.
+     */
+    RetentionPolicy keepDays(String table, String column, int days) {
+        mRules.add(new Rule(table, column, Math.max(days, 0), -1));
+        return this;
+    }
+
+    /**
+     * Keeps rows up to {@code maxAgeMillis} old.
+     */
+    RetentionPolicy keepAge(String table, String column, long maxAgeMillis) {
+        mRules.add(new Rule(table, column, -1, maxAgeMillis));
+        return this;
+    }
+
+    List<Rule> getRules() {
+        return mRules;
+    }
+
+    /**
+     * @return the oldest time the rule keeps; anything before it is pruned
+     */
+    long getCutoff(Rule rule) {
+        long now = mClock.currentTimeMillis();
+        if (rule.keepDays < 0) {
+            return now - rule.maxAgeMillis;
+        }
+        Calendar midnight = Calendar.getInstance(mTimeZone);
+        midnight.setTimeInMillis(now);
+        midnight.set(Calendar.HOUR_OF_DAY, 0);
+        midnight.set(Calendar.MINUTE, 0);
+        midnight.set(Calendar.SECOND, 0);
+        midnight.set(Calendar.MILLISECOND, 0);
+        midnight.add(Calendar.DAY_OF_YEAR, -rule.keepDays);
+        return midnight.getTimeInMillis();
+    }
+
+    /**
+     * Prunes every table in turn until nothing is left to prune or {@code stopped} is set.
+     *
+     * @return how many rows were deleted
+     */
+    int prune(Pruner pruner, AtomicBoolean stopped) {
+        int deleted = 0;
+        for (Rule rule : mRules) {
+            long cutoff = getCutoff(rule);
+            int chunk;
+            do {
+                if (stopped.get()) {
+                    return deleted;
+                }
+                chunk = pruner.deleteChunk(rule.table, rule.column, cutoff, CHUNK_SIZE);
+                deleted += chunk;
+            } while (chunk == CHUNK_SIZE);
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.android.sunshine.app.sync;
+
+import android.app.IntentService;
+import android.content.Intent;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs {@link Retention#prune} off the main thread for the daily alarm, on devices without
+ * {@link SyncJobService}.
+ */
+public class RetentionService extends IntentService {
+
+    public RetentionService() {
+        super("RetentionService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Retention.prune(this, new AtomicBoolean());
+    }
+}
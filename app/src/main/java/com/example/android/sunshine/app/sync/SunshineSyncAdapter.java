@@ -2,65 +2,86 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
+import android.support.v4.net.ConnectivityManagerCompat;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather, in seconds, until the first sync has run.
+    // After that SyncScheduler picks the interval from how changeable the forecast has been.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    // Raw forecast responses are kept on disk so a cold start or a switch back to a previous
+    // location can be answered without the network.  Stale entries are still shown for up to
+    // a day while they are being refreshed.
+    private static final String FORECAST_CACHE_DIR = "forecast";
+    private static final long FORECAST_CACHE_MAX_BYTES = 512 * 1024;
+    private static final int FORECAST_CACHE_EVICTION_POLICY =
+            ForecastCache.EVICT_LEAST_RECENTLY_USED;
+    private static final long FORECAST_CACHE_STALE_WHILE_REVALIDATE = DAY_IN_MILLIS;
+    // Downloaded forecasts are journaled until they are committed, so a crash in between
+    // doesn't lose them.  It lives with the app's files, which unlike the cache aren't cleared
+    // behind our back.
+    private static final String FORECAST_JOURNAL_FILE = "forecast.journal";
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
 
@@ -77,6 +98,21 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
+    private static final String[] SYNC_LOCATION_PROJECTION = new String[] {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_ID,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_FINGERPRINT
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_SETTING = 0;
+    private static final int INDEX_CITY_ID = 1;
+    private static final int INDEX_ETAG = 2;
+    private static final int INDEX_LAST_MODIFIED = 3;
+    private static final int INDEX_FINGERPRINT = 4;
+
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -87,275 +123,660 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Locations are fetched and parsed concurrently by a small pool of workers
+    private static final int SYNC_WORKER_COUNT = 3;
+    private static final ExecutorService sSyncWorkers =
+            Executors.newFixedThreadPool(SYNC_WORKER_COUNT);
+
+    // Widgets, Muzei and the notification hear about new data on threads of their own, at
+    // background priority, so the sync can finish without waiting for them
+    private static final int FAN_OUT_THREAD_COUNT = 3;
+    private static final ExecutorService sFanOutWorkers =
+            Executors.newFixedThreadPool(FAN_OUT_THREAD_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SyncFanOut");
+                }
+            });
+
+    // Hedged requests wait on each endpoint from a thread of its own
+    private static final ExecutorService sHedgeWorkers = Executors.newCachedThreadPool();
+
+    // Marks syncs requested through the coordinator, as opposed to ones the framework starts
+    private static final String SYNC_EXTRAS_COORDINATED =
+            "com.example.android.sunshine.app.sync.extra.COORDINATED";
+    private static final SyncCoordinator sSyncCoordinator = new SyncCoordinator();
+    private static final Handler sCoordinatorHandler = new Handler(Looper.getMainLooper());
+
+    // Asks for the full forecast horizon for every location, as the daily maintenance job does
+    static final String SYNC_EXTRAS_FULL_HORIZON =
+            "com.example.android.sunshine.app.sync.extra.FULL_HORIZON";
+    // Syncs started by the framework and by SyncJobService take turns
+    private static final Object sSyncLock = new Object();
+    private static SunshineSyncAdapter sJobSyncAdapter;
+
+    private static ForecastCache sForecastCache;
+    private static FetchCircuitBreaker sFetchBreaker;
+    private static FetchHedger sFetchHedger;
+    private static DataBudget sDataBudget;
+    private static UsagePredictor sUsagePredictor;
+    // Set when the user has scrolled to the end of the stored forecast, until a sync fetches more
+    private static final AtomicBoolean sFullForecastRequested = new AtomicBoolean();
+    private static ForecastJournal sForecastJournal;
+    private static final Object sJournalReplayLock = new Object();
+
+    private final SyncFanOut mFanOut;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mFanOut = new SyncFanOut(sFanOutWorkers,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        updateWidgets();
+                    }
+                },
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        updateMuzei();
+                    }
+                },
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyWeather();
+                    }
+                });
+    }
+
+    /**
+     * Hands new data to {@code fanOutConsumers} instead of the widgets, Muzei and the
+     * notification, so tests and benchmarks can sync without touching the rest of the device.
+     */
+    SunshineSyncAdapter(Context context, Runnable... fanOutConsumers) {
+        super(context, false);
+        mFanOut = new SyncFanOut(sFanOutWorkers, fanOutConsumers);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        synchronized (sSyncLock) {
+            sync(extras, provider, syncResult);
+        }
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    private void sync(Bundle extras, ContentProviderClient provider, SyncResult syncResult) {
+        Context context = getContext();
+        String preferredLocation = Utility.getPreferredLocation(context);
+        // Anything explicitly asked for runs; only syncs the framework starts on its own, like
+        // the periodic one, can be skipped as duplicates.
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL);
+        boolean fullHorizon = extras.getBoolean(SYNC_EXTRAS_FULL_HORIZON);
+        boolean requested = extras.getBoolean(SYNC_EXTRAS_COORDINATED) || manual || fullHorizon;
+        if (!sSyncCoordinator.onSyncStarted(preferredLocation, requested,
+                System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "Skipping sync, " + preferredLocation + " was just synced");
+            return;
+        }
+        Log.d(LOG_TAG, "Starting sync");
+        boolean succeeded = false;
+        try {
+            // Someone is waiting on a manual refresh, so it's worth the odd duplicate request
+            // to keep a slow server from holding it up
+            boolean hedge = manual
+                    || context.getResources().getBoolean(R.bool.hedge_all_fetches);
+            @SyncScheduler.NetworkType int network = getNetworkType(context);
+            @DataBudget.Mode int budgetMode =
+                    getDataBudget(context).getMode(network, getDailyBudgetBytes(context), manual);
+            if (budgetMode == DataBudget.MODE_OFF) {
+                Log.d(LOG_TAG, "Skipping sync, today's data budget is spent");
+                return;
+            }
+            performSync(context, preferredLocation, hedge, fullHorizon, network, budgetMode,
+                    provider, syncResult);
+            succeeded = Utility.getLocationStatus(context) == LOCATION_STATUS_OK;
+        } finally {
+            sSyncCoordinator.onSyncFinished(succeeded, System.currentTimeMillis());
+        }
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    private void performSync(Context context, String preferredLocation, boolean hedge,
+                             boolean fullHorizon, @SyncScheduler.NetworkType int network,
+                             @DataBudget.Mode int budgetMode,
+                             ContentProviderClient provider, SyncResult syncResult) {
+        List<LocationSync> locations = getLocationsToSync(preferredLocation);
+        ForecastCache cache = getForecastCache(context);
+        WeatherProvider localProvider = getLocalProvider(provider);
+        long now = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        SyncStats stats = new SyncStats(now);
+        // Locations the data budget kept from the network this time
+        List<LocationSync> heldBack = new ArrayList<LocationSync>();
+        ForecastHorizon horizon = getForecastHorizon(context, locations);
+        boolean fullRequested = sFullForecastRequested.getAndSet(false);
+
+        int inserted = 0;
+        int hoursWritten = 0;
+        ForecastJournal journal = getForecastJournal(context);
+        try {
+            // Whatever a previous sync or process downloaded but didn't get to commit goes in
+            // first.  Syncs take turns, so nothing appended by this process is still pending.
+            inserted += replayJournal(context, localProvider, true);
+
+            // Each location's horizon is settled first, as a forecast is cached under the
+            // number of days it asks for.
+            for (LocationSync location : locations) {
+                int days = horizon.getDays(location.getLocationSetting(), fullHorizon
+                        || (fullRequested
+                        && location.getLocationSetting().equals(preferredLocation)));
+                if (budgetMode >= DataBudget.MODE_REDUCED) {
+                    location.limitTo(Math.min(days, DataBudget.REDUCED_DAYS), false);
+                } else {
+                    location.limitTo(days, true);
+                }
+            }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+            // Anything the cache can answer is stored first, in short transactions, so
+            // there is something to show while the network pass runs.  Locations whose cached
+            // forecast is still fresh don't need the network at all.
+            List<LocationSync> stale = new ArrayList<LocationSync>(locations.size());
+            ForecastPipeline cachePipeline =
+                    new ForecastPipeline(context.getContentResolver(), localProvider, stats);
+            for (LocationSync location : locations) {
+                if (!location.applyCache(cache, cachePipeline, now)) {
+                    stale.add(location);
+                }
+            }
+            inserted += cachePipeline.finish();
+            // Only now is the cache allowed to believe its forecasts are in the database
+            for (LocationSync location : locations) {
+                location.publishCache(cache);
+            }
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+            // Everything else is fetched and parsed in parallel batches, and each location is
+            // committed in a short transaction of its own as its response comes in.
+            ForecastPipeline pipeline =
+                    new ForecastPipeline(context.getContentResolver(), localProvider, stats);
+            FetchCircuitBreaker breaker = getFetchBreaker(context);
+            FetchHedger hedger = getFetchHedger(context);
+            for (LocationSync location : stale) {
+                location.forNetwork(cache, pipeline, breaker, journal, hedger, hedge);
+                if (budgetMode >= DataBudget.MODE_MINIMAL && !location.hasValidators()) {
+                    heldBack.add(location);
+                }
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            stale.removeAll(heldBack);
+            List<Future<Void>> results = new ArrayList<Future<Void>>(SYNC_WORKER_COUNT);
+            for (Callable<Void> batch : LocationSync.inBatches(stale, SYNC_WORKER_COUNT)) {
+                results.add(sSyncWorkers.submit(batch));
+            }
+            try {
+                for (Future<Void> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                pipeline.abort();
+                throw new IOException("Sync interrupted", e);
+            }
+            inserted += pipeline.finish();
+            hoursWritten = pipeline.getHourlyWrittenCount();
+            for (LocationSync location : stale) {
+                location.publishCache(cache);
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            List<Long> committed = new ArrayList<Long>(stale.size());
+            for (LocationSync location : stale) {
+                if (location.getJournalSeq() != 0) {
+                    committed.add(location.getJournalSeq());
+                }
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+            journal.commit(committed);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            // A response whose write failed mustn't be served from the cache as if it had
+            // been stored
+            for (LocationSync location : locations) {
+                location.discardCache(cache);
             }
+            saveFetchBreaker(context, syncResult);
+            recordDataUsage(context, network, locations);
         }
-        return;
-    }
 
-    /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
-     */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+        for (LocationSync location : locations) {
+            if (heldBack.contains(location)) {
+                // Nothing new is known about it either way
+                continue;
+            }
+            if (location.getLocationSetting().equals(preferredLocation)) {
+                setLocationStatus(context, location.getStatus());
+            }
+            if (location.getStatus() == LOCATION_STATUS_SERVER_DOWN) {
+                // Lets the sync manager apply its own backoff before retrying
+                syncResult.stats.numIoExceptions++;
+            }
+        }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+        // Old rows are pruned separately, while the device is idle; see Retention
+        if ( inserted > 0 ) {
+            // Everyone hears about the new data once, however many locations changed.  Only the
+            // hand-off is timed; the consumers themselves run after the sync has finished.
+            long stageStart = System.nanoTime();
+            mFanOut.post();
+            stats.addTime(SyncStats.STAGE_FAN_OUT, System.nanoTime() - stageStart);
+        }
+        stats.finish(locations.size(), inserted + hoursWritten,
+                SystemClock.elapsedRealtime() - start);
 
-        // These are the names of the JSON objects that need to be extracted.
+        int unchanged = 0;
+        for (LocationSync location : locations) {
+            if (location.isUnchanged()) {
+                unchanged++;
+            }
+        }
+        // Each component's running totals are printed by dump()
+        Log.d(LOG_TAG, "Sync Complete. " + inserted + " rows and " + hoursWritten
+                + " hours changed for " + locations.size()
+                + " locations in " + (SystemClock.elapsedRealtime() - start) + " ms; "
+                + unchanged + " unchanged, " + heldBack.size() + " held back");
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        scheduleNextSync(context, locations, horizon);
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * Updates each fetched location's volatility and when it last had a full forecast and, if
+     * the forecast has become noticeably more or less changeable, re-registers the periodic sync
+     * with a new interval.  Then moves the next sync ahead of the user's next expected look at
+     * the weather, if that is worth it.
+     */
+    private void scheduleNextSync(Context context, List<LocationSync> locations,
+                                  ForecastHorizon horizon) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        String lastSyncKey = context.getString(R.string.pref_last_sync_key);
+        String intervalKey = context.getString(R.string.pref_sync_interval_key);
+        String volatilityPrefix = context.getString(R.string.pref_sync_volatility_prefix);
+        String horizonPrefix = context.getString(R.string.pref_horizon_full_fetch_prefix);
+
+        SyncScheduler scheduler =
+                new SyncScheduler(Clock.SYSTEM, prefs.getLong(lastSyncKey, 0));
+        boolean synced = false;
+        for (LocationSync location : locations) {
+            String locationSetting = location.getLocationSetting();
+            String volatilityKey = volatilityPrefix + locationSetting;
+            scheduler.setVolatility(locationSetting, prefs.getFloat(volatilityKey,
+                    (float) SyncScheduler.DEFAULT_VOLATILITY));
+            if (location.getStatus() == LOCATION_STATUS_OK) {
+                synced = true;
+                if (location.wasFetched()) {
+                    editor.putFloat(volatilityKey, (float) scheduler.recordForecast(
+                            locationSetting, location.hasChanged()));
+                    horizon.recordFetch(locationSetting, location.getRequestDays());
+                    editor.putLong(horizonPrefix + locationSetting,
+                            horizon.getLastFullFetch(locationSetting));
+                }
+            }
+        }
+        if (synced) {
+            scheduler.recordSuccess();
+            editor.putLong(lastSyncKey, scheduler.getLastSuccessMillis());
+        }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+        long intervalMillis =
+                scheduler.getSyncIntervalMillis(getNetworkType(context), isCharging(context));
+        long currentIntervalMillis = prefs.getLong(intervalKey, SYNC_INTERVAL * 1000L);
+        if (SyncScheduler.shouldReschedule(currentIntervalMillis, intervalMillis)) {
+            int syncInterval = (int) (intervalMillis / 1000);
+            Log.d(LOG_TAG, "Next sync in " + syncInterval + " s");
+            configurePeriodicSync(context, syncInterval, syncInterval / 3);
+            editor.putLong(intervalKey, intervalMillis);
+            currentIntervalMillis = intervalMillis;
+        }
+        editor.commit();
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        // The framework's periodic sync can't be moved, so there a prefetch would only add a
+        // sync; the refresh job restarts its period after one
+        if (usesSyncJobs(context)) {
+            SyncJobService.schedulePrefetch(context, getUsagePredictor(context)
+                    .getPrefetchTime(scheduler.getLastSuccessMillis(), currentIntervalMillis));
+        }
+    }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+    @SyncScheduler.NetworkType
+    private static int getNetworkType(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
+            return SyncScheduler.NETWORK_NONE;
+        }
+        return ConnectivityManagerCompat.isActiveNetworkMetered(cm)
+                ? SyncScheduler.NETWORK_METERED
+                : SyncScheduler.NETWORK_UNMETERED;
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    private static boolean isCharging(Context context) {
+        // The battery broadcast is sticky, so this just reads its last value
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * Returns every location in the location table, plus the preferred location if it hasn't
+     * been stored yet, along with the validators and fingerprints of their last stored
+     * forecasts.
+     */
+    private List<LocationSync> getLocationsToSync(String preferredLocation) {
+        List<LocationSync> locations = new ArrayList<LocationSync>();
+        boolean havePreferred = false;
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                SYNC_LOCATION_PROJECTION,
+                null,
+                null,
+                null);
+        if (locationCursor != null) {
+            while (locationCursor.moveToNext()) {
+                String locationSetting = locationCursor.getString(INDEX_LOCATION_SETTING);
+                havePreferred |= locationSetting.equals(preferredLocation);
+                locations.add(new LocationSync(locationSetting,
+                        locationCursor.getLong(INDEX_CITY_ID),
+                        locationCursor.getString(INDEX_ETAG),
+                        locationCursor.getString(INDEX_LAST_MODIFIED),
+                        locationCursor.getLong(INDEX_FINGERPRINT)));
             }
+            locationCursor.close();
+        }
+        if (!havePreferred) {
+            locations.add(0, new LocationSync(preferredLocation, 0, null, null, 0));
+        }
+        return locations;
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+    static synchronized ForecastCache getForecastCache(Context context) {
+        if (sForecastCache == null) {
+            sForecastCache = new ForecastCache(
+                    new File(context.getCacheDir(), FORECAST_CACHE_DIR),
+                    FORECAST_CACHE_MAX_BYTES,
+                    FORECAST_CACHE_EVICTION_POLICY,
+                    FORECAST_CACHE_STALE_WHILE_REVALIDATE);
+        }
+        return sForecastCache;
+    }
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+    /**
+     * Replaces the cache the syncs share, so tests and benchmarks can start from an empty one
+     * of their own.  Null has the next sync open the app's cache again.
+     */
+    static synchronized void setForecastCache(ForecastCache cache) {
+        sForecastCache = cache;
+    }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+    static synchronized FetchCircuitBreaker getFetchBreaker(Context context) {
+        if (sFetchBreaker == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            sFetchBreaker = new FetchCircuitBreaker(Clock.SYSTEM, new Random(),
+                    prefs.getInt(context.getString(R.string.pref_breaker_state_key),
+                            FetchCircuitBreaker.STATE_CLOSED),
+                    prefs.getInt(context.getString(R.string.pref_breaker_failures_key), 0),
+                    prefs.getInt(context.getString(R.string.pref_breaker_open_count_key), 0),
+                    prefs.getLong(context.getString(R.string.pref_breaker_retry_at_key), 0));
+        }
+        return sFetchBreaker;
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * Replaces the breaker the syncs share, so the benchmarks can inject failures against one
+     * with a fake clock.  Null has the next sync load it from preferences again.
+     */
+    static synchronized void setFetchBreaker(FetchCircuitBreaker breaker) {
+        sFetchBreaker = breaker;
+    }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+    static synchronized FetchHedger getFetchHedger(Context context) {
+        if (sFetchHedger == null) {
+            sFetchHedger = new FetchHedger(
+                    context.getResources().getStringArray(R.array.forecast_endpoints),
+                    sHedgeWorkers);
+        }
+        return sFetchHedger;
+    }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    /**
+     * Replaces the hedger the syncs share, so tests and benchmarks can point them at local
+     * stand-ins for OpenWeatherMap.  Null has the next sync build it from resources again.
+     */
+    static synchronized void setFetchHedger(FetchHedger hedger) {
+        sFetchHedger = hedger;
+    }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+    /**
+     * Loads when each location last had the full forecast horizon fetched.
+     */
+    private static ForecastHorizon getForecastHorizon(Context context,
+                                                      List<LocationSync> locations) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String horizonPrefix = context.getString(R.string.pref_horizon_full_fetch_prefix);
+        ForecastHorizon horizon = new ForecastHorizon(Clock.SYSTEM);
+        for (LocationSync location : locations) {
+            String locationSetting = location.getLocationSetting();
+            horizon.setLastFullFetch(locationSetting,
+                    prefs.getLong(horizonPrefix + locationSetting, 0));
+        }
+        return horizon;
+    }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    /**
+     * Asks for the full forecast for the preferred location at the next sync, and requests
+     * one, if fewer days than that are stored.  Call it when the user reaches the end of the
+     * stored forecast.
+     *
+     * @param daysStored how many days of forecast, from today, are stored for the location
+     */
+    public static void requestFullForecast(Context context, int daysStored) {
+        if (daysStored >= ForecastHorizon.FULL_DAYS
+                || sFullForecastRequested.getAndSet(true)) {
+            return;
+        }
+        requestSync(context, false);
+    }
 
-                double high;
-                double low;
+    static synchronized UsagePredictor getUsagePredictor(Context context) {
+        if (sUsagePredictor == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            sUsagePredictor = new UsagePredictor(Clock.SYSTEM, TimeZone.getDefault(),
+                    prefs.getString(context.getString(R.string.pref_usage_history_key), null));
+        }
+        return sUsagePredictor;
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * Notes that the user is looking at the weather, so future syncs can be timed to land just
+     * before they usually do.  Call it when the app comes to the foreground or the user adds
+     * or resizes a widget, but not for widget updates, which also come with reboots, app
+     * updates and syncs.
+     */
+    public static void recordUse(Context context) {
+        UsagePredictor predictor = getUsagePredictor(context);
+        predictor.recordUse();
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(context.getString(R.string.pref_usage_history_key), predictor.save())
+                .apply();
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    static synchronized DataBudget getDataBudget(Context context) {
+        if (sDataBudget == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            sDataBudget = new DataBudget(Clock.SYSTEM, TimeZone.getDefault(),
+                    prefs.getString(context.getString(R.string.pref_data_ledger_key), null));
+        }
+        return sDataBudget;
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * Replaces the data budget the syncs share, so benchmarks aren't held back by what the app
+     * has already downloaded today.  Null has the next sync load it from preferences again.
+     */
+    static synchronized void setDataBudget(DataBudget budget) {
+        sDataBudget = budget;
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    /**
+     * Returns what the syncs may download on metered networks each day, or 0 for no limit.
+     */
+    private static long getDailyBudgetBytes(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return 1024 * Long.parseLong(prefs.getString(
+                context.getString(R.string.pref_data_budget_key),
+                context.getString(R.string.pref_data_budget_default)));
+    }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * Adds what each location downloaded to the data budget's ledger, and saves the ledger.
+     */
+    private static void recordDataUsage(Context context, @SyncScheduler.NetworkType int network,
+                                        List<LocationSync> locations) {
+        Map<String, Long> locationBytes = new HashMap<String, Long>();
+        for (LocationSync location : locations) {
+            locationBytes.put(location.getLocationSetting(), location.getBytes());
+        }
+        DataBudget budget = getDataBudget(context);
+        budget.recordSync(network, locationBytes);
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(context.getString(R.string.pref_data_ledger_key), budget.save())
+                .commit();
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * Saves the breaker so an outage is still remembered if the process is killed, and asks
+     * the sync manager not to run again before the breaker will let a request through.
+     */
+    private static synchronized void saveFetchBreaker(Context context, SyncResult syncResult) {
+        if (sFetchBreaker == null) {
+            return;
+        }
+        FetchCircuitBreaker breaker = sFetchBreaker;
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        editor.putInt(context.getString(R.string.pref_breaker_state_key), breaker.getState());
+        editor.putInt(context.getString(R.string.pref_breaker_failures_key),
+                breaker.getConsecutiveFailures());
+        editor.putInt(context.getString(R.string.pref_breaker_open_count_key),
+                breaker.getOpenCount());
+        editor.putLong(context.getString(R.string.pref_breaker_retry_at_key),
+                breaker.getRetryAtMillis());
+        editor.commit();
+
+        if (breaker.getState() != FetchCircuitBreaker.STATE_CLOSED) {
+            // delayUntil is in seconds
+            syncResult.delayUntil = breaker.getRetryAtMillis() / 1000;
+        }
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    static synchronized ForecastJournal getForecastJournal(Context context) {
+        if (sForecastJournal == null) {
+            sForecastJournal = new ForecastJournal(
+                    new File(context.getFilesDir(), FORECAST_JOURNAL_FILE));
+        }
+        return sForecastJournal;
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+    /**
+     * Replaces the journal the syncs share, so tests and benchmarks don't write to the app's.
+     * Null has the next sync open the app's journal again.
+     */
+    static synchronized void setForecastJournal(ForecastJournal journal) {
+        sForecastJournal = journal;
+    }
 
-                cVVector.add(weatherValues);
+    /**
+     * Replays, in the background, any forecasts that were downloaded but never committed
+     * because the process died, so the app has them without waiting for the network.
+     */
+    public static void recoverJournal(Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentProviderClient client = appContext.getContentResolver()
+                        .acquireContentProviderClient(appContext.getString(R.string.content_authority));
+                try {
+                    // A sync may be running, so only what an earlier process left behind
+                    replayJournal(appContext, getLocalProvider(client), false);
+                } catch (IOException e) {
+                    Log.e(SunshineSyncAdapter.class.getSimpleName(), "Error ", e);
+                } finally {
+                    if (client != null) {
+                        client.release();
+                    }
+                }
             }
+        });
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+    /**
+     * Writes the journal's uncommitted forecasts to the database, then compacts the journal.
+     *
+     * @param includeAppended true to replay what failed syncs in this process left uncommitted
+     *        too; see {@link ForecastJournal#getUncommitted}
+     * @return the number of weather rows inserted or changed
+     */
+    private static int replayJournal(Context context, WeatherProvider localProvider,
+                                     boolean includeAppended) throws IOException {
+        ForecastJournal journal = getForecastJournal(context);
+        // Only one replay at a time, or the same entries could be written twice.  This must not
+        // be the journal's own lock, which sync workers need while the replay waits for the
+        // shared writer thread.
+        synchronized (sJournalReplayLock) {
+            List<ForecastJournal.Entry> entries = journal.getUncommitted(includeAppended);
+            if (entries.isEmpty()) {
+                journal.compact();
+                return 0;
+            }
+            List<Long> replayed = journal.getSuperseded(includeAppended);
+            ForecastPipeline pipeline = new ForecastPipeline(context.getContentResolver(),
+                    localProvider, new SyncStats(System.currentTimeMillis()));
+            for (ForecastJournal.Entry entry : entries) {
+                // Stored fingerprint unknown here, so the forecast is always written
+                new LocationSync(entry.locationSetting, 0, null, null, 0)
+                        .applyJournal(journal.openBody(entry), entry.fetchedAt, pipeline);
+                // An unusable entry is dropped too; replaying it again wouldn't help
+                replayed.add(entry.seq);
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            int inserted;
+            try {
+                inserted = pipeline.finish();
+            } finally {
+                // Dropped even if the write failed, or one bad entry would be retried forever
+                // and keep the journal from being compacted.  The network pass fetches its
+                // location again anyway.
+                journal.commit(replayed);
+            }
+            journal.compact();
+            Log.d(SunshineSyncAdapter.class.getSimpleName(), "Replayed " + entries.size()
+                    + " journaled forecasts, " + inserted + " rows changed");
+            return inserted;
+        }
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Returns the provider instance behind {@code client} when it runs in this process, which
+     * lets the sync stream rows into it.  Returns null otherwise.
+     */
+    private static WeatherProvider getLocalProvider(ContentProviderClient client) {
+        if (client != null && client.getLocalContentProvider() instanceof WeatherProvider) {
+            return (WeatherProvider) client.getLocalContentProvider();
         }
+        return null;
     }
 
     private void updateWidgets() {
@@ -367,10 +788,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     private void updateMuzei() {
+        updateMuzei(getContext());
+    }
+
+    static void updateMuzei(Context context) {
         // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
         // Muzei background on lower API level devices
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
             context.startService(new Intent(ACTION_DATA_UPDATED)
                     .setClass(context, WeatherMuzeiSource.class));
         }
@@ -406,33 +830,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
+                    // Prefetched when the art pack was chosen, so this is normally a lookup
+                    Bitmap largeIcon = NotificationArtCache.getLargeIcon(context, weatherId);
                     String title = context.getString(R.string.app_name);
 
                     // Define the text of the forecast.
@@ -484,61 +883,77 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * Runs a sync for {@link SyncJobService}, on the calling thread, the same way the framework
+     * would.  Returns true if it failed in a way that is worth retrying.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
+    static boolean performJobSync(Context context, Bundle extras) {
+        Context appContext = context.getApplicationContext();
+        SunshineSyncAdapter adapter;
+        synchronized (SunshineSyncAdapter.class) {
+            if (sJobSyncAdapter == null) {
+                sJobSyncAdapter = new SunshineSyncAdapter(appContext, false);
+            }
+            adapter = sJobSyncAdapter;
+        }
+        String authority = appContext.getString(R.string.content_authority);
+        ContentProviderClient provider =
+                appContext.getContentResolver().acquireContentProviderClient(authority);
+        SyncResult syncResult = new SyncResult();
+        try {
+            adapter.onPerformSync(getSyncAccount(appContext), extras, authority, provider,
+                    syncResult);
+        } finally {
+            if (provider != null) {
+                provider.release();
+            }
+        }
+        return syncResult.hasSoftError();
+    }
 
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    /**
+     * Prints what the sync's components have counted since the process started, along with
+     * the fan-outs of this adapter and of the one that runs syncs for jobs.
+     */
+    void dump(PrintWriter writer) {
+        Context context = getContext();
+        LocationSync.dump(writer);
+        getForecastCache(context).dump(writer);
+        getFetchHedger(context).dump(writer);
+        getDataBudget(context).dump(writer);
+        sSyncCoordinator.dump(writer);
+        writer.print("Framework syncs: ");
+        mFanOut.dump(writer);
+        SunshineSyncAdapter jobAdapter;
+        synchronized (SunshineSyncAdapter.class) {
+            jobAdapter = sJobSyncAdapter;
+        }
+        if (jobAdapter != null) {
+            writer.print("Job syncs: ");
+            jobAdapter.mFanOut.dump(writer);
         }
+    }
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    private static boolean usesSyncJobs(Context context) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && context.getResources().getBoolean(R.bool.sync_with_jobs);
     }
 
     /**
-     * Helper method to schedule the sync adapter periodic execution
+     * Helper method to schedule the sync adapter periodic execution.  On Lollipop and up this is
+     * SyncJobService's refresh job, which has no flex time of its own.
      */
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
+        if (usesSyncJobs(context)) {
+            // The job replaces the framework's periodic sync rather than running alongside it
+            ContentResolver.removePeriodicSync(account, authority, new Bundle());
+            SyncJobService.scheduleRefresh(context, syncInterval * 1000L);
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            SyncJobService.cancelRefresh(context);
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
@@ -557,9 +972,39 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        requestSync(context, true);
+    }
+
+    /**
+     * Asks for an expedited sync.  Requests made within a moment of each other are merged into
+     * one sync, which is manual if any of them was, and a request for a sync that is already
+     * running is dropped.
+     * @param context The context used to access the account service
+     * @param manual true if the user asked for the sync, which lets it ignore any backoff
+     */
+    public static void requestSync(Context context, boolean manual) {
+        final Context appContext = context.getApplicationContext();
+        if (sSyncCoordinator.request(manual)) {
+            sCoordinatorHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchSync(appContext);
+                }
+            }, SyncCoordinator.COALESCE_WINDOW_MILLIS);
+        }
+    }
+
+    private static void dispatchSync(Context context) {
+        int dispatch = sSyncCoordinator.dispatch(Utility.getPreferredLocation(context));
+        if (dispatch == SyncCoordinator.DISPATCH_NONE) {
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_COORDINATED, true);
+        if (dispatch == SyncCoordinator.DISPATCH_MANUAL) {
+            bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        }
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
@@ -622,6 +1067,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        recoverJournal(context);
+        if (usesSyncJobs(context) && !SyncJobService.isRefreshScheduled(context)) {
+            // Moves an install that was syncing through the framework over to the job
+            long intervalMillis = PreferenceManager.getDefaultSharedPreferences(context).getLong(
+                    context.getString(R.string.pref_sync_interval_key), SYNC_INTERVAL * 1000L);
+            int syncInterval = (int) (intervalMillis / 1000);
+            configurePeriodicSync(context, syncInterval, syncInterval / 3);
+        }
+        Retention.schedule(context);
     }
 
     /**
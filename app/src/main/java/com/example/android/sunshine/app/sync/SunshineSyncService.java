@@ -5,6 +5,9 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class SunshineSyncService extends Service {
     private static final Object sSyncAdapterLock = new Object();
     private static SunshineSyncAdapter sSunshineSyncAdapter = null;
@@ -23,4 +26,14 @@ public class SunshineSyncService extends Service {
     public IBinder onBind(Intent intent) {
         return sSunshineSyncAdapter.getSyncAdapterBinder();
     }
+
+    /**
+     * Prints recent sync timings and each sync component's counters:
+     * adb shell dumpsys activity service SunshineSyncService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SyncStats.dump(writer);
+        sSunshineSyncAdapter.dump(writer);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Turns the stream of sync requests from around the app into as few syncs as possible.
+ *
+ * Requests that arrive within {@link #COALESCE_WINDOW_MILLIS} of the first one in a burst are
+ * merged, and the merged sync is manual if any of them was.  When the window closes the merged
+ * request is dropped if a sync for the same location is already running, since that sync will
+ * deliver exactly what was asked for.  Syncs the framework starts on its own, such as periodic
+ * ones, are skipped if the same location was synced successfully within
+ * {@link #DUPLICATE_WINDOW_MILLIS}.
+ *
+ * A sync is identified by the location it fetches first, the preferred one; the rest of the
+ * stored locations come along with every sync.
+ */
+class SyncCoordinator {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({DISPATCH_NONE, DISPATCH_EXPEDITED, DISPATCH_MANUAL})
+    @interface Dispatch {}
+
+    static final int DISPATCH_NONE = 0;
+    static final int DISPATCH_EXPEDITED = 1;
+    static final int DISPATCH_MANUAL = 2;
+
+    static final long COALESCE_WINDOW_MILLIS = 1500;
+    static final long DUPLICATE_WINDOW_MILLIS = 1000 * 60;
+
+    private boolean mPending;
+    private boolean mPendingManual;
+
+    private String mInFlightKey;
+    private String mLastKey;
+    private long mLastFinishedAt;
+
+    private int mRequestCount;
+    private int mMergedCount;
+    private int mDroppedCount;
+    private int mSkippedCount;
+
+    /**
+     * Notes a request for a sync.
+     *
+     * @return true if the request opened a new window, in which case the caller must call
+     *         {@link #dispatch} once {@link #COALESCE_WINDOW_MILLIS} have passed
+     */
+    synchronized boolean request(boolean manual) {
+        mRequestCount++;
+        mPendingManual |= manual;
+        if (mPending) {
+            mMergedCount++;
+            return false;
+        }
+        mPending = true;
+        return true;
+    }
+
+    /**
+     * Closes the current window.
+     *
+     * @param key the location the merged sync would fetch first
+     * @return how to request the merged sync, or {@link #DISPATCH_NONE} if it should be dropped
+     */
+    @Dispatch
+    synchronized int dispatch(String key) {
+        boolean manual = mPendingManual;
+        mPending = false;
+        mPendingManual = false;
+        if (key.equals(mInFlightKey)) {
+            mDroppedCount++;
+            return DISPATCH_NONE;
+        }
+        return manual ? DISPATCH_MANUAL : DISPATCH_EXPEDITED;
+    }
+
+    /**
+     * Notes that a sync is starting.
+     *
+     * @param requested true if the sync was asked for through {@link #dispatch} rather than
+     *                  started by the framework
+     * @return false if the sync duplicates one that just finished and should not run
+     */
+    synchronized boolean onSyncStarted(String key, boolean requested, long now) {
+        if (!requested && key.equals(mLastKey)
+                && now - mLastFinishedAt < DUPLICATE_WINDOW_MILLIS) {
+            mSkippedCount++;
+            return false;
+        }
+        mInFlightKey = key;
+        return true;
+    }
+
+    /**
+     * Notes that the sync started with {@link #onSyncStarted} has finished.
+     *
+     * @param succeeded true if it brought the location up to date
+     */
+    synchronized void onSyncFinished(boolean succeeded, long now) {
+        if (succeeded) {
+            mLastKey = mInFlightKey;
+            mLastFinishedAt = now;
+        } else {
+            mLastKey = null;
+        }
+        mInFlightKey = null;
+    }
+
+    /** Requests folded into a window that was already open. */
+    synchronized int getMergedCount() {
+        return mMergedCount;
+    }
+
+    /** Merged requests dropped because the same sync was already running. */
+    synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /** Framework syncs skipped because the same sync had just finished. */
+    synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Coordinator: " + mRequestCount + " sync requests, " + mMergedCount
+                + " merged, " + mDroppedCount + " dropped, " + mSkippedCount + " skipped");
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+
+/**
+ * Tells everything that shows the weather about new data, off the sync thread.
+ *
+ * Each consumer runs on the given executor, in parallel with the others, so a slow one, like
+ * the notification waiting on its artwork, holds up neither the sync nor the rest.  Updates
+ * posted while a consumer's run is still queued are merged into that run.  Updates posted
+ * while it is running mark it dirty, and exactly one more run is queued once the current one
+ * has finished, so every consumer always ends up having seen the latest data without ever
+ * running concurrently with itself, whatever the executor.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_RUNNING = 2;
+    // Running, with an update that arrived after the run started
+    private static final int STATE_DIRTY = 3;
+
+    private final Executor mExecutor;
+    private final Consumer[] mConsumers;
+
+    private int mPostedCount;
+    private int mMergedCount;
+
+    /**
+     * A single consumer's run, and the state that merges updates into it.
+     */
+    private final class Consumer implements Runnable {
+        final Runnable update;
+        private int mState = STATE_IDLE;
+
+        Consumer(Runnable update) {
+            this.update = update;
+        }
+
+        /**
+         * Queues a run, or marks the running one dirty.
+         *
+         * @return true if the update was merged into a run that was already going to happen
+         */
+        boolean post() {
+            synchronized (this) {
+                switch (mState) {
+                    case STATE_IDLE:
+                        mState = STATE_QUEUED;
+                        break;
+                    case STATE_RUNNING:
+                        mState = STATE_DIRTY;
+                        return false;
+                    default:
+                        return true;
+                }
+            }
+            mExecutor.execute(this);
+            return false;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mState = STATE_RUNNING;
+            }
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                // One consumer failing must not stop it hearing about the next update
+                Log.e(LOG_TAG, "Error telling a consumer about new data", e);
+            }
+            synchronized (this) {
+                if (mState != STATE_DIRTY) {
+                    mState = STATE_IDLE;
+                    return;
+                }
+                // Only queued now, so the next run can't overlap this one
+                mState = STATE_QUEUED;
+            }
+            mExecutor.execute(this);
+        }
+    }
+
+    SyncFanOut(Executor executor, Runnable... consumers) {
+        mExecutor = executor;
+        mConsumers = new Consumer[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            mConsumers[i] = new Consumer(consumers[i]);
+        }
+    }
+
+    /**
+     * Queues every consumer that isn't already queued, or due to run again.  Never blocks.
+     */
+    void post() {
+        int merged = 0;
+        for (Consumer consumer : mConsumers) {
+            if (consumer.post()) {
+                merged++;
+            }
+        }
+        synchronized (this) {
+            mPostedCount++;
+            mMergedCount += merged;
+        }
+    }
+
+    synchronized int getPostedCount() {
+        return mPostedCount;
+    }
+
+    /**
+     * @return how many consumer runs were saved by merging updates, since this was created
+     */
+    synchronized int getMergedCount() {
+        return mMergedCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println(mPostedCount + " fan-outs, " + mMergedCount
+                + " consumer updates merged");
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs Sunshine's background work as jobs on Lollipop and up, so the system can batch it with
+ * other apps' work instead of waking the device for each.
+ *
+ * There are three jobs.  The refresh job takes over the periodic sync from the sync framework;
+ * it only needs a network.  The prefetch job runs a sync in its place shortly before the user
+ * is expected to look at the weather, as {@link UsagePredictor} sees it, and restarts the
+ * refresh job's period from there.  The maintenance job runs once a day, on an unmetered network while the
+ * device is idle and charging, and does everything that can wait for that in one go: a sync that
+ * fetches the full forecast horizon for every location, so the periodic syncs in between can stay
+ * short, then {@link Retention} pruning, warming the notification art and bringing the Muzei
+ * artwork up to date.  All of them run {@link SunshineSyncAdapter}'s sync, so whatever starts a
+ * sync, the work is the same.  Manual and expedited syncs still go through the framework.
+ *
+ * Jobs run one at a time on a single background thread.  If a job is stopped part way through,
+ * pruning stops after the chunk it is on and the job is retried later; a sync that has started
+ * is left to finish.  Each job has a stop flag of its own, so stopping one leaves the others
+ * be.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SyncJobService extends JobService {
+    private static final String LOG_TAG = SyncJobService.class.getSimpleName();
+
+    static final int JOB_ID_REFRESH = 3006;
+    static final int JOB_ID_MAINTENANCE = 3007;
+    static final int JOB_ID_PREFETCH = 3008;
+    // Pruning used to run as a job of its own, before it was folded into maintenance
+    private static final int JOB_ID_RETENTION = 3005;
+
+    private static final ExecutorService sJobWorker = Executors.newSingleThreadExecutor();
+
+    private static final String EXTRA_PREFETCH_AT = "prefetch_at";
+
+    // A job is replaced, and so stopped, when it is rescheduled.  A sync that reschedules the
+    // job it runs in gets the new schedule once the job has finished.
+    private static final Object sScheduleLock = new Object();
+    private static boolean sRefreshRunning;
+    private static long sPendingIntervalMillis;
+    private static boolean sPrefetchRunning;
+    private static boolean sPrefetchPending;
+    private static long sPendingPrefetchAt;
+
+    // The stop flag of each job that is running, by job id.  Only touched on the main thread.
+    private final SparseArray<AtomicBoolean> mStopFlags = new SparseArray<AtomicBoolean>();
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final int jobId = params.getJobId();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        mStopFlags.put(jobId, stopped);
+        synchronized (sScheduleLock) {
+            if (jobId == JOB_ID_REFRESH) {
+                sRefreshRunning = true;
+            } else if (jobId == JOB_ID_PREFETCH) {
+                sPrefetchRunning = true;
+            }
+        }
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... voids) {
+                if (jobId == JOB_ID_MAINTENANCE) {
+                    return runMaintenance(stopped);
+                }
+                return SunshineSyncAdapter.performJobSync(SyncJobService.this, new Bundle());
+            }
+
+            @Override
+            protected void onPostExecute(Boolean retry) {
+                // A job restarted while this run was queued behind another has a flag of its own
+                if (mStopFlags.get(jobId) == stopped) {
+                    mStopFlags.remove(jobId);
+                }
+                if (jobId == JOB_ID_REFRESH) {
+                    jobFinished(params, retry || stopped.get());
+                    onRefreshFinished(SyncJobService.this);
+                } else if (jobId == JOB_ID_PREFETCH) {
+                    // A one-off that missed its moment isn't worth retrying; the refresh job
+                    // will be along
+                    jobFinished(params, false);
+                    onPrefetchFinished(SyncJobService.this);
+                } else {
+                    jobFinished(params, retry || stopped.get());
+                }
+            }
+        }.executeOnExecutor(sJobWorker);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        AtomicBoolean stopped = mStopFlags.get(params.getJobId());
+        if (stopped != null) {
+            stopped.set(true);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the day's deferred work, stopping between steps once {@code stopped} is set.  Returns
+     * true if the sync failed and the job should be retried.
+     */
+    private boolean runMaintenance(AtomicBoolean stopped) {
+        long start = System.currentTimeMillis();
+        Bundle extras = new Bundle();
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_FULL_HORIZON, true);
+        boolean retry = SunshineSyncAdapter.performJobSync(this, extras);
+        if (!stopped.get()) {
+            Retention.prune(this, stopped);
+        }
+        if (!stopped.get()) {
+            NotificationArtCache.warm(this);
+            // Today's artwork may have changed with the date even if the forecast hasn't
+            SunshineSyncAdapter.updateMuzei(this);
+        }
+        Log.d(LOG_TAG, "Maintenance took " + (System.currentTimeMillis() - start) + " ms"
+                + (stopped.get() ? ", stopped before the end" : ""));
+        return retry;
+    }
+
+    private static void onRefreshFinished(Context context) {
+        long intervalMillis;
+        synchronized (sScheduleLock) {
+            sRefreshRunning = false;
+            intervalMillis = sPendingIntervalMillis;
+            sPendingIntervalMillis = 0;
+        }
+        if (intervalMillis > 0) {
+            scheduleRefresh(context, intervalMillis, false);
+        }
+    }
+
+    private static void onPrefetchFinished(Context context) {
+        boolean pending;
+        long prefetchAt;
+        synchronized (sScheduleLock) {
+            sPrefetchRunning = false;
+            pending = sPrefetchPending;
+            prefetchAt = sPendingPrefetchAt;
+            sPrefetchPending = false;
+        }
+        if (pending) {
+            schedulePrefetch(context, prefetchAt);
+        }
+        // The prefetch took the place of the next periodic sync
+        long intervalMillis = PreferenceManager.getDefaultSharedPreferences(context).getLong(
+                context.getString(R.string.pref_sync_interval_key),
+                SunshineSyncAdapter.SYNC_INTERVAL * 1000L);
+        scheduleRefresh(context, intervalMillis, true);
+    }
+
+    /**
+     * Schedules the refresh job to repeat every {@code intervalMillis}, replacing any refresh job
+     * already scheduled with a different interval.
+     */
+    static void scheduleRefresh(Context context, long intervalMillis) {
+        scheduleRefresh(context, intervalMillis, false);
+    }
+
+    /**
+     * @param restart true to start the period over from now even if the interval is unchanged
+     */
+    private static void scheduleRefresh(Context context, long intervalMillis, boolean restart) {
+        synchronized (sScheduleLock) {
+            if (sRefreshRunning) {
+                // The refresh job has just run, which starts its period over anyway
+                sPendingIntervalMillis = intervalMillis;
+                return;
+            }
+        }
+        JobScheduler jobScheduler = getJobScheduler(context);
+        JobInfo pending = getPendingJob(jobScheduler, JOB_ID_REFRESH);
+        if (!restart && pending != null && pending.getIntervalMillis() == intervalMillis) {
+            return;
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID_REFRESH,
+                new ComponentName(context, SyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPeriodic(intervalMillis)
+                .setPersisted(true)
+                .build());
+    }
+
+    static void cancelRefresh(Context context) {
+        JobScheduler jobScheduler = getJobScheduler(context);
+        jobScheduler.cancel(JOB_ID_REFRESH);
+        jobScheduler.cancel(JOB_ID_PREFETCH);
+    }
+
+    /**
+     * Schedules the prefetch job to run at {@code atMillis}, once there is a network, replacing
+     * any prefetch already scheduled.
+     *
+     * @param atMillis wall clock time to run at, or -1 to cancel the prefetch
+     */
+    static void schedulePrefetch(Context context, long atMillis) {
+        synchronized (sScheduleLock) {
+            if (sPrefetchRunning) {
+                sPrefetchPending = true;
+                sPendingPrefetchAt = atMillis;
+                return;
+            }
+        }
+        JobScheduler jobScheduler = getJobScheduler(context);
+        if (atMillis == -1) {
+            jobScheduler.cancel(JOB_ID_PREFETCH);
+            return;
+        }
+        JobInfo pending = getPendingJob(jobScheduler, JOB_ID_PREFETCH);
+        if (pending != null && pending.getExtras().getLong(EXTRA_PREFETCH_AT) == atMillis) {
+            return;
+        }
+        PersistableBundle extras = new PersistableBundle();
+        extras.putLong(EXTRA_PREFETCH_AT, atMillis);
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID_PREFETCH,
+                new ComponentName(context, SyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(Math.max(0, atMillis - System.currentTimeMillis()))
+                .setExtras(extras)
+                .setPersisted(true)
+                .build());
+    }
+
+    static boolean isRefreshScheduled(Context context) {
+        return getPendingJob(getJobScheduler(context), JOB_ID_REFRESH) != null;
+    }
+
+    /**
+     * Schedules the daily maintenance job, unless it already is.
+     */
+    static void scheduleMaintenance(Context context) {
+        JobScheduler jobScheduler = getJobScheduler(context);
+        jobScheduler.cancel(JOB_ID_RETENTION);
+        if (getPendingJob(jobScheduler, JOB_ID_MAINTENANCE) != null) {
+            return;
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID_MAINTENANCE,
+                new ComponentName(context, SyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(AlarmManager.INTERVAL_DAY)
+                .setPersisted(true)
+                .build());
+    }
+
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private static JobInfo getPendingJob(JobScheduler jobScheduler, int jobId) {
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if (job.getId() == jobId) {
+                return job;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how long to wait before the next periodic sync.
+ *
+ * Each location keeps a volatility score: a moving average of whether its last few fetched
+ * forecasts differed from the one already stored.  The most volatile location sets the pace,
+ * somewhere between {@link #MIN_INTERVAL_MILLIS} and {@link #MAX_INTERVAL_MILLIS}.  A metered
+ * network stretches the interval and charging on an unmetered network shortens it.  However
+ * calm the forecast, the interval never lets the data get older than
+ * {@link #MAX_STALENESS_MILLIS}, counted from the last successful sync.
+ *
+ * This class holds no Android state; the sync adapter loads and saves what it needs, which
+ * keeps the decisions testable against a fake {@link Clock}.
+ */
+class SyncScheduler {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({NETWORK_NONE, NETWORK_UNMETERED, NETWORK_METERED})
+    @interface NetworkType {}
+
+    static final int NETWORK_NONE = 0;
+    static final int NETWORK_UNMETERED = 1;
+    static final int NETWORK_METERED = 2;
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+
+    static final long MIN_INTERVAL_MILLIS = HOUR_IN_MILLIS;
+    static final long MAX_INTERVAL_MILLIS = 5 * HOUR_IN_MILLIS;
+    static final long MAX_STALENESS_MILLIS = 12 * HOUR_IN_MILLIS;
+
+    // A location nothing is known about yet syncs at the old fixed 3 hour rate
+    static final double DEFAULT_VOLATILITY = 0.5;
+
+    // Weight of the newest forecast in the moving average; 0.5 means the last three or four
+    // syncs dominate.
+    private static final double VOLATILITY_WEIGHT = 0.5;
+
+    private static final double METERED_FACTOR = 1.5;
+    private static final double CHARGING_FACTOR = 0.75;
+
+    // Intervals closer than this to the current one aren't worth re-registering the sync for
+    private static final long RESCHEDULE_THRESHOLD_MILLIS = HOUR_IN_MILLIS / 4;
+
+    private final Clock mClock;
+    private final Map<String, Double> mVolatility = new HashMap<String, Double>();
+    private long mLastSuccessMillis;
+
+    /**
+     * @param lastSuccessMillis when the last successful sync finished, or 0 if there hasn't
+     *                          been one
+     */
+    SyncScheduler(Clock clock, long lastSuccessMillis) {
+        mClock = clock;
+        mLastSuccessMillis = lastSuccessMillis;
+    }
+
+    void setVolatility(String locationSetting, double volatility) {
+        mVolatility.put(locationSetting, volatility);
+    }
+
+    double getVolatility(String locationSetting) {
+        Double volatility = mVolatility.get(locationSetting);
+        return volatility != null ? volatility : DEFAULT_VOLATILITY;
+    }
+
+    /**
+     * Folds a freshly fetched forecast into the location's volatility.
+     *
+     * @param changed whether the forecast differed from the one already stored
+     * @return the location's new volatility, for saving
+     */
+    double recordForecast(String locationSetting, boolean changed) {
+        double volatility = VOLATILITY_WEIGHT * (changed ? 1 : 0)
+                + (1 - VOLATILITY_WEIGHT) * getVolatility(locationSetting);
+        mVolatility.put(locationSetting, volatility);
+        return volatility;
+    }
+
+    /** Notes that a sync has just brought the data up to date. */
+    void recordSuccess() {
+        mLastSuccessMillis = mClock.currentTimeMillis();
+    }
+
+    long getLastSuccessMillis() {
+        return mLastSuccessMillis;
+    }
+
+    /**
+     * Returns how long to wait before the next sync.
+     */
+    long getSyncIntervalMillis(@NetworkType int networkType, boolean charging) {
+        double volatility = mVolatility.isEmpty() ? DEFAULT_VOLATILITY : 0;
+        for (double locationVolatility : mVolatility.values()) {
+            volatility = Math.max(volatility, locationVolatility);
+        }
+        double interval = MAX_INTERVAL_MILLIS
+                - volatility * (MAX_INTERVAL_MILLIS - MIN_INTERVAL_MILLIS);
+
+        // With no network the sync can't run until one turns up anyway, so there is nothing
+        // to adjust for.
+        if (networkType == NETWORK_METERED) {
+            interval *= METERED_FACTOR;
+        } else if (networkType == NETWORK_UNMETERED && charging) {
+            interval *= CHARGING_FACTOR;
+        }
+
+        long intervalMillis = Math.max(MIN_INTERVAL_MILLIS, Math.round(interval));
+        if (mLastSuccessMillis > 0) {
+            long untilStale = mLastSuccessMillis + MAX_STALENESS_MILLIS
+                    - mClock.currentTimeMillis();
+            intervalMillis = Math.min(intervalMillis, Math.max(MIN_INTERVAL_MILLIS, untilStale));
+        }
+        return intervalMillis;
+    }
+
+    /**
+     * Returns true if {@code nextIntervalMillis} is far enough from the interval the sync is
+     * currently registered with to be worth changing it.
+     */
+    static boolean shouldReschedule(long currentIntervalMillis, long nextIntervalMillis) {
+        return Math.abs(currentIntervalMillis - nextIntervalMillis) >= RESCHEDULE_THRESHOLD_MILLIS;
+    }
+}
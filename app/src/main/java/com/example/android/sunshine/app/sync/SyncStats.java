@@ -0,0 +1,159 @@
+package com.example.android.sunshine.app.sync;
+
+import android.support.annotation.IntDef;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time went in one sync, stage by stage, along with how much data it moved.
+ *
+ * Locations are fetched in parallel, so the network and parse stages are summed over every
+ * location and can add up to more than the sync's wall clock time.  The slowest location is
+ * kept as well, as it is what the sync as a whole waits on.  The most recent syncs are
+ * kept in a small ring buffer and printed by {@code adb shell dumpsys activity service
+ * SunshineSyncService}.
+ */
+class SyncStats {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STAGE_CONNECT, STAGE_FIRST_BYTE, STAGE_DOWNLOAD, STAGE_PARSE, STAGE_QUEUE,
+            STAGE_ADD_LOCATION, STAGE_BULK_INSERT, STAGE_FAN_OUT})
+    @interface Stage {}
+
+    // Opening the connection, or reusing a kept-alive one
+    static final int STAGE_CONNECT = 0;
+    // From the request going out to the response headers coming back
+    static final int STAGE_FIRST_BYTE = 1;
+    // Waiting on the network for the body
+    static final int STAGE_DOWNLOAD = 2;
+    // Everything done with the body besides waiting for it: decoding, fingerprinting, caching
+    static final int STAGE_PARSE = 3;
+    // Waiting for room in the pipeline because the writer is behind
+    static final int STAGE_QUEUE = 4;
+    static final int STAGE_ADD_LOCATION = 5;
+    static final int STAGE_BULK_INSERT = 6;
+    // Handing new data off to widgets, Muzei and the notification, which update afterwards
+    static final int STAGE_FAN_OUT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "connect", "first byte", "download", "parse", "queue", "add location",
+            "bulk insert", "fan-out"
+    };
+
+    private static final int HISTORY_SIZE = 32;
+    private static final SyncStats[] sHistory = new SyncStats[HISTORY_SIZE];
+    private static int sHistoryCount;
+
+    private final long mStartedAt;
+    private final AtomicLongArray mStageNanos = new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mRowsParsed = new AtomicLong();
+    private int mRowsWritten;
+    private int mLocations;
+    private long mElapsedMillis;
+    private String mSlowestLocation;
+    private long mSlowestLocationMillis;
+
+    SyncStats(long startedAt) {
+        mStartedAt = startedAt;
+    }
+
+    void addTime(@Stage int stage, long nanos) {
+        mStageNanos.addAndGet(stage, nanos);
+    }
+
+    long getTimeNanos(@Stage int stage) {
+        return mStageNanos.get(stage);
+    }
+
+    /** Adds response body bytes read from the network. */
+    void addBytes(long bytes) {
+        mBytes.addAndGet(bytes);
+    }
+
+    void addRowsParsed(int rows) {
+        mRowsParsed.addAndGet(rows);
+    }
+
+    long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * Records how long one location's fetch took, from the request going out to its forecast
+     * being queued.  Only the slowest is kept.
+     */
+    synchronized void addLocationTime(String locationSetting, long elapsedMillis) {
+        if (mSlowestLocation == null || elapsedMillis > mSlowestLocationMillis) {
+            mSlowestLocation = locationSetting;
+            mSlowestLocationMillis = elapsedMillis;
+        }
+    }
+
+    /**
+     * Completes the record and adds it to the history.
+     *
+     * @param rowsWritten the weather and hourly rows the sync inserted or changed
+     */
+    void finish(int locations, int rowsWritten, long elapsedMillis) {
+        mLocations = locations;
+        mRowsWritten = rowsWritten;
+        mElapsedMillis = elapsedMillis;
+        synchronized (sHistory) {
+            sHistory[sHistoryCount % HISTORY_SIZE] = this;
+            sHistoryCount++;
+        }
+    }
+
+    /**
+     * Prints the recorded syncs, newest first.
+     */
+    static void dump(PrintWriter writer) {
+        SyncStats[] history;
+        int count;
+        synchronized (sHistory) {
+            count = Math.min(sHistoryCount, HISTORY_SIZE);
+            history = new SyncStats[count];
+            for (int i = 0; i < count; i++) {
+                history[i] = sHistory[(sHistoryCount - 1 - i) % HISTORY_SIZE];
+            }
+        }
+        writer.println("Recent syncs (" + count + " of " + HISTORY_SIZE
+                + " kept, newest first; network and parse times are summed over locations):");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        for (SyncStats stats : history) {
+            writer.println("  " + format.format(new Date(stats.mStartedAt))
+                    + ": " + stats.mElapsedMillis + " ms, "
+                    + stats.mLocations + " locations, "
+                    + stats.mBytes.get() + " bytes, "
+                    + stats.mRowsParsed.get() + " rows parsed, "
+                    + stats.mRowsWritten + " rows written"
+                    + stats.formatSlowestLocation());
+            StringBuilder stages = new StringBuilder("    ");
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                if (stage > 0) {
+                    stages.append(", ");
+                }
+                stages.append(STAGE_NAMES[stage]).append(' ')
+                        .append(TimeUnit.NANOSECONDS.toMillis(stats.mStageNanos.get(stage)))
+                        .append(" ms");
+            }
+            writer.println(stages);
+        }
+    }
+
+    private synchronized String formatSlowestLocation() {
+        if (mSlowestLocation == null) {
+            return "";
+        }
+        return ", slowest location " + mSlowestLocation + " in " + mSlowestLocationMillis + " ms";
+    }
+}
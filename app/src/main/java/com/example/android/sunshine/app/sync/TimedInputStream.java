@@ -0,0 +1,57 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it and the time spent blocked reading them, which for a
+ * network stream is the time spent waiting on the network.
+ */
+class TimedInputStream extends FilterInputStream {
+    private long mReadNanos;
+    private long mByteCount;
+
+    TimedInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        mReadNanos += System.nanoTime() - start;
+        if (b != -1) {
+            mByteCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        long start = System.nanoTime();
+        int read = super.read(buffer, offset, count);
+        mReadNanos += System.nanoTime() - start;
+        if (read > 0) {
+            mByteCount += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long start = System.nanoTime();
+        long skipped = super.skip(byteCount);
+        mReadNanos += System.nanoTime() - start;
+        mByteCount += skipped;
+        return skipped;
+    }
+
+    long getReadNanos() {
+        return mReadNanos;
+    }
+
+    long getByteCount() {
+        return mByteCount;
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.TimeZone;
+
+/**
+ * Learns when the user tends to look at the weather, so the sync before that can run just
+ * ahead of it.
+ *
+ * Each time the app is opened or a widget is put on screen, {@link #recordUse} adds to the
+ * score of that half hour of that day of the week.  Uses within {@link #DEDUP_MILLIS} of the
+ * last one count once, and every score loses a quarter each week, so habits that stop fade
+ * out.  A half hour used two weeks running still has {@link #MIN_SCORE} the week after, and
+ * is expected to be used again then.
+ *
+ * {@link #getPrefetchTime} moves the next sync, never adds one: if a use is expected within
+ * the last half of the wait for the next periodic sync, the sync runs {@link #LEAD_MILLIS}
+ * before the use instead, and the periodic schedule restarts from there.  Uses that fall early
+ * in the wait are left alone, since the data is still fresh then.
+ *
+ * Like {@link SyncScheduler} this holds no Android state; the scores save to, and restore
+ * from, a short string, which keeps the predictions testable against a fake {@link Clock}.
+ * All methods are safe to call from any thread.
+ */
+class UsagePredictor {
+
+    static final long BUCKET_MILLIS = 1000 * 60 * 30;
+    static final int BUCKETS_PER_DAY = 48;
+    static final int BUCKETS_PER_WEEK = 7 * BUCKETS_PER_DAY;
+
+    static final int USE_SCORE = 4;
+    static final int MIN_SCORE = 5;
+
+    static final long DEDUP_MILLIS = BUCKET_MILLIS;
+    // Enough for a sync to finish before the user gets there
+    static final long LEAD_MILLIS = 1000 * 60 * 15;
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    // Day 0 of the epoch was a Thursday; weeks here start on a Monday
+    private static final int EPOCH_WEEKDAY = 3;
+    // Scores are gone by then anyway
+    private static final int MAX_DECAY_WEEKS = 16;
+
+    private final Clock mClock;
+    private final TimeZone mTimeZone;
+
+    // Indexed by weekday, Monday first, then half hour of the day
+    private final int[] mScores = new int[BUCKETS_PER_WEEK];
+    // The week the scores were last decayed in
+    private long mWeek;
+    private long mLastUseMillis;
+
+    /**
+     * @param timeZone the zone the user's days and weeks are in
+     * @param saved what {@link #save} returned, or null to start with no history
+     */
+    UsagePredictor(Clock clock, TimeZone timeZone, String saved) {
+        mClock = clock;
+        mTimeZone = timeZone;
+        mWeek = getWeek(clock.currentTimeMillis());
+        if (saved != null) {
+            try {
+                restore(saved);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Scores that can't be read are only lost history; start again
+                for (int i = 0; i < BUCKETS_PER_WEEK; i++) {
+                    mScores[i] = 0;
+                }
+                mWeek = getWeek(clock.currentTimeMillis());
+                mLastUseMillis = 0;
+            }
+        }
+    }
+
+    private long getLocalMillis(long millis) {
+        return millis + mTimeZone.getOffset(millis);
+    }
+
+    private long getWeek(long millis) {
+        return (getLocalMillis(millis) / DAY_IN_MILLIS + EPOCH_WEEKDAY) / 7;
+    }
+
+    private int getBucket(long millis) {
+        long local = getLocalMillis(millis);
+        int weekday = (int) ((local / DAY_IN_MILLIS + EPOCH_WEEKDAY) % 7);
+        int halfHour = (int) (local % DAY_IN_MILLIS / BUCKET_MILLIS);
+        return weekday * BUCKETS_PER_DAY + halfHour;
+    }
+
+    /**
+     * Brings the scores up to the current week.
+     */
+    private void decay() {
+        long week = getWeek(mClock.currentTimeMillis());
+        // A clock that has gone backwards leaves the scores as they are
+        if (week <= mWeek) {
+            return;
+        }
+        int weeks = (int) Math.min(week - mWeek, MAX_DECAY_WEEKS);
+        for (int i = 0; i < BUCKETS_PER_WEEK; i++) {
+            for (int j = 0; j < weeks && mScores[i] > 0; j++) {
+                mScores[i] = mScores[i] * 3 / 4;
+            }
+        }
+        mWeek = week;
+    }
+
+    /**
+     * Notes that the user is looking at the weather now.
+     */
+    synchronized void recordUse() {
+        long now = mClock.currentTimeMillis();
+        if (mLastUseMillis != 0 && now >= mLastUseMillis
+                && now - mLastUseMillis < DEDUP_MILLIS) {
+            return;
+        }
+        decay();
+        mScores[getBucket(now)] += USE_SCORE;
+        mLastUseMillis = now;
+    }
+
+    synchronized int getScore(long millis) {
+        decay();
+        return mScores[getBucket(millis)];
+    }
+
+    /**
+     * Returns the start of the next half hour after the current one that the user is expected
+     * to look at the weather in, within the coming week, or -1 if there is none.
+     */
+    synchronized long getNextUse() {
+        decay();
+        long now = mClock.currentTimeMillis();
+        long start = now - getLocalMillis(now) % BUCKET_MILLIS;
+        for (int i = 1; i <= BUCKETS_PER_WEEK; i++) {
+            long bucketStart = start + i * BUCKET_MILLIS;
+            if (mScores[getBucket(bucketStart)] >= MIN_SCORE) {
+                return bucketStart;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns when to run the next sync so that it lands just before an expected use, or -1 to
+     * leave it to the periodic schedule.
+     *
+     * @param lastSyncMillis when the last successful sync finished
+     * @param intervalMillis the periodic sync interval
+     */
+    synchronized long getPrefetchTime(long lastSyncMillis, long intervalMillis) {
+        long nextUse = getNextUse();
+        if (nextUse == -1) {
+            return -1;
+        }
+        long prefetch = nextUse - LEAD_MILLIS;
+        long nextSync = lastSyncMillis + intervalMillis;
+        if (prefetch <= mClock.currentTimeMillis() || prefetch >= nextSync
+                || prefetch < nextSync - intervalMillis / 2) {
+            return -1;
+        }
+        return prefetch;
+    }
+
+    /**
+     * Returns the scores as a string for {@link #UsagePredictor(Clock, TimeZone, String)}, like
+     * {@code 2346:1419033600000|16=4;65=7}: the week they were last decayed in and the last use,
+     * then each half hour that has a score.
+     */
+    synchronized String save() {
+        StringBuilder saved = new StringBuilder();
+        saved.append(mWeek).append(':').append(mLastUseMillis).append('|');
+        boolean first = true;
+        for (int i = 0; i < BUCKETS_PER_WEEK; i++) {
+            if (mScores[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                saved.append(';');
+            }
+            first = false;
+            saved.append(i).append('=').append(mScores[i]);
+        }
+        return saved.toString();
+    }
+
+    private void restore(String saved) {
+        int bar = saved.indexOf('|');
+        String[] header = saved.substring(0, bar).split(":");
+        mWeek = Long.parseLong(header[0]);
+        mLastUseMillis = Long.parseLong(header[1]);
+        String scores = saved.substring(bar + 1);
+        if (!scores.isEmpty()) {
+            for (String entry : scores.split(";")) {
+                int equals = entry.indexOf('=');
+                int bucket = Integer.parseInt(entry.substring(0, equals));
+                mScores[bucket] = Integer.parseInt(entry.substring(equals + 1));
+            }
+        }
+    }
+}
@@ -54,6 +54,12 @@ public class DetailWidgetProvider extends AppWidgetProvider {
         }
     }
 
+    @Override
+    public void onEnabled(Context context) {
+        // The user just put the widget on screen; updates also come with reboots and app updates
+        SunshineSyncAdapter.recordUse(context);
+    }
+
     @Override
     public void onReceive(@NonNull Context context, @NonNull Intent intent) {
         super.onReceive(context, intent);
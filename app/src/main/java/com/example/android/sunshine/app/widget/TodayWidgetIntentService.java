@@ -50,6 +50,19 @@ public class TodayWidgetIntentService extends IntentService {
     private static final int INDEX_MAX_TEMP = 2;
     private static final int INDEX_MIN_TEMP = 3;
 
+    private static final String[] CURRENT_COLUMNS = {
+            WeatherContract.CurrentEntry.COLUMN_WEATHER_ID,
+            WeatherContract.CurrentEntry.COLUMN_SHORT_DESC,
+            WeatherContract.CurrentEntry.COLUMN_FETCHED_AT
+    };
+    // these indices must match the projection
+    private static final int INDEX_CURRENT_WEATHER_ID = 0;
+    private static final int INDEX_CURRENT_SHORT_DESC = 1;
+    private static final int INDEX_CURRENT_FETCHED_AT = 2;
+
+    // Older current conditions than this are ignored in favour of the day's forecast
+    private static final long CURRENT_MAX_AGE_MILLIS = 1000 * 60 * 60;
+
     public TodayWidgetIntentService() {
         super("TodayWidgetIntentService");
     }
@@ -85,6 +98,20 @@ public class TodayWidgetIntentService extends IntentService {
         String formattedMinTemperature = Utility.formatTemperature(this, minTemp);
         data.close();
 
+        // While the current conditions are fresh, show what the weather is doing right now
+        Cursor current = getContentResolver().query(
+                WeatherContract.CurrentEntry.buildCurrentLocation(location), CURRENT_COLUMNS,
+                null, null, null);
+        if (current != null) {
+            if (current.moveToFirst() && WeatherContract.CurrentEntry.getAgeMillis(
+                    current.getLong(INDEX_CURRENT_FETCHED_AT)) < CURRENT_MAX_AGE_MILLIS) {
+                weatherArtResourceId = Utility.getArtResourceForWeatherCondition(
+                        current.getInt(INDEX_CURRENT_WEATHER_ID));
+                description = current.getString(INDEX_CURRENT_SHORT_DESC);
+            }
+            current.close();
+        }
+
         // Perform this loop procedure for each Today widget
         for (int appWidgetId : appWidgetIds) {
             // Find the correct layout based on the widget's width
@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 
+import com.example.android.sunshine.app.sync.CurrentConditions;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 /**
@@ -34,18 +35,35 @@ public class TodayWidgetProvider extends AppWidgetProvider {
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        // Also sent after a reboot, which clears the refresh alarm
+        CurrentConditions.acquire(context, CurrentConditions.CONSUMER_WIDGET);
         context.startService(new Intent(context, TodayWidgetIntentService.class));
     }
 
+    @Override
+    public void onEnabled(Context context) {
+        // The user just put the widget on screen.  Updates aren't uses: they also come with
+        // every reboot and app update.
+        SunshineSyncAdapter.recordUse(context);
+    }
+
+    @Override
+    public void onDisabled(Context context) {
+        CurrentConditions.release(context, CurrentConditions.CONSUMER_WIDGET);
+    }
+
     @Override
     public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
                                           int appWidgetId, Bundle newOptions) {
+        SunshineSyncAdapter.recordUse(context);
         context.startService(new Intent(context, TodayWidgetIntentService.class));
     }
 
     @Override
     public void onReceive(@NonNull Context context, @NonNull Intent intent) {
         super.onReceive(context, intent);
+        // A refresh the sync caused, so not a use; counting it would feed the predictions back
+        // into themselves
         if (SunshineSyncAdapter.ACTION_DATA_UPDATED.equals(intent.getAction())) {
             context.startService(new Intent(context, TodayWidgetIntentService.class));
         }